@@ -42,7 +42,8 @@
        {}
        docs))))
 
-(defn ->document-store {::sys/deps {:document-cache 'crux.cache/->cache}
+(defn ->document-store {::sys/deps {:document-cache 'crux.cache/->cache
+                                    :local-document-cache 'crux.document-store.disk-cache/->disk-cache}
                         ::sys/args {:sas-token {:required? true
                                                 :spec ::sys/string
                                                 :doc "Azure Blob Storage SAS Token"}
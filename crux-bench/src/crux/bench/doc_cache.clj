@@ -0,0 +1,60 @@
+(ns crux.bench.doc-cache
+  "Compares the default (entry-count bounded) document cache against the
+  off-heap, byte-bounded one - heap footprint once filled, and hit latency -
+  for a skewed document-size distribution: mostly small docs, with a long tail."
+  (:require [crux.bench :as bench]
+            [crux.cache :as cache]
+            [crux.cache.off-heap :as off-heap]
+            [crux.codec :as c]
+            [crux.memory :as mem])
+  (:import java.lang.management.ManagementFactory))
+
+(def ^:private doc-count 20000)
+(def ^:private hit-count 100000)
+
+(defn- doc-size ^long [^long n]
+  ;; 90% ~200B, 9% ~10KB, 1% ~200KB
+  (case (int (mod n 100))
+    0 (* 200 1024)
+    (1 2 3 4 5 6 7 8 9) (* 10 1024)
+    200))
+
+(defn- ->doc [^long n]
+  {:crux.db/id (keyword (str "doc-" n))
+   :n n
+   :tags #{:a :b :c}
+   :body (apply str (repeat (doc-size n) "x"))})
+
+(defn- heap-used ^long []
+  (System/gc)
+  (.getUsed (.getHeapMemoryUsage (ManagementFactory/getMemoryMXBean))))
+
+(defn- fill-cache [cache ks]
+  (doseq [[n k] (map-indexed vector ks)]
+    (cache/compute-if-absent cache k mem/copy-to-unpooled-buffer (fn [_] (->doc n)))))
+
+(defn- hit-latency-ns [cache ks]
+  (let [ks (vec ks)
+        start-ns (System/nanoTime)]
+    (dotimes [_ hit-count]
+      (get cache (rand-nth ks)))
+    (quot (- (System/nanoTime) start-ns) hit-count)))
+
+(defn run-doc-cache-bench []
+  (bench/with-bench-ns :doc-cache
+    (let [ks (vec (for [n (range doc-count)]
+                    (c/->id-buffer (keyword (str "doc-" n)))))]
+      (doseq [[cache-type ->cache] [[:entry-count #(cache/->cache {:cache-size doc-count})]
+                                    [:off-heap #(off-heap/->off-heap-cache {:max-bytes (* 1024 1024 1024)})]]]
+        (with-open [cache (->cache)]
+          (let [heap-before (heap-used)]
+            (bench/run-bench (keyword (str (name cache-type) "-fill"))
+              (fill-cache cache ks)
+              {:doc-count (count cache)
+               :heap-bytes (- (heap-used) heap-before)})
+
+            ;; once to warm up, once to measure
+            (hit-latency-ns cache ks)
+            (bench/run-bench (keyword (str (name cache-type) "-hits"))
+              {:hit-count hit-count
+               :hit-latency-ns (hit-latency-ns cache ks)})))))))
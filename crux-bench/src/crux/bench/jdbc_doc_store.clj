@@ -0,0 +1,43 @@
+(ns crux.bench.jdbc-doc-store
+  "Submits and re-submits 10k documents to the JDBC document store, as one
+  submission, for the embedded H2 and SQLite dialects."
+  (:require [clojure.java.io :as io]
+            [crux.bench :as bench]
+            [crux.codec :as c]
+            [crux.db :as db]
+            [crux.fixtures :as fix]
+            [crux.jdbc :as j]
+            [crux.jdbc.h2 :as h2]
+            [crux.jdbc.sqlite :as sqlite]))
+
+(def ^:private doc-count 10000)
+
+(defn- ->docs [version]
+  (->> (for [n (range doc-count)]
+         {:crux.db/id (keyword (str "doc-" n))
+          :name (str "Doc " n)
+          :n n
+          :version version
+          :tags #{:a :b :c}})
+       (into {} (map (juxt c/new-id identity)))))
+
+(defn run-jdbc-doc-store-bench []
+  (bench/with-bench-ns :jdbc-doc-store
+    (doseq [[dialect-type ->dialect] [[:h2 h2/->dialect]
+                                      [:sqlite sqlite/->dialect]]]
+      (fix/with-tmp-dirs #{db-dir}
+        (let [dialect (->dialect {})]
+          (with-open [connection-pool (j/->connection-pool {:dialect dialect
+                                                            :db-spec {:dbname (str (io/file db-dir "crux"))}})]
+            (let [doc-store (j/->JdbcDocumentStore (:pool connection-pool) dialect)
+                  docs (->docs 0)]
+              (bench/run-bench (keyword (str (name dialect-type) "-submit-new-docs"))
+                (db/submit-docs doc-store docs)
+                {:doc-count (count docs)})
+
+              (bench/run-bench (keyword (str (name dialect-type) "-resubmit-docs"))
+                (db/submit-docs doc-store docs)
+                {:doc-count (count docs)})
+
+              (bench/run-bench (keyword (str (name dialect-type) "-fetch-docs"))
+                {:doc-count (count (db/fetch-docs doc-store (keys docs)))}))))))))
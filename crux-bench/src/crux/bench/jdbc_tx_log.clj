@@ -0,0 +1,46 @@
+(ns crux.bench.jdbc-tx-log
+  "Submits 10k single-put transactions to the JDBC tx-log from 16 concurrent
+  submitters, for the embedded H2 and SQLite dialects."
+  (:require [clojure.java.io :as io]
+            [crux.api :as crux]
+            [crux.bench :as bench]
+            [crux.fixtures :as fix]
+            [crux.jdbc :as j])
+  (:import java.time.Duration
+           [java.util.concurrent Executors ExecutorService TimeUnit]))
+
+(def ^:private tx-count 10000)
+(def ^:private submitter-count 16)
+
+(defn- submit-txs [node]
+  (let [^ExecutorService pool (Executors/newFixedThreadPool submitter-count)]
+    (try
+      (->> (for [n (range tx-count)]
+             (.submit pool ^Callable #(crux/submit-tx node [[:crux.tx/put {:crux.db/id (keyword (str "doc-" n)), :n n}]])))
+           (doall)
+           (mapv deref)
+           (apply max-key :crux.tx/tx-id))
+      (finally
+        (.shutdown pool)
+        (.awaitTermination pool 1 TimeUnit/MINUTES)))))
+
+(defn run-jdbc-tx-log-bench []
+  (bench/with-bench-ns :jdbc-tx-log
+    (doseq [[dialect-type dialect] [[:h2 'crux.jdbc.h2/->dialect]
+                                    [:sqlite 'crux.jdbc.sqlite/->dialect]]]
+      (fix/with-tmp-dirs #{db-dir}
+        (with-open [node (crux/start-node {::j/connection-pool {:dialect dialect
+                                                                :db-spec {:dbname (str (io/file db-dir "crux"))}}
+                                           :crux/tx-log {:crux/module `j/->tx-log
+                                                         :connection-pool ::j/connection-pool}
+                                           :crux/document-store {:crux/module `j/->document-store
+                                                                 :connection-pool ::j/connection-pool}})]
+          (let [!last-tx (atom nil)]
+            (bench/run-bench (keyword (str (name dialect-type) "-submit-txs"))
+              (reset! !last-tx (submit-txs node))
+              {:tx-count tx-count
+               :submitter-count submitter-count})
+
+            (bench/run-bench (keyword (str (name dialect-type) "-await-txs"))
+              (crux/await-tx node @!last-tx (Duration/ofMinutes 5))
+              {:tx-count tx-count})))))))
@@ -0,0 +1,65 @@
+(ns crux.bench.kv-multi-get
+  "Compares fetching 10k documents one `kv/get-value` at a time against
+  one `kv/multi-get`, for RocksDB and LMDB."
+  (:require [crux.bench :as bench]
+            [crux.codec :as c]
+            [crux.db :as db]
+            [crux.fixtures :as fix]
+            [crux.kv :as kv]
+            [crux.kv.document-store :as kvds]
+            [crux.lmdb :as lmdb]
+            [crux.memory :as mem]
+            [crux.rocksdb :as rocks]))
+
+(def ^:private doc-count 10000)
+(def ^:private store-count 100000)
+
+(defn- ->doc [n]
+  {:crux.db/id (keyword (str "doc-" n))
+   :name (str "Doc " n)
+   :n n
+   :tags #{:a :b :c}})
+
+(defn- load-docs [kv-store]
+  (let [doc-store (kvds/->KvDocumentStore kv-store false)]
+    (doseq [docs (->> (range store-count)
+                      (map ->doc)
+                      (partition-all 1000))]
+      (db/submit-docs doc-store (->> docs
+                                     (into {} (map (juxt c/new-id identity))))))
+    (kv/compact kv-store)
+    doc-store))
+
+(defn- doc-keys []
+  (->> (shuffle (range store-count))
+       (take doc-count)
+       (mapv #(kvds/encode-doc-key-to nil (c/->id-buffer (c/new-id (->doc %)))))))
+
+(defn- fetch-one-by-one ^long [kv-store ks]
+  (with-open [snapshot (kv/new-snapshot kv-store)]
+    (count (keep #(kv/get-value snapshot %) ks))))
+
+(defn- fetch-multi-get ^long [kv-store ks]
+  (with-open [snapshot (kv/new-snapshot kv-store)]
+    (count (keep identity (kv/multi-get snapshot ks)))))
+
+(defn run-kv-multi-get-bench []
+  (bench/with-bench-ns :kv-multi-get
+    (doseq [[kv-type ->kv-store] [[:rocksdb #(rocks/->kv-store {:db-dir %, :column-families? true})]
+                                  [:lmdb #(lmdb/->kv-store {:db-dir %, :env-maxreaders 1024})]]]
+      (fix/with-tmp-dirs #{db-dir}
+        (with-open [kv-store (->kv-store (.toPath db-dir))]
+          (load-docs kv-store)
+          (let [ks (doc-keys)]
+            ;; once to warm up, once to measure
+            (fetch-one-by-one kv-store ks)
+            (fetch-multi-get kv-store ks)
+            (bench/run-bench (keyword (str (name kv-type) "-get-value"))
+              {:result-count (fetch-one-by-one kv-store ks)})
+            (bench/run-bench (keyword (str (name kv-type) "-multi-get"))
+              {:result-count (fetch-multi-get kv-store ks)})
+            (bench/run-bench (keyword (str (name kv-type) "-fetch-docs"))
+              {:result-count (count (db/fetch-docs (kvds/->KvDocumentStore kv-store false)
+                                                   (->> (shuffle (range store-count))
+                                                        (take doc-count)
+                                                        (map (comp c/new-id ->doc)))))})))))))
@@ -2,6 +2,11 @@
   (:require [clojure.string :as string]
             [clojure.tools.cli :as cli]
             [crux.bench :as bench]
+            [crux.bench.doc-cache :as doc-cache]
+            [crux.bench.jdbc-doc-store :as jdbc-doc-store]
+            [crux.bench.jdbc-tx-log :as jdbc-tx-log]
+            [crux.bench.kv-multi-get :as kv-multi-get]
+            [crux.bench.rocksdb-iteration :as rocksdb-iteration]
             [crux.bench.sorted-maps-microbench :as sorted-maps]
             [crux.bench.tpch-stress-test :as tpch-stress]
             [crux.bench.tpch :as tpch]
@@ -41,6 +46,37 @@
                      (bench/with-comparison-times)
                      (doto post-to-slack)))))
 
+   :watdiv-sorted-array-join (fn [nodes _]
+                               (bench/with-nodes [node nodes]
+                                 (-> (watdiv-crux/run-sorted-array-join-bench node {:test-count 100})
+                                     (bench/with-comparison-times)
+                                     (doto post-to-slack))))
+
+   :kv-multi-get (fn [_ _]
+                   (-> (bench/with-comparison-times
+                         (kv-multi-get/run-kv-multi-get-bench))
+                       (doto post-to-slack)))
+
+   :jdbc-doc-store (fn [_ _]
+                     (-> (bench/with-comparison-times
+                           (jdbc-doc-store/run-jdbc-doc-store-bench))
+                         (doto post-to-slack)))
+
+   :doc-cache (fn [_ _]
+                (-> (bench/with-comparison-times
+                      (doc-cache/run-doc-cache-bench))
+                    (doto post-to-slack)))
+
+   :jdbc-tx-log (fn [_ _]
+                  (-> (bench/with-comparison-times
+                        (jdbc-tx-log/run-jdbc-tx-log-bench))
+                      (doto post-to-slack)))
+
+   :rocksdb-iteration (fn [_ _]
+                        (-> (bench/with-comparison-times
+                              (rocksdb-iteration/run-rocksdb-iteration-bench))
+                            (doto post-to-slack)))
+
    :tpch-stress (fn [nodes {:keys [tpch-query-count tpch-field-count] :as opts}]
                   (bench/with-nodes [node nodes]
                     (-> (bench/with-comparison-times
@@ -69,7 +105,7 @@
 
                          [nil "--tests test1,test2" "Tests to run"
                           :id :selected-tests
-                          :default (set (keys (dissoc bench-tests :tpch-stress)))
+                          :default (set (keys (dissoc bench-tests :tpch-stress :watdiv-sorted-array-join :rocksdb-iteration :kv-multi-get :jdbc-doc-store :jdbc-tx-log :doc-cache)))
                           :parse-fn #(into #{} (map keyword (set (string/split % #","))))]
 
                          [nil "--tpch-query-count 20" "Number of queries to run on TPCH stress"
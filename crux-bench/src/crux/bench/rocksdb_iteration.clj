@@ -0,0 +1,94 @@
+(ns crux.bench.rocksdb-iteration
+  "Compares iterating RocksDB through `crux.kv`, which reads keys and values
+  into reused direct buffers, against reading them as new byte arrays."
+  (:require [crux.bench :as bench]
+            [crux.fixtures :as fix]
+            [crux.kv :as kv]
+            [crux.memory :as mem]
+            [crux.rocksdb :as rocks])
+  (:import java.lang.management.ManagementFactory
+           java.util.Random
+           [org.rocksdb ReadOptions RocksDB RocksIterator]
+           org.agrona.DirectBuffer))
+
+(def ^:private key-count 1000000)
+(def ^:private seek-count 1000000)
+
+(defn- allocated-bytes ^long []
+  (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean (ManagementFactory/getThreadMXBean)
+                            (.getId (Thread/currentThread))))
+
+(defn- random-buffer ^org.agrona.DirectBuffer [^Random rng ^long size]
+  (let [bs (byte-array size)]
+    (.nextBytes rng bs)
+    (mem/as-buffer bs)))
+
+(defn- load-kvs [kv-store]
+  (let [rng (Random. 0)]
+    (doseq [batch (->> (repeatedly key-count #(vector (random-buffer rng 32) (random-buffer rng 64)))
+                       (partition-all 10000))]
+      (kv/store kv-store batch))
+    (kv/compact kv-store)))
+
+(defn- byte-array-iterator [^RocksDB db]
+  ;; what crux.rocksdb did before: a new array for every key and value
+  (let [^RocksIterator i (.newIterator db (ReadOptions.))]
+    (reify
+      kv/KvIterator
+      (seek [_ k]
+        (.seek i (mem/direct-byte-buffer k))
+        (when (.isValid i) (mem/as-buffer (.key i))))
+      (next [_]
+        (.next i)
+        (when (.isValid i) (mem/as-buffer (.key i))))
+      (prev [_]
+        (.prev i)
+        (when (.isValid i) (mem/as-buffer (.key i))))
+      (value [_]
+        (mem/as-buffer (.value i)))
+
+      java.io.Closeable
+      (close [_]
+        (.close i)))))
+
+(defn- scan ^long [i]
+  (loop [k (kv/seek i mem/empty-buffer)
+         n 0]
+    (if k
+      (do (.capacity ^DirectBuffer (kv/value i))
+          (recur (kv/next i) (inc n)))
+      n)))
+
+(def ^:private seek-ks
+  (delay
+    (let [rng (Random. 1)]
+      (vec (repeatedly seek-count #(random-buffer rng 8))))))
+
+(defn- seeks ^long [i]
+  (reduce (fn [found k]
+            (cond-> found
+              (some-> (kv/seek i k) (kv/next)) inc))
+          0
+          @seek-ks))
+
+(defn- run-iteration [bench-type i f]
+  (bench/run-bench bench-type
+    (let [before (allocated-bytes)
+          n (f i)]
+      {:result-count n
+       :allocated-bytes (- (allocated-bytes) before)})))
+
+(defn run-rocksdb-iteration-bench []
+  (bench/with-bench-ns :rocksdb-iteration
+    (fix/with-tmp-dirs #{db-dir}
+      (with-open [kv-store (rocks/->kv-store {:db-dir (.toPath db-dir), :column-families? false})]
+        (load-kvs kv-store)
+        @seek-ks
+        (with-open [snapshot (kv/new-snapshot kv-store)]
+          (doseq [[iterator-type ->iterator] [[:byte-arrays #(byte-array-iterator (:db kv-store))]
+                                              [:direct-buffers #(kv/new-iterator snapshot)]]]
+            (with-open [i (->iterator)]
+              ;; once to warm up, once to measure
+              (scan i)
+              (run-iteration (keyword (str (name iterator-type) "-scan")) i scan)
+              (run-iteration (keyword (str (name iterator-type) "-seek")) i seeks))))))))
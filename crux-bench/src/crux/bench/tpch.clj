@@ -14,6 +14,22 @@
                       (tpch/validate-tpch-query actual (tpch/parse-tpch-result n))
                       (boolean actual))))))
 
+(defn run-tpch-top-k-queries
+  "Runs the TPC-H queries that have both `:order-by` and `:limit` - once as they are,
+  and once sorting the whole result before taking the limit, for comparison."
+  [node]
+  (doseq [n (range 1 23)
+          :let [{:keys [order-by limit] :as q} (assoc (get tpch/tpch-queries (dec n)) :timeout 120000)]
+          :when (and order-by limit)]
+    (let [top-k-result (atom nil)]
+      (bench/run-bench (keyword (str "q" n "-top-k"))
+        {:result-count (count (reset! top-k-result (crux/q (crux/db node) q)))})
+
+      (bench/run-bench (keyword (str "q" n "-full-sort"))
+        (let [result (vec (take limit (crux/q (crux/db node) (dissoc q :limit))))]
+          {:result-count (count result)
+           :success? (= @top-k-result result)})))))
+
 (defn run-tpch [node {:keys [scale-factor] :as opts}]
   (let [{:keys [scale-factor] :as opts} (assoc opts :scale-factor (or scale-factor 0.01))]
     (bench/with-bench-ns :tpch
@@ -29,4 +45,6 @@
           {:success? (run-tpch-queries node opts)})
 
         (bench/run-bench :queries-warm
-          {:success? (run-tpch-queries node opts)})))))
+          {:success? (run-tpch-queries node opts)})
+
+        (run-tpch-top-k-queries node)))))
@@ -4,6 +4,7 @@
             [clojure.java.io :as io]
             [crux.rdf :as rdf]
             [crux.api :as crux]
+            [crux.index :as idx]
             [crux.sparql :as sparql]
             [clojure.data.json :as json])
   (:import (java.time Duration)))
@@ -129,6 +130,26 @@
                          (bench/run-bench (format "query-%d" idx)
                                           {:result-count (count (crux/q (crux/db node) (sparql/sparql->datalog q)))})))))))))))
 
+(defn run-sorted-array-join-bench
+  "Compares the WatDiv queries joining in-memory relations via sorted sets vs sorted arrays (see `crux.index/max-sorted-array-index-size`)"
+  [node {:keys [test-count]}]
+  (bench/with-bench-ns :watdiv-sorted-array-join
+    (bench/with-crux-dimensions
+      (ingest-crux node)
+      (bench/compact-node node)
+
+      (watdiv/with-watdiv-queries watdiv/watdiv-stress-100-1-sparql
+        (fn [queries]
+          (let [queries (cond->> queries test-count (take test-count))]
+            (vec (for [[join-type max-sorted-array-index-size] [[:sorted-set-join 0]
+                                                                [:sorted-array-join idx/max-sorted-array-index-size]]]
+                   (with-redefs [idx/max-sorted-array-index-size max-sorted-array-index-size]
+                     (bench/run-bench join-type
+                       {:result-count (->> queries
+                                           (map (fn [{:keys [q]}]
+                                                  (count (crux/q (crux/db node) (sparql/sparql->datalog q)))))
+                                           (reduce +))}))))))))))
+
 (comment
   (def foo-raw-watdiv-results
     (with-redefs [watdiv/watdiv-input-file (io/file "crux-bench/data/watdiv.10.nt")]
@@ -0,0 +1,219 @@
+(ns ^:no-doc crux.cache.id-table
+  (:require [crux.cache.lru :as lru]
+            [crux.codec :as c]
+            [crux.io :as cio]
+            [crux.memory :as mem]
+            [crux.system :as sys])
+  (:import crux.cache.ICache
+           java.util.concurrent.locks.StampedLock
+           java.util.function.Supplier
+           [org.agrona DirectBuffer MutableDirectBuffer]))
+
+(set! *unchecked-math* :warn-on-boxed)
+
+;; An off-heap, open-addressing hash table from id buffers to id buffers
+;; (or nil), meant for the entity resolver: eid -> content-hash.
+;; Avoids the per-entry key copies and map nodes of the on-heap caches.
+;; Ids are already hashes, so we use their bytes directly to place them.
+;; Probing is limited to `max-probes` slots - once the table has reached
+;; its maximum size, a full probe sequence overwrites its first slot.
+;; Keys that aren't id buffers (e.g. string eids) go to a fallback LRU cache.
+;; Hits are returned in a reused, per-thread buffer - callers that hold on to
+;; a value past their next lookup copy it.
+
+;; slot: [state byte][key id][value id]
+(def ^:private ^:const empty-slot 0)
+(def ^:private ^:const value-slot 1)
+(def ^:private ^:const nil-slot 2)
+(def ^:private ^:const evicted-slot 3)
+
+(def ^:private ^:const slot-size (+ Byte/BYTES c/id-size c/id-size))
+(def ^:private ^:const max-probes 8)
+(def ^:private ^:const initial-slots 1024)
+
+(assert (= 21 c/id-size) "key-at? assumes 21 byte ids")
+
+(defn- new-table ^org.agrona.MutableDirectBuffer [^long n-slots]
+  (mem/allocate-unpooled-buffer (* n-slots slot-size)))
+
+(defn- home-slot ^long [^DirectBuffer k ^long n-slots]
+  (bit-and (.getInt k c/value-type-id-size) (dec n-slots)))
+
+(defn- key-at? [^DirectBuffer table ^long offset ^DirectBuffer k]
+  (let [offset (inc offset)]
+    (and (= (.getLong table offset) (.getLong k 0))
+         (= (.getLong table (+ offset 8)) (.getLong k 8))
+         (= (.getInt table (+ offset 16)) (.getInt k 16))
+         (= (.getByte table (+ offset 20)) (.getByte k 20)))))
+
+(defn- find-offset
+  "offset of `k`'s slot, -1 if absent"
+  ^long [^DirectBuffer table ^long n-slots ^DirectBuffer k]
+  (let [home (home-slot k n-slots)]
+    (loop [i 0]
+      (if (< i max-probes)
+        (let [offset (* (bit-and (+ home i) (dec n-slots)) slot-size)
+              state (.getByte table offset)]
+          (cond
+            (= state empty-slot) -1
+            (and (not= state evicted-slot) (key-at? table offset k)) offset
+            :else (recur (inc i))))
+        -1))))
+
+(defn- free-offset
+  "offset of the slot to store `k` in, -1 if the probe sequence is full"
+  ^long [^DirectBuffer table ^long n-slots ^DirectBuffer k]
+  (let [home (home-slot k n-slots)]
+    (loop [i 0
+           free -1]
+      (if (< i max-probes)
+        (let [offset (* (bit-and (+ home i) (dec n-slots)) slot-size)
+              state (.getByte table offset)]
+          (cond
+            (= state empty-slot) (if (neg? free) offset free)
+            (and (not= state evicted-slot) (key-at? table offset k)) offset
+            (and (= state evicted-slot) (neg? free)) (recur (inc i) offset)
+            :else (recur (inc i) free)))
+        free))))
+
+(defn- put-slot! [^MutableDirectBuffer table ^long offset ^DirectBuffer k ^DirectBuffer v]
+  (doto table
+    (.putByte offset (if v value-slot nil-slot))
+    (.putBytes (inc offset) k 0 c/id-size))
+  (when v
+    (.putBytes table (+ offset 1 c/id-size) v 0 c/id-size)))
+
+(defn- slot-value [^DirectBuffer table ^long offset ^ThreadLocal value-tl]
+  (when (= value-slot (.getByte table offset))
+    (doto ^MutableDirectBuffer (.get value-tl)
+      (.putBytes 0 table (+ offset 1 c/id-size) c/id-size))))
+
+(defn- rehash ^org.agrona.MutableDirectBuffer [^DirectBuffer table ^long n-slots ^long new-n-slots]
+  (let [new-table (new-table new-n-slots)]
+    (dotimes [slot n-slots]
+      (let [offset (* slot slot-size)
+            state (.getByte table offset)]
+        (when (or (= state value-slot) (= state nil-slot))
+          (let [k (mem/slice-buffer table (inc offset) c/id-size)
+                new-offset (free-offset new-table new-n-slots k)]
+            (when-not (neg? new-offset)
+              (.putBytes new-table new-offset table offset slot-size))))))
+    new-table))
+
+(defn- count-used
+  "entries that can't be placed in a smaller probe sequence are dropped by `rehash`, so we recount"
+  ^long [^DirectBuffer table ^long n-slots]
+  (loop [slot 0
+         n 0]
+    (if (< slot n-slots)
+      (let [state (.getByte table (* slot slot-size))]
+        (recur (inc slot)
+               (if (or (= state value-slot) (= state nil-slot)) (inc n) n)))
+      n)))
+
+(defn- id-key? [k]
+  (and (instance? DirectBuffer k)
+       (= c/id-size (.capacity ^DirectBuffer k))))
+
+(defn- id-value? [v]
+  (or (nil? v)
+      (and (instance? DirectBuffer v)
+           (= c/id-size (.capacity ^DirectBuffer v)))))
+
+(defprotocol IdTable
+  (clear! [this] "empties the table, keeping its memory to be reused"))
+
+(deftype IdTableCache [^:unsynchronized-mutable ^MutableDirectBuffer table
+                       ^:unsynchronized-mutable ^long n-slots
+                       ^:unsynchronized-mutable ^long n-used
+                       ^long max-slots
+                       ^ICache fallback
+                       ^StampedLock lock
+                       ^ThreadLocal value-tl]
+  Object
+  (toString [_]
+    (str "#<IdTableCache " n-used "/" n-slots ">"))
+
+  ICache
+  (computeIfAbsent [this k stored-key-fn f]
+    (if-not (id-key? k)
+      (.computeIfAbsent fallback k stored-key-fn f)
+      (let [v (.valAt this k ::not-found)]
+        (if (= ::not-found v)
+          (let [v (f k)]
+            (if-not (id-value? v)
+              v
+              ;; NOTE: the locks must stay in return position, `try` elsewhere is wrapped in a closure, which can't `set!` fields
+              (cio/with-write-lock lock
+                (when table
+                  (when (or (> (* 2 n-used) n-slots)
+                            (neg? (free-offset table n-slots k)))
+                    (when (< n-slots max-slots)
+                      (set! table (rehash table n-slots (* 2 n-slots)))
+                      (set! n-slots (* 2 n-slots))
+                      (set! n-used (count-used table n-slots))))
+                  (let [offset (free-offset table n-slots k)
+                        offset (if (neg? offset)
+                                 (* (home-slot k n-slots) slot-size)
+                                 offset)]
+                    (let [state (.getByte table offset)]
+                      (when-not (or (= state value-slot) (= state nil-slot))
+                        (set! n-used (inc n-used))))
+                    (put-slot! table offset k v)))
+                v)))
+          v))))
+
+  (evict [_ k]
+    (if-not (id-key? k)
+      (.evict fallback k)
+      (cio/with-write-lock lock
+        (when table
+          (let [offset (find-offset table n-slots k)]
+            (when-not (neg? offset)
+              (.putByte table offset evicted-slot)
+              (set! n-used (dec n-used))))))))
+
+  (valAt [this k]
+    (.valAt this k nil))
+
+  (valAt [_ k default]
+    (if-not (id-key? k)
+      (.valAt fallback k default)
+      (cio/with-read-lock lock
+        (let [offset (if table (find-offset table n-slots k) -1)]
+          (if (neg? offset)
+            default
+            (slot-value table offset value-tl))))))
+
+  (count [_]
+    (+ n-used (count fallback)))
+
+  IdTable
+  (clear! [_]
+    (.close fallback)
+    (cio/with-write-lock lock
+      (when (and table (pos? n-used))
+        (.setMemory table 0 (.capacity table) (byte empty-slot))
+        (set! n-used 0))))
+
+  (close [_]
+    (.close fallback)
+    ;; we drop the table so that its direct buffer can be freed - a closed cache passes everything through
+    (cio/with-write-lock lock
+      (set! table nil)
+      (set! n-slots 0)
+      (set! n-used 0))))
+
+(defn ->id-table-cache
+  {::sys/args {:cache-size {:doc "Cache size"
+                            :default (* 128 1024)
+                            :spec ::sys/nat-int}}}
+  ^crux.cache.ICache [{:keys [^long cache-size]
+                       :or {cache-size (* 128 1024)}}]
+  (let [max-slots (max initial-slots (Long/highestOneBit (max 1 (* 2 cache-size))))]
+    (->IdTableCache (new-table initial-slots) initial-slots 0 max-slots
+                    (lru/->lru-cache {:cache-size cache-size})
+                    (StampedLock.)
+                    (ThreadLocal/withInitial (reify Supplier
+                                               (get [_]
+                                                 (mem/on-heap-buffer (byte-array c/id-size))))))))
@@ -0,0 +1,94 @@
+(ns ^:no-doc crux.cache.off-heap
+  "An LRU cache of nippy-frozen values, held off-heap and bounded by their total size
+  in bytes rather than by entry count - values are thawed on each hit.
+
+  Intended for the document cache, where a handful of huge documents can otherwise
+  take up most of the heap, and many small ones leave it under-used."
+  (:require [crux.io :as cio]
+            [crux.memory :as mem]
+            [crux.system :as sys]
+            [juxt.clojars-mirrors.nippy.v3v1v1.taoensso.nippy :as nippy])
+  (:import crux.cache.ICache
+           [java.util Iterator LinkedHashMap Map$Entry]
+           java.util.concurrent.atomic.AtomicLong
+           java.util.concurrent.locks.StampedLock
+           org.agrona.DirectBuffer))
+
+(set! *unchecked-math* :warn-on-boxed)
+
+;; a rough allowance for the key buffer's and the map entry's on-heap objects
+(def ^:private ^:const entry-overhead-bytes 128)
+
+(defn- entry-weight ^long [^DirectBuffer k ^DirectBuffer frozen-v]
+  (+ entry-overhead-bytes (.capacity k) (.capacity frozen-v)))
+
+(defn- freeze-off-heap ^org.agrona.DirectBuffer [v]
+  (let [bs (nippy/fast-freeze v)]
+    (mem/->off-heap bs (mem/allocate-unpooled-buffer (alength bs)))))
+
+(defn- thaw-off-heap [^DirectBuffer frozen-v]
+  (cio/with-nippy-thaw-all
+    (nippy/fast-thaw (mem/->on-heap frozen-v))))
+
+(defn- evict-eldest! [^LinkedHashMap cache ^AtomicLong !bytes ^long max-bytes]
+  (let [^Iterator it (.iterator (.entrySet cache))]
+    (while (and (> (.get !bytes) max-bytes) (.hasNext it))
+      (let [^Map$Entry entry (.next it)]
+        (.addAndGet !bytes (- (entry-weight (.getKey entry) (.getValue entry))))
+        (.remove it)))))
+
+(deftype OffHeapCache [^LinkedHashMap cache ^StampedLock lock ^long max-bytes ^AtomicLong !bytes]
+  Object
+  (toString [_]
+    (format "#<OffHeapCache %d entries, %d bytes>" (.size cache) (.get !bytes)))
+
+  ICache
+  (computeIfAbsent [this k stored-key-fn f]
+    (let [v (.valAt this k ::not-found)] ; use ::not-found as values can be falsy
+      (if (identical? ::not-found v)
+        (let [k (stored-key-fn k)
+              v (f k)
+              ;; freeze before we take the lock
+              frozen-v (freeze-off-heap v)
+              weight (entry-weight k frozen-v)]
+          ;; values bigger than the whole cache aren't worth evicting everything else for
+          (when (<= weight max-bytes)
+            (cio/with-write-lock lock
+              (when-not (.containsKey cache k)
+                (.put cache k frozen-v)
+                (.addAndGet !bytes weight)
+                (evict-eldest! cache !bytes max-bytes))))
+          v)
+        v)))
+
+  (evict [_ k]
+    (cio/with-write-lock lock
+      (when-let [frozen-v (.remove cache k)]
+        (.addAndGet !bytes (- (entry-weight k frozen-v))))))
+
+  (valAt [this k]
+    (.valAt this k nil))
+
+  (valAt [_ k default]
+    ;; access-ordered, so even `get` needs the write lock
+    (if-let [frozen-v (cio/with-write-lock lock
+                        (.get cache k))]
+      ;; thawed outside the lock - we don't re-use the buffer once it's evicted, so this is safe
+      (thaw-off-heap frozen-v)
+      default))
+
+  (count [_]
+    (.size cache))
+
+  (close [_]
+    (cio/with-write-lock lock
+      (.clear cache)
+      (.set !bytes 0))))
+
+(defn ->off-heap-cache
+  {::sys/args {:max-bytes {:doc "Maximum total size of the (frozen) cached values, in bytes"
+                           :default (* 256 1024 1024)
+                           :spec ::sys/pos-int}}}
+  ^crux.cache.ICache [{:keys [^long max-bytes]
+                       :or {max-bytes (* 256 1024 1024)}}]
+  (->OffHeapCache (LinkedHashMap. 16 0.75 true) (StampedLock.) max-bytes (AtomicLong.)))
@@ -40,7 +40,8 @@
   (all-attrs [this])
   (doc-count [this attr])
   (^double value-cardinality [this attr])
-  (^double eid-cardinality [this attr]))
+  (^double eid-cardinality [this attr])
+  (value-histogram [this attr] "a `crux.histogram.Histogram` of the attribute's values, nil if unknown"))
 
 (defprotocol IndexSnapshot
   (av [this a min-v])
@@ -23,6 +23,32 @@
        (f)))
    pool))
 
+(defprotocol LocalDocumentCache
+  "A second-level cache, between the in-memory document cache and a remote document store."
+  (fetch-cached-docs [_ ids] "the docs we have locally, id -> doc")
+  (cache-docs! [_ id-and-docs])
+  (evict-cached-docs! [_ ids]))
+
+(defrecord LocalCachedDocumentStore [local-document-cache document-store]
+  db/DocumentStore
+  (fetch-docs [this ids]
+    (let [cached-id->docs (fetch-cached-docs local-document-cache ids)
+          missing-ids (remove #(contains? cached-id->docs %) ids)
+          missing-id->docs (when (seq missing-ids)
+                             (db/fetch-docs document-store missing-ids))]
+      (when (seq missing-id->docs)
+        (cache-docs! local-document-cache missing-id->docs))
+      (merge cached-id->docs missing-id->docs)))
+
+  (submit-docs [this id-and-docs]
+    (db/submit-docs document-store id-and-docs)
+    ;; only ever evictions - docs are otherwise immutable, and new ones aren't cached until they're fetched
+    (evict-cached-docs! local-document-cache (map key id-and-docs)))
+
+  Closeable
+  (close [_]
+    (cio/try-close document-store)))
+
 (defrecord CachedDocumentStore [cache document-store]
   db/DocumentStore
   (fetch-docs [this ids]
@@ -63,8 +89,10 @@
 (defn ->cached-document-store
   {::sys/deps {:document-store :crux/document-store
                :document-cache 'crux.cache/->cache}}
-  [{:keys [document-cache document-store]}]
-  (->CachedDocumentStore document-cache document-store))
+  [{:keys [document-cache local-document-cache document-store]}]
+  (->CachedDocumentStore document-cache
+                         (cond->> document-store
+                           local-document-cache (->LocalCachedDocumentStore local-document-cache))))
 
 (defrecord NIODocumentStore [^Path root-path, ^ExecutorService pool]
   db/DocumentStore
@@ -104,7 +132,8 @@
       (.shutdownNow)
       (.awaitTermination 15 TimeUnit/SECONDS))))
 
-(defn ->nio-document-store {::sys/deps {:document-cache 'crux.cache/->cache}
+(defn ->nio-document-store {::sys/deps {:document-cache 'crux.cache/->cache
+                                        :local-document-cache 'crux.document-store.disk-cache/->disk-cache}
                             ::sys/args {:root-path {:doc "Path to store documents"
                                                     :required? true
                                                     :spec ::sys/path}
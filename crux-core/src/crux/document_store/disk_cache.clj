@@ -0,0 +1,249 @@
+(ns ^:no-doc crux.document-store.disk-cache
+  "A local, on-disk, second-level cache of nippy-encoded documents, sitting between
+  the in-memory document cache and a remote document store.
+
+  Documents are appended to memory-mapped segment files. Once there are
+  `max-segments` segments, the oldest is recycled, CLOCK-style: documents that have
+  been read since they were written get a second chance (they're copied into the
+  current segment), the rest are dropped along with the segment. The index is rebuilt
+  from the segments on startup, so the cache survives restarts."
+  (:require [clojure.string :as str]
+            [clojure.tools.logging :as log]
+            [crux.codec :as c]
+            [crux.document-store :as ds]
+            [crux.io :as cio]
+            [crux.memory :as mem]
+            [crux.status :as status]
+            [crux.system :as sys]
+            [juxt.clojars-mirrors.nippy.v3v1v1.taoensso.nippy :as nippy])
+  (:import java.io.Closeable
+           java.io.RandomAccessFile
+           java.nio.MappedByteBuffer
+           java.nio.channels.FileChannel$MapMode
+           [java.nio.file Files Path]
+           java.nio.file.attribute.FileAttribute
+           [java.util HashMap HashSet Iterator Map$Entry TreeMap]
+           java.util.concurrent.atomic.AtomicLong
+           java.util.zip.CRC32
+           org.agrona.DirectBuffer
+           org.agrona.concurrent.UnsafeBuffer))
+
+;; entry: [len int][crc int][id][frozen doc] - a len of -1 is a tombstone, 0 is the end of the segment
+;; the crc covers the id as well as the doc
+(def ^:private ^:const header-size (+ Integer/BYTES Integer/BYTES c/id-size))
+(def ^:private ^:const crc-offset Integer/BYTES)
+(def ^:private ^:const id-offset (+ Integer/BYTES Integer/BYTES))
+(def ^:private ^:const tombstone-len -1)
+
+(defn- crc32 ^long [^bytes id-bs ^bytes bs]
+  (.getValue (doto (CRC32.) (.update id-bs) (.update bs))))
+
+(defn- read-bytes ^bytes [^UnsafeBuffer buffer ^long pos ^long len]
+  (let [bs (byte-array len)]
+    (.getBytes buffer pos bs)
+    bs))
+
+(defn- segment-path ^java.nio.file.Path [^Path root-path ^long segment-id]
+  (.resolve root-path (format "%016x.seg" segment-id)))
+
+(defn- existing-segment-ids [^Path root-path]
+  (with-open [dir-stream (Files/newDirectoryStream root-path "*.seg")]
+    (->> (for [^Path path dir-stream]
+           (Long/parseLong (str/replace (str (.getFileName path)) #"\.seg$" "") 16))
+         sort
+         vec)))
+
+(defn- open-segment [^Path root-path ^long segment-id ^long segment-size]
+  (let [path (segment-path root-path segment-id)]
+    ;; the mapping stays valid once the file's closed
+    (with-open [raf (RandomAccessFile. (.toFile path) "rw")]
+      (when (< (.length raf) segment-size)
+        (.setLength raf segment-size))
+      (let [mapped (.map (.getChannel raf) FileChannel$MapMode/READ_WRITE 0 (.length raf))]
+        {:segment-id segment-id
+         :path path
+         :mapped mapped
+         :buffer (UnsafeBuffer. ^MappedByteBuffer mapped)}))))
+
+(defn- scan-segment!
+  "indexes the segment's entries - stops at the end of the segment, or at a torn entry"
+  [^HashMap index {:keys [segment-id ^UnsafeBuffer buffer]}]
+  (let [capacity (.capacity buffer)
+        read-id (fn [^long pos]
+                  (c/new-id (mem/as-buffer (read-bytes buffer (+ pos id-offset) c/id-size))))]
+    (loop [pos 0]
+      (when (<= (+ pos header-size) capacity)
+        (let [len (.getInt buffer pos)]
+          (cond
+            (= len tombstone-len)
+            (do
+              (.remove index (read-id pos))
+              (recur (+ pos header-size)))
+
+            (and (pos? len)
+                 (<= (+ pos header-size len) capacity)
+                 (= (.getInt buffer (+ pos crc-offset))
+                    (unchecked-int (crc32 (read-bytes buffer (+ pos id-offset) c/id-size)
+                                         (read-bytes buffer (+ pos header-size) len)))))
+            (do
+              (.put index (read-id pos) [segment-id pos len])
+              (recur (+ pos header-size len)))))))))
+
+(declare append-entry!)
+
+(defn- recycle-oldest-segment!
+  "CLOCK, a segment at a time - docs read since they were written get a second chance,
+  the rest are dropped along with the segment."
+  [{:keys [^TreeMap segments ^HashMap index ^HashSet referenced] :as cache}]
+  (let [{oldest-segment-id :segment-id, :keys [^UnsafeBuffer buffer ^Path path]} (.getValue (.pollFirstEntry segments))
+        second-chances (let [^Iterator it (.iterator (.entrySet index))]
+                         (loop [second-chances []]
+                           (if (.hasNext it)
+                             (let [^Map$Entry entry (.next it)
+                                   id (.getKey entry)
+                                   [segment-id pos len] (.getValue entry)]
+                               (if (= segment-id oldest-segment-id)
+                                 (do
+                                   (.remove it)
+                                   (recur (cond-> second-chances
+                                            (.remove referenced id) (conj [id (read-bytes buffer (+ (long pos) header-size) len)]))))
+                                 (recur second-chances)))
+                             second-chances)))]
+    (try
+      (Files/deleteIfExists path)
+      (catch Exception e
+        (log/warn e "Couldn't delete document cache segment" (str path))))
+
+    (doseq [[id bs] second-chances]
+      (append-entry! cache id bs))))
+
+(defn- roll-segment! [{:keys [root-path ^TreeMap segments segment-size ^long max-segments !position] :as cache}]
+  (let [segment-id (inc (long (or (some-> (.lastEntry segments) (.getKey)) -1)))]
+    (.put segments segment-id (open-segment root-path segment-id segment-size))
+    (vreset! !position 0)
+    (while (> (.size segments) max-segments)
+      (recycle-oldest-segment! cache))))
+
+(defn- append-entry!
+  "appends the frozen doc - or, if `bs` is nil, a tombstone. callers hold the lock."
+  [{:keys [^TreeMap segments ^HashMap index !position] :as cache} id ^bytes bs]
+  (let [len (if bs (alength bs) 0)
+        entry-size (+ header-size len)]
+    ;; recycling the oldest segment copies its second-chance docs into the new one, which may leave no room for this entry
+    (while (> (+ (long @!position) entry-size)
+              (.capacity ^UnsafeBuffer (:buffer (.getValue (.lastEntry segments)))))
+      (roll-segment! cache))
+
+    (let [{:keys [segment-id ^UnsafeBuffer buffer]} (.getValue (.lastEntry segments))
+          pos (long @!position)]
+      (.putBytes buffer (+ pos id-offset) ^DirectBuffer (c/->id-buffer id) 0 c/id-size)
+      ;; len goes last - it's what marks the entry as written
+      (if bs
+        (do
+          (.putBytes buffer (+ pos header-size) bs)
+          (.putInt buffer (+ pos crc-offset) (unchecked-int (crc32 (read-bytes buffer (+ pos id-offset) c/id-size) bs)))
+          (.putInt buffer pos len)
+          (.put index id [segment-id pos len]))
+        (do
+          (.putInt buffer pos tombstone-len)
+          (.remove index id)))
+      (vreset! !position (+ pos entry-size)))))
+
+(defrecord DiskDocumentCache [^Path root-path ^long segment-size ^long max-segments lock
+                              ^HashMap index ^HashSet referenced ^TreeMap segments !position
+                              ^AtomicLong !hits ^AtomicLong !misses]
+  ds/LocalDocumentCache
+  (fetch-cached-docs [_ ids]
+    (let [id->frozen-doc (locking lock
+                           (persistent!
+                            (reduce (fn [acc id]
+                                      (let [k (c/new-id id)]
+                                        (if-let [[segment-id pos len] (.get index k)]
+                                          (do
+                                            (.add referenced (c/safe-id k))
+                                            (assoc! acc id (read-bytes (:buffer (.get segments segment-id)) (+ (long pos) header-size) len)))
+                                          acc)))
+                                    (transient {})
+                                    ids)))]
+      (.addAndGet !hits (count id->frozen-doc))
+      (.addAndGet !misses (- (count ids) (count id->frozen-doc)))
+
+      (cio/with-nippy-thaw-all
+        (->> id->frozen-doc
+             (into {} (map (fn [[id bs]]
+                             [id (nippy/thaw bs)])))))))
+
+  (cache-docs! [_ id-and-docs]
+    (let [frozen-docs (vec (for [[id doc] id-and-docs
+                                 :let [bs (nippy/freeze doc)]
+                                 ;; docs bigger than a segment stay remote
+                                 :when (<= (+ header-size (alength bs)) segment-size)]
+                             [(c/safe-id (c/new-id id)) bs]))]
+      (locking lock
+        (doseq [[id bs] frozen-docs
+                :when (not (.containsKey index id))]
+          (append-entry! this id bs)))))
+
+  (evict-cached-docs! [this ids]
+    (locking lock
+      (doseq [id ids
+              :let [id (c/safe-id (c/new-id id))]
+              :when (.containsKey index id)]
+        (append-entry! this id nil)
+        (.remove referenced id))))
+
+  status/Status
+  (status-map [_]
+    (let [hits (.get !hits)
+          misses (.get !misses)]
+      {::hits hits
+       ::misses misses
+       ::hit-rate (when (pos? (+ hits misses))
+                    (double (/ hits (+ hits misses))))
+       ::doc-count (locking lock
+                     (.size index))}))
+
+  Closeable
+  (close [_]
+    (locking lock
+      (doseq [{:keys [^MappedByteBuffer mapped]} (.values segments)]
+        (.force mapped)))))
+
+(defn ->disk-cache
+  "Returns nil (no local cache) unless there's a `root-path`."
+  {::sys/args {:root-path {:doc "Path to store the cached documents - the local cache is disabled if not provided"
+                           :spec ::sys/path}
+               :segment-size {:doc "Size of each (memory-mapped) segment file, in bytes"
+                              :required? true
+                              :default (* 64 1024 1024)
+                              :spec ::sys/pos-int}
+               :max-segments {:doc "Number of segments kept - the cache takes up to `segment-size` * `max-segments` bytes on disk"
+                              :required? true
+                              :default 16
+                              :spec ::sys/pos-int}}}
+  [{:keys [^Path root-path ^long segment-size ^long max-segments]}]
+  (when root-path
+    (Files/createDirectories root-path (make-array FileAttribute 0))
+
+    (let [index (HashMap.)
+          segments (TreeMap.)]
+      (doseq [segment-id (existing-segment-ids root-path)]
+        (let [segment (open-segment root-path segment-id segment-size)]
+          (.put segments segment-id segment)
+          (scan-segment! index segment)))
+
+      (let [cache (map->DiskDocumentCache {:root-path root-path
+                                           :segment-size segment-size
+                                           ;; we need the current segment, and at least one more
+                                           :max-segments (max 2 max-segments)
+                                           :lock (Object.)
+                                           :index index
+                                           :referenced (HashSet.)
+                                           :segments segments
+                                           :!position (volatile! 0)
+                                           :!hits (AtomicLong.)
+                                           :!misses (AtomicLong.)})]
+        ;; we don't append to the previous run's last segment - it may end in a torn entry
+        (locking (:lock cache)
+          (roll-segment! cache))
+        cache))))
@@ -83,6 +83,7 @@
   (doc-count [_ attr] (db/doc-count index-snapshot attr))
   (value-cardinality [_ attr] (db/value-cardinality index-snapshot attr))
   (eid-cardinality [_ attr] (db/eid-cardinality index-snapshot attr))
+  (value-histogram [_ attr] (db/value-histogram index-snapshot attr))
 
   db/IndexMeta
   (-read-index-meta [_ k not-found]
@@ -178,6 +179,10 @@
     (or (db/eid-cardinality transient-index-snapshot attr)
         (db/eid-cardinality persistent-index-snapshot attr)))
 
+  (value-histogram [_ attr]
+    (or (db/value-histogram transient-index-snapshot attr)
+        (db/value-histogram persistent-index-snapshot attr)))
+
   db/IndexMeta
   (-read-index-meta [_ k not-found]
     (let [v (db/read-index-meta transient-index-snapshot k ::not-found)]
@@ -0,0 +1,157 @@
+(ns crux.histogram
+  (:require [crux.memory :as mem])
+  (:import [org.agrona DirectBuffer MutableDirectBuffer]
+           java.nio.ByteOrder))
+
+;; Bottom-k sampling: every value added is given a pseudo-random hash, and
+;; the sample keeps the k values with the lowest hashes - a uniform sample
+;; that's deterministic for a given sequence of additions.
+;; A sorted sample of k values is an equi-depth histogram with k buckets.
+
+;; https://dl.acm.org/doi/10.1145/1281192.1281216
+
+(def ^:const max-value-prefix-size 31)
+(def ^:const default-sample-size 128)
+
+;; [sampled-count int][max-hash long] followed by k [hash long][length byte][value prefix] slots
+(def ^:private ^:const header-size (+ Integer/BYTES Long/BYTES))
+(def ^:private ^:const slot-size (+ Long/BYTES Byte/BYTES max-value-prefix-size))
+
+(def ^{:tag 'int} default-buffer-size (+ header-size (* slot-size default-sample-size)))
+
+(defn- sample-size ^long [^DirectBuffer sample]
+  (quot (- (.capacity sample) header-size) slot-size))
+
+(defn- sampled-count ^long [^DirectBuffer sample]
+  (.getInt sample 0 ByteOrder/BIG_ENDIAN))
+
+(defn- max-hash ^long [^DirectBuffer sample]
+  (.getLong sample Integer/BYTES ByteOrder/BIG_ENDIAN))
+
+(defn- slot-offset ^long [^long slot]
+  (+ header-size (* slot slot-size)))
+
+(defn- slot-hash ^long [^DirectBuffer sample ^long slot]
+  (.getLong sample (slot-offset slot) ByteOrder/BIG_ENDIAN))
+
+(defn- slot-value ^org.agrona.DirectBuffer [^DirectBuffer sample ^long slot]
+  (let [offset (slot-offset slot)]
+    (mem/slice-buffer sample (+ offset Long/BYTES Byte/BYTES) (.getByte sample (+ offset Long/BYTES)))))
+
+(defn- put-slot [^MutableDirectBuffer sample ^long slot ^long h ^DirectBuffer v]
+  (let [offset (slot-offset slot)
+        length (min (.capacity v) max-value-prefix-size)]
+    (doto sample
+      (.putLong offset h ByteOrder/BIG_ENDIAN)
+      (.putByte (+ offset Long/BYTES) (byte length))
+      (.putBytes (+ offset Long/BYTES Byte/BYTES) v 0 length))))
+
+;; murmur3's fmix64
+(defn- mix ^long [^long h]
+  (let [h (unchecked-multiply (bit-xor h (unsigned-bit-shift-right h 33)) -49064778989728563)
+        h (unchecked-multiply (bit-xor h (unsigned-bit-shift-right h 33)) -4265267296055464877)]
+    (bit-xor h (unsigned-bit-shift-right h 33))))
+
+(defn- value-hash ^long [^DirectBuffer v ^long salt]
+  (loop [n 0
+         h salt]
+    (if (< n (.capacity v))
+      (recur (inc n) (unchecked-add (unchecked-multiply h 31) (.getByte v n)))
+      (mix h))))
+
+(defn new-sample ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b]
+  (doto b
+    (.putInt 0 0 ByteOrder/BIG_ENDIAN)
+    (.putLong Integer/BYTES Long/MIN_VALUE ByteOrder/BIG_ENDIAN)))
+
+(defn add
+  "`salt` should differ for each occurrence of a value (e.g. a running count),
+  so that repeated values are sampled in proportion to their frequency."
+  ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer sample ^DirectBuffer v ^long salt]
+  (let [h (value-hash v salt)
+        n (sampled-count sample)]
+    (cond
+      (< n (sample-size sample))
+      (doto sample
+        (put-slot n h v)
+        (.putInt 0 (inc n) ByteOrder/BIG_ENDIAN)
+        (.putLong Integer/BYTES (max h (max-hash sample)) ByteOrder/BIG_ENDIAN))
+
+      (< h (max-hash sample))
+      (let [max-h (max-hash sample)
+            slot (loop [slot 0]
+                   (if (= max-h (slot-hash sample slot))
+                     slot
+                     (recur (inc slot))))]
+        (put-slot sample slot h v)
+        (doto sample
+          (.putLong Integer/BYTES
+                    (loop [slot 0
+                           acc Long/MIN_VALUE]
+                      (if (< slot n)
+                        (recur (inc slot) (max acc (slot-hash sample slot)))
+                        acc))
+                    ByteOrder/BIG_ENDIAN)))
+
+      :else
+      sample)))
+
+(defrecord Histogram [^long total-count sorted-values])
+
+(defn ->histogram
+  "`total-count` is the number of values ever added to `sample`."
+  [^DirectBuffer sample ^long total-count]
+  (->Histogram total-count
+               (->> (for [slot (range (sampled-count sample))]
+                      (mem/copy-to-unpooled-buffer (slot-value sample slot)))
+                    (sort mem/buffer-comparator)
+                    (vec))))
+
+(defn exhaustive?
+  "true if every value added is in the sample, so estimates are exact (up to the value prefix)."
+  [{:keys [^long total-count sorted-values]}]
+  (<= total-count (count sorted-values)))
+
+(defn- value-prefix ^org.agrona.DirectBuffer [^DirectBuffer v]
+  (cond-> v
+    (> (.capacity v) max-value-prefix-size) (mem/limit-buffer max-value-prefix-size)))
+
+(defn- estimate-matches ^double [{:keys [^long total-count sorted-values] :as histogram} ^long matches]
+  (let [sampled (count sorted-values)]
+    (cond
+      (exhaustive? histogram) (double matches)
+      (pos? matches) (* total-count (/ (double matches) sampled))
+      ;; rarer than a single bucket
+      :else (/ (double total-count) (inc sampled)))))
+
+(defn estimate-equal
+  "Estimated number of values equal to the encoded value `v`, nil if nothing has been sampled."
+  [{:keys [sorted-values] :as histogram} ^DirectBuffer v]
+  (let [sampled (count sorted-values)]
+    (when (pos? sampled)
+      (let [v (value-prefix v)]
+        (estimate-matches histogram (count (filter #(zero? (.compare mem/buffer-comparator v %)) sorted-values)))))))
+
+(defn- range-match? [^DirectBuffer sampled-v [op ^DirectBuffer v]]
+  ;; ranges only match values of the same type
+  (and (= (.getByte sampled-v 0) (.getByte v 0))
+       (let [cmp (.compare mem/buffer-comparator sampled-v v)]
+         (case op
+           < (neg? cmp)
+           <= (not (pos? cmp))
+           > (pos? cmp)
+           >= (not (neg? cmp))
+           = (zero? cmp)))))
+
+(defn estimate-range
+  "Estimated number of values satisfying all of the `[op v]` constraints -
+  `op` one of `< <= > >= =`, `v` an encoded value. nil if nothing has been sampled."
+  [{:keys [sorted-values] :as histogram} constraints]
+  (let [sampled (count sorted-values)]
+    (when (pos? sampled)
+      (let [constraints (for [[op v] constraints]
+                          [op (value-prefix v)])
+            matches (count (filter (fn [sampled-v]
+                                     (every? #(range-match? sampled-v %) constraints))
+                                   sorted-values))]
+        (estimate-matches histogram matches)))))
@@ -329,8 +329,63 @@
     (when (and iterator (.hasNext iterator))
       (.next iterator))))
 
-(defn- new-sorted-virtual-index [s]
-  (->SortedVirtualIndex s nil))
+(defn- first-index-of-at-least
+  "binary search for the index of the first value in [lo, hi) >= k, hi if none."
+  ^long [^objects values ^DirectBuffer k ^long lo ^long hi]
+  (loop [lo lo, hi hi]
+    (if (< lo hi)
+      (let [mid (unsigned-bit-shift-right (+ lo hi) 1)]
+        (if (neg? (mem/compare-buffers (aget values mid) k))
+          (recur (inc mid) hi)
+          (recur lo mid)))
+      lo)))
+
+(defn- gallop
+  "finds the index of the first value >= k, given that everything before `from` is < k.
+  leapfrog seeks tend to land close to the current position, so we probe exponentially further ahead before bisecting."
+  ^long [^objects values ^DirectBuffer k ^long from]
+  (let [n (alength values)]
+    (loop [lo from, step 1]
+      (let [hi (+ lo step)]
+        (if (and (< hi n) (neg? (mem/compare-buffers (aget values hi) k)))
+          (recur (inc hi) (bit-shift-left step 1))
+          (first-index-of-at-least values k lo (min hi n)))))))
+
+;; Sorted array of the (already off-heap) value buffers. Unlike
+;; SortedVirtualIndex, seeks don't allocate tail-set views or iterators.
+(deftype SortedArrayVirtualIndex [^objects values ^:unsynchronized-mutable ^long idx]
+  db/Index
+  (seek-values [this k]
+    (let [n (alength values)
+          new-idx (cond
+                    (nil? k) 0
+
+                    (and (< idx n)
+                         (neg? (mem/compare-buffers (aget values idx) k)))
+                    (gallop values k idx)
+
+                    :else (first-index-of-at-least values k 0 (min n (inc idx))))]
+      (set! idx new-idx)
+      (when (< new-idx n)
+        (aget values new-idx))))
+
+  (next-values [this]
+    (let [n (alength values)]
+      (when (< idx n)
+        (let [new-idx (inc idx)]
+          (set! idx new-idx)
+          (when (< new-idx n)
+            (aget values new-idx)))))))
+
+;; in-memory sets up to this size are copied into a SortedArrayVirtualIndex,
+;; bigger ones are navigated in place
+(def max-sorted-array-index-size 4096)
+
+(defn- new-sorted-virtual-index [^NavigableSet s]
+  (if (<= (.size s) (long max-sorted-array-index-size))
+    (let [values (.toArray s)]
+      (->SortedArrayVirtualIndex values (alength values)))
+    (->SortedVirtualIndex s nil)))
 
 (definterface IRelationVirtualIndexUpdate
   (^void updateIndex [tree rootIndex]))
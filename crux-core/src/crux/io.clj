@@ -126,7 +126,7 @@
   (let [sorted-seqs (remove empty? sorted-seqs)
         pq-comp (reify Comparator
                   (compare [_ [a] [b]]
-                    (comp a b)))]
+                    (.compare ^Comparator comp a b)))]
     (doto (PriorityQueue. (max 1 (count sorted-seqs)) pq-comp)
       (.addAll sorted-seqs))))
 
@@ -155,48 +155,99 @@
 (defmacro with-nippy-thaw-all [& body]
   `(with-nippy-thaw-all* (fn [] ~@body)))
 
+(defn- partition-by-size
+  "Lazily partitions `xs` into parts whose `size-fn` sizes sum to at most `max-part-size` -
+  an element bigger than that gets a part of its own."
+  [^long max-part-size size-fn xs]
+  (lazy-seq
+   (when (seq xs)
+     (loop [xs xs
+            part (transient [])
+            part-size 0]
+       (if-let [[x & more] (seq xs)]
+         (let [size (long (size-fn x))
+               part-size (+ part-size size)]
+           (if (and (> part-size max-part-size) (pos? (count part)))
+             (cons (persistent! part) (partition-by-size max-part-size size-fn xs))
+             (recur more (conj! part x) part-size)))
+         (list (persistent! part)))))))
+
+(defn- external-sort-parts [comp parts]
+  (with-nippy-thaw-all
+    (if (nil? (second parts))
+      (sort comp (first parts))
+      (let [files (->> parts
+                       (reduce
+                        (fn [acc part]
+                          (let [file (doto (File/createTempFile "crux-external-sort" ".nippy")
+                                       (.deleteOnExit))]
+                            (with-open [out (DataOutputStream. (io/output-stream file))]
+                              (doseq [x (sort comp part)]
+                                (nippy/freeze-to-out! out x)))
+                            (conj acc file)))
+                        []))
+            seq+cleaner-actions (for [^File file files]
+                                  (let [in (DataInputStream. (io/input-stream file))
+                                        cleaner-action (fn []
+                                                         (.close in)
+                                                         (.delete file))
+                                        seq ((fn step []
+                                               (lazy-seq
+                                                (try
+                                                  (when-let [x (nippy/thaw-from-in! in)]
+                                                    (cons x (step)))
+                                                  (catch Exception e
+                                                    (cleaner-action)
+                                                    (if (or (instance? IOException e)
+                                                            (instance? IOException (.getCause e)))
+                                                      nil
+                                                      (throw e)))))))]
+                                    [seq cleaner-action]))
+            pq (->> (map first seq+cleaner-actions)
+                    (new-merge-sort-priority-queue comp))]
+        (doseq [[_ cleaner-action] seq+cleaner-actions]
+          (register-cleaner pq cleaner-action))
+        (merge-sort-priority-queue->seq pq)))))
+
 (defn external-sort
   ([seq]
    (external-sort compare seq))
   ([comp seq]
    (external-sort comp seq default-external-sort-part-size))
   ([comp seq external-sort-part-size]
-   (with-nippy-thaw-all
-     (let [parts (partition-all external-sort-part-size seq)]
-       (if (nil? (second parts))
-         (sort comp (first parts))
-         (let [files (->> parts
-                          (reduce
-                           (fn [acc part]
-                             (let [file (doto (File/createTempFile "crux-external-sort" ".nippy")
-                                          (.deleteOnExit))]
-                               (with-open [out (DataOutputStream. (io/output-stream file))]
-                                 (doseq [x (sort comp part)]
-                                   (nippy/freeze-to-out! out x)))
-                               (conj acc file)))
-                           []))
-               seq+cleaner-actions (for [^File file files]
-                                     (let [in (DataInputStream. (io/input-stream file))
-                                           cleaner-action (fn []
-                                                            (.close in)
-                                                            (.delete file))
-                                           seq ((fn step []
-                                                  (lazy-seq
-                                                   (try
-                                                     (when-let [x (nippy/thaw-from-in! in)]
-                                                       (cons x (step)))
-                                                     (catch Exception e
-                                                       (cleaner-action)
-                                                       (if (or (instance? IOException e)
-                                                               (instance? IOException (.getCause e)))
-                                                         nil
-                                                         (throw e)))))))]
-                                       [seq cleaner-action]))
-               pq (->> (map first seq+cleaner-actions)
-                       (new-merge-sort-priority-queue comp))]
-           (doseq [[_ cleaner-action] seq+cleaner-actions]
-             (register-cleaner pq cleaner-action))
-           (merge-sort-priority-queue->seq pq)))))))
+   (external-sort-parts comp (partition-all external-sort-part-size seq))))
+
+(defn external-sort-by-size
+  "As `external-sort`, but each in-memory part holds elements whose `size-fn` sizes
+  (usually an estimate in bytes) sum to at most `max-part-size`."
+  [comp seq ^long max-part-size size-fn]
+  (external-sort-parts comp (partition-by-size max-part-size size-fn seq)))
+
+(defn top-k
+  "The first `k` elements of `xs`, sorted by `comp` - as `(take k (sort comp seq))`,
+  but holding at most `k` elements at a time. Equal elements keep their order in `xs`."
+  [comp ^long k xs]
+  (let [indexed-comp (reify Comparator
+                       (compare [_ [a ^long a-idx] [b ^long b-idx]]
+                         (let [diff (.compare ^Comparator comp a b)]
+                           (if (zero? diff)
+                             (Long/compare a-idx b-idx)
+                             diff))))
+        ;; the head of the queue is the greatest element kept so far
+        pq (PriorityQueue. (int (max 1 (min k 1024))) (Collections/reverseOrder indexed-comp))]
+    (when (pos? k)
+      (loop [idx 0
+             xs xs]
+        (when-let [[x & more] (seq xs)]
+          (let [indexed-x [x idx]]
+            (cond
+              (< (.size pq) k) (.add pq indexed-x)
+              (neg? (.compare indexed-comp indexed-x (.peek pq))) (doto pq
+                                                                     (.poll)
+                                                                     (.add indexed-x))))
+          (recur (inc idx) more))))
+    (->> (sort indexed-comp (vec pq))
+         (map first))))
 
 (defmacro with-read-lock [lock & body]
   `(let [^StampedLock lock# ~lock
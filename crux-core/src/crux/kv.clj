@@ -2,8 +2,11 @@
   "Protocols for KV backend implementations."
   (:refer-clojure :exclude [next])
   (:require [crux.io :as cio]
+            [crux.memory :as mem]
             [crux.status :as status]
-            [crux.system :as sys]))
+            [crux.system :as sys])
+  (:import java.io.Closeable
+           org.agrona.DirectBuffer))
 
 (defprotocol KvIterator
   (seek [this k])
@@ -15,6 +18,72 @@
   (new-iterator ^java.io.Closeable [this])
   (get-value [this k]))
 
+(defprotocol KvMultiGet
+  (multi-get [this ks]
+    "The values of `ks`, in the same order - nil where a key's missing.
+  Stores that can look up a batch of keys at once do so in key order."))
+
+(extend-protocol KvMultiGet
+  Object
+  (multi-get [this ks]
+    (mapv #(get-value this %) ks)))
+
+(defprotocol KvBoundedSnapshot
+  (new-bounded-iterator ^java.io.Closeable [this lower-bound upper-bound]
+    "An iterator over the keys in [lower-bound, upper-bound) - either bound may be nil.
+  Stores that can bound their iterators natively (e.g. RocksDB's
+  `iterate_upper_bound`) stop at the bound rather than scanning past it.")
+
+  (new-prefix-seek-iterator ^java.io.Closeable [this index-id]
+    "A reusable iterator over the keys whose first byte is `index-id`, for callers
+  that only read keys sharing a prefix with the key they seek. Stores with prefix
+  seeks (e.g. RocksDB's `prefix_same_as_start`) may stop at the end of their
+  fixed-length prefix, so callers still check their own prefix."))
+
+(defrecord BoundedKvIterator [i ^DirectBuffer lower-bound ^DirectBuffer upper-bound]
+  KvIterator
+  (seek [_ k]
+    (let [k (mem/as-buffer k)]
+      (when-let [k (seek i (if (and lower-bound (neg? (mem/compare-buffers k lower-bound)))
+                             lower-bound
+                             k))]
+        (when (or (nil? upper-bound) (neg? (mem/compare-buffers k upper-bound)))
+          k))))
+
+  (next [_]
+    (when-let [k (next i)]
+      (when (or (nil? upper-bound) (neg? (mem/compare-buffers k upper-bound)))
+        k)))
+
+  (prev [_]
+    (when-let [k (prev i)]
+      (when (or (nil? lower-bound) (not (neg? (mem/compare-buffers k lower-bound))))
+        k)))
+
+  (value [_]
+    (value i))
+
+  Closeable
+  (close [_]
+    (.close ^Closeable i)))
+
+(extend-protocol KvBoundedSnapshot
+  Object
+  (new-bounded-iterator [this lower-bound upper-bound]
+    (->BoundedKvIterator (new-iterator this)
+                         (some-> lower-bound mem/as-buffer)
+                         (some-> upper-bound mem/as-buffer)))
+
+  (new-prefix-seek-iterator [this _index-id]
+    (new-iterator this)))
+
+(defn new-prefix-iterator
+  "An iterator over the keys starting with `prefix`."
+  ^java.io.Closeable [snapshot prefix]
+  (let [prefix (mem/as-buffer prefix)]
+    (new-bounded-iterator snapshot prefix (-> (mem/copy-buffer prefix)
+                                              (mem/inc-unsigned-buffer!)))))
+
 ;; tag::KvStore[]
 (defprotocol KvStore
   (new-snapshot ^java.io.Closeable [this])
@@ -7,19 +7,11 @@
             [crux.kv :as kv]
             [crux.cache :as cache]
             [crux.system :as sys])
-  (:import java.util.function.Supplier
-           org.agrona.ExpandableDirectByteBuffer
-           crux.codec.Id
+  (:import crux.codec.Id
            clojure.lang.MapEntry
            (java.io Closeable)
            (org.agrona DirectBuffer MutableDirectBuffer)))
 
-(def ^:private ^ThreadLocal seek-buffer-tl
-  (ThreadLocal/withInitial
-   (reify Supplier
-     (get [_]
-       (ExpandableDirectByteBuffer.)))))
-
 (defn encode-doc-key-to ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b ^DirectBuffer content-hash]
   (assert (= c/id-size (.capacity content-hash)) (mem/buffer->hex content-hash))
   (let [^MutableDirectBuffer b (or b (mem/allocate-buffer (+ c/index-id-size c/id-size)))]
@@ -40,14 +32,16 @@
   (fetch-docs [_ ids]
     (cio/with-nippy-thaw-all
       (with-open [snapshot (kv/new-snapshot kv-store)]
-        (persistent!
-         (reduce
-          (fn [acc id]
-            (let [seek-k (encode-doc-key-to (.get seek-buffer-tl) (c/->id-buffer id))]
-              (if-let [doc (some-> (kv/get-value snapshot seek-k) (mem/<-nippy-buffer))]
+        (let [ids (vec ids)]
+          (persistent!
+           (reduce
+            (fn [acc [id v]]
+              (if-let [doc (some-> v (mem/<-nippy-buffer))]
                 (assoc! acc id doc)
-                acc)))
-          (transient {}) ids)))))
+                acc))
+            (transient {})
+            (map vector ids (kv/multi-get snapshot (for [id ids]
+                                                     (encode-doc-key-to nil (c/->id-buffer id)))))))))))
 
   (submit-docs [_ id-and-docs]
     (kv/store kv-store (for [[id doc] id-and-docs]
@@ -7,6 +7,7 @@
             [crux.db :as db]
             [crux.error :as err]
             [crux.fork :as fork]
+            [crux.histogram :as hist]
             [crux.hyper-log-log :as hll]
             [crux.io :as cio]
             [crux.kv :as kv]
@@ -20,8 +21,9 @@
            [crux.codec EntityTx Id]
            java.io.Closeable
            java.nio.ByteOrder
-           [java.util ArrayList Date HashMap List Map NavigableSet TreeSet]
-           [java.util.concurrent Semaphore TimeUnit]
+           java.time.Duration
+           [java.util ArrayList Date HashMap List Map NavigableMap NavigableSet TreeMap TreeSet]
+           [java.util.concurrent CompletableFuture Executors ScheduledExecutorService Semaphore TimeUnit]
            java.util.concurrent.atomic.AtomicBoolean
            [java.util.function BiFunction Supplier]
            [org.agrona DirectBuffer ExpandableDirectByteBuffer MutableDirectBuffer]))
@@ -431,9 +433,11 @@
   (mem/slice-buffer k c/index-id-size))
 
 (defn- new-stats-value ^org.agrona.MutableDirectBuffer []
-  (doto ^MutableDirectBuffer (mem/allocate-buffer (+ Long/BYTES hll/default-buffer-size hll/default-buffer-size))
-    (.putByte 0 c/stats-index-id)
-    (.putLong c/index-id-size 0)))
+  (let [b (doto ^MutableDirectBuffer (mem/allocate-buffer (+ Long/BYTES hll/default-buffer-size hll/default-buffer-size hist/default-buffer-size))
+            (.putByte 0 c/stats-index-id)
+            (.putLong c/index-id-size 0))]
+    (hist/new-sample (mem/slice-buffer b (+ Long/BYTES hll/default-buffer-size hll/default-buffer-size) hist/default-buffer-size))
+    b))
 
 (defn- decode-stats-value->doc-count-from ^long [^DirectBuffer b]
   (.getLong b c/index-id-size))
@@ -443,12 +447,20 @@
     (.putLong c/index-id-size (inc (decode-stats-value->doc-count-from b)))))
 
 (defn decode-stats-value->eid-hll-buffer-from ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b]
-  (let [hll-size (/ (- (.capacity b) Long/BYTES) 2)]
-    (mem/slice-buffer b Long/BYTES hll-size)))
+  (mem/slice-buffer b Long/BYTES hll/default-buffer-size))
 
 (defn decode-stats-value->value-hll-buffer-from ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b]
-  (let [^long hll-size (/ (- (.capacity b) Long/BYTES) 2)]
-    (mem/slice-buffer b (+ Long/BYTES hll-size) hll-size)))
+  (mem/slice-buffer b (+ Long/BYTES hll/default-buffer-size) hll/default-buffer-size))
+
+(defn decode-stats-value->value-sample-buffer-from ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b]
+  (mem/slice-buffer b (+ Long/BYTES hll/default-buffer-size hll/default-buffer-size) hist/default-buffer-size))
+
+(defn- add-stats-value-sample ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b v]
+  ;; the doc-count before it's incremented salts the sample, so each occurrence of a value is sampled independently
+  (hist/add (decode-stats-value->value-sample-buffer-from b)
+            (c/->value-buffer v)
+            (decode-stats-value->doc-count-from b))
+  b)
 
 (defn stats-kvs [transient-kv-snapshot persistent-kv-snapshot docs]
   (let [attr-key-bufs (->> docs
@@ -463,10 +475,13 @@
                             (MapEntry/create k v))
                           (reduce (fn [acc [k v]]
                                     (let [k-buf (get attr-key-bufs k)]
+                                      ;; the stats values are updated in place - the transient store's may be a preceding tx's
+                                      ;; pending group commit, which this tx mustn't change if it aborts
                                       (assoc! acc k-buf (doto (or (get acc k-buf)
-                                                                  (kv/get-value transient-kv-snapshot k-buf)
+                                                                  (some-> (kv/get-value transient-kv-snapshot k-buf) mem/copy-buffer)
                                                                   (some-> (kv/get-value persistent-kv-snapshot k-buf) mem/copy-buffer)
                                                                   (new-stats-value))
+                                                          (add-stats-value-sample v)
                                                           (inc-stats-value-doc-count)
                                                           (-> decode-stats-value->eid-hll-buffer-from (hll/add e))
                                                           (-> decode-stats-value->value-hll-buffer-from (hll/add v))))))
@@ -605,8 +620,7 @@
 
 (defn latest-completed-tx [kv-store]
   (with-open [snapshot (kv/new-snapshot kv-store)
-              i (-> (kv/new-iterator snapshot)
-                    (new-prefix-kv-iterator tx-time-mapping-prefix))]
+              i (kv/new-prefix-iterator snapshot tx-time-mapping-prefix)]
     (latest-completed-tx-i i)))
 
 (defprotocol PThreadManager
@@ -644,6 +658,75 @@
         (log/warn "Failed to shut down index-store after 60s due to outstanding snapshots"
                   (pr-str snapshot-threads))))))
 
+(defprotocol PGroupCommitter
+  (pending-kvs ^java.util.NavigableMap [_])
+  (commit-kvs [_ kvs]
+    "returns a CompletableFuture that completes once the KVs are visible in the underlying store")
+  (flush-group [_]))
+
+;; Accumulates the KVs of consecutive committed txs, writing them to the
+;; underlying store as one batch once we pass `max-txs`/`max-bytes`, or
+;; after `max-delay`. Deletes are flushed straight away - the pending KVs
+;; are only overlaid on the transient KVs of subsequent txs, so they'd
+;; still see the deleted keys in the underlying store.
+(deftype GroupCommitter [kv-store ^long max-txs ^long max-bytes
+                         ^:volatile-mutable ^NavigableMap pending
+                         ^:unsynchronized-mutable ^List pending-futs
+                         ^:unsynchronized-mutable ^long pending-bytes
+                         ^ScheduledExecutorService flush-executor]
+  PGroupCommitter
+  (pending-kvs [_] pending)
+
+  (commit-kvs [this kvs]
+    (locking this
+      (let [fut (CompletableFuture.)
+            delete? (boolean (some (comp nil? val) kvs))]
+        (doseq [[k v] kvs]
+          (.put pending k v)
+          (set! pending-bytes (+ pending-bytes (long (mem/capacity k)) (long (if v (mem/capacity v) 0)))))
+        (.add pending-futs fut)
+
+        (when (or delete?
+                  (>= (.size pending-futs) max-txs)
+                  (>= pending-bytes max-bytes))
+          (flush-group this))
+
+        fut)))
+
+  (flush-group [this]
+    (locking this
+      (when-not (.isEmpty pending-futs)
+        (let [futs pending-futs]
+          (kv/store kv-store (seq pending))
+          (set! pending (TreeMap. mem/buffer-comparator))
+          (set! pending-futs (ArrayList.))
+          (set! pending-bytes 0)
+          (doseq [^CompletableFuture fut futs]
+            (.complete fut nil))))))
+
+  Closeable
+  (close [this]
+    (when flush-executor
+      (doto flush-executor
+        (.shutdownNow)
+        (.awaitTermination 5 TimeUnit/SECONDS)))
+    (flush-group this)))
+
+(defn- ->group-committer ^crux.kv.index_store.GroupCommitter [kv-store {:keys [^long group-commit-max-txs ^long group-commit-max-bytes ^Duration group-commit-max-delay]}]
+  (let [flush-executor (Executors/newSingleThreadScheduledExecutor (cio/thread-factory "crux-index-group-commit"))
+        committer (GroupCommitter. kv-store group-commit-max-txs group-commit-max-bytes
+                                   (TreeMap. mem/buffer-comparator) (ArrayList.) 0
+                                   flush-executor)
+        delay-ms (.toMillis group-commit-max-delay)]
+    (.scheduleWithFixedDelay flush-executor
+                             (fn []
+                               (try
+                                 (flush-group committer)
+                                 (catch Throwable t
+                                   (log/error t "Error flushing group commit"))))
+                             delay-ms delay-ms TimeUnit/MILLISECONDS)
+    committer))
+
 (defrecord KvIndexSnapshot [snapshot
                             close-snapshot?
                             level-1-iterator-delay
@@ -721,27 +804,28 @@
                                             eid-value-buffer
                                             (c/->id-buffer content-hash))]
 
-      (when-let [ecav-kvs (seq (all-keys-in-prefix @level-1-iterator-delay
-                                                   ecav-k-prefix (.capacity ecav-k-prefix)
-                                                   {:entries? true}))]
-        (->> (for [[k idxs] ecav-kvs
-                   :let [^Quad quad (decode-ecav-key-from k eid-size)
-                         a (db/decode-value this (.buffer ^Id (.attr quad)))
-                         v (db/decode-value this (.value quad))]
-                   idx (or (decode-ecav-value-from idxs) [nil])]
-               (->ECAVEntry a v idx))
-             (group-by #(.a ^ECAVEntry %))
-             (into {}
-                   (map (fn [[a entries]]
-                          (let [^ECAVEntry first-entry (first entries)
-                                first-idx (.idx first-entry)
-                                v (cond
-                                    (nil? first-idx) (:v first-entry)
-                                    (= -1 first-idx) (into #{} (map :v) entries)
-                                    :else (->> entries
-                                               (sort-by #(.idx ^ECAVEntry %))
-                                               (mapv #(.v ^ECAVEntry %))))]
-                            (MapEntry/create a v)))))))))
+      (with-open [i (kv/new-prefix-iterator snapshot ecav-k-prefix)]
+        (when-let [ecav-kvs (seq (all-keys-in-prefix i
+                                                     ecav-k-prefix (.capacity ecav-k-prefix)
+                                                     {:entries? true}))]
+          (->> (for [[k idxs] ecav-kvs
+                     :let [^Quad quad (decode-ecav-key-from k eid-size)
+                           a (db/decode-value this (.buffer ^Id (.attr quad)))
+                           v (db/decode-value this (.value quad))]
+                     idx (or (decode-ecav-value-from idxs) [nil])]
+                 (->ECAVEntry a v idx))
+               (group-by #(.a ^ECAVEntry %))
+               (into {}
+                     (map (fn [[a entries]]
+                            (let [^ECAVEntry first-entry (first entries)
+                                  first-idx (.idx first-entry)
+                                  v (cond
+                                      (nil? first-idx) (:v first-entry)
+                                      (= -1 first-idx) (into #{} (map :v) entries)
+                                      :else (->> entries
+                                                 (sort-by #(.idx ^ECAVEntry %))
+                                                 (mapv #(.v ^ECAVEntry %))))]
+                              (MapEntry/create a v))))))))))
 
   (entity-as-of-resolver [this eid valid-time tx-id]
     (assert tx-id)
@@ -819,8 +903,7 @@
       value-buffer))
 
   (resolve-tx [_ {:crux.tx/keys [tx-time tx-id] :as tx}]
-    (with-open [i (-> (kv/new-iterator snapshot)
-                      (new-prefix-kv-iterator tx-time-mapping-prefix))]
+    (with-open [i (kv/new-prefix-iterator snapshot tx-time-mapping-prefix)]
       (let [latest-tx (latest-completed-tx-i i)]
         (cond
           (= tx latest-tx) tx
@@ -885,6 +968,11 @@
                 hll/estimate)
         0.0))
 
+  (value-histogram [_ attr]
+    (when-let [stats-v (kv/get-value snapshot (encode-stats-key-to nil (c/->value-buffer attr)))]
+      (hist/->histogram (decode-stats-value->value-sample-buffer-from stats-v)
+                        (decode-stats-value->doc-count-from stats-v))))
+
   db/IndexMeta
   (-read-index-meta [_ k not-found]
     (read-meta-snapshot snapshot k not-found)))
@@ -899,7 +987,7 @@
                      (delay (kv/new-iterator snapshot))
                      (delay (kv/new-iterator snapshot))
                      (delay (kv/new-iterator snapshot))
-                     (delay (kv/new-iterator snapshot))
+                     (delay (kv/new-prefix-seek-iterator snapshot c/ecav-index-id))
                      (atom [])
                      thread-mgr
                      cav-cache
@@ -962,7 +1050,28 @@
                       (conj (MapEntry/create (encode-hash-cache-key-to nil value-buffer eid-value-buffer)
                                              (mem/->nippy-buffer v))))))))))
 
-(defrecord KvIndexStoreTx [persistent-kv-store transient-kv-store tx fork-at !evicted-eids thread-mgr cav-cache canonical-buffer-cache temp-hash-cache]
+;;;; Bulk loads
+
+(defn bulk-load-tx-kvs
+  "The KVs indexing a tx of puts into an empty index store, without reading
+  the store - for offline bulk loads, see crux.rocksdb.bulk-load. `docs` is
+  content-hash -> doc, `etxs` their entity txs. Stats aren't included, they
+  have to see every doc - see `stats-kvs`."
+  [{:crux.tx/keys [tx-id tx-time]} docs etxs]
+  (concat (->content-idx-kvs docs)
+          (mapcat etx->kvs etxs)
+          [(MapEntry/create (encode-tx-time-mapping-key-to nil tx-time tx-id) mem/empty-buffer)]))
+
+(defn- commit-to-kv-store ^java.util.concurrent.CompletableFuture [kv-store group-committer kvs]
+  (if group-committer
+    (commit-kvs group-committer kvs)
+    (do
+      (kv/store kv-store kvs)
+      (CompletableFuture/completedFuture nil))))
+
+;; commit-index-tx and abort-index-tx return a CompletableFuture that completes
+;; once the tx is visible to readers of the persistent store
+(defrecord KvIndexStoreTx [persistent-kv-store transient-kv-store tx fork-at !evicted-eids thread-mgr cav-cache canonical-buffer-cache temp-hash-cache group-committer]
   db/IndexStoreTx
   (index-docs [_ docs]
     (with-open [persistent-kv-snapshot (kv/new-snapshot persistent-kv-store)
@@ -1049,24 +1158,34 @@
   (index-entity-txs [_ entity-txs]
     (kv/store transient-kv-store
               (->> (mapcat etx->kvs entity-txs)
-                   (sort-by key mem/buffer-comparator))))
+                   (sort-by key mem/buffer-comparator)))
+
+    ;; queries after the max valid-time don't depend on their exact valid-time - see crux.query
+    (when-let [max-vt (some->> (seq entity-txs)
+                               (map #(.vt ^EntityTx %))
+                               (reduce #(if (pos? (compare %1 %2)) %1 %2)))]
+      (let [current-max-vt (or (with-open [snapshot (kv/new-snapshot transient-kv-store)]
+                                 (read-meta-snapshot snapshot :crux.index/max-valid-time))
+                               (read-meta persistent-kv-store :crux.index/max-valid-time))]
+        (when (or (nil? current-max-vt) (pos? (compare max-vt current-max-vt)))
+          (kv/store transient-kv-store [(meta-kv :crux.index/max-valid-time max-vt)])))))
 
   (commit-index-tx [_]
     (with-open [snapshot (kv/new-snapshot transient-kv-store)]
-      (kv/store persistent-kv-store (seq snapshot))))
+      (commit-to-kv-store persistent-kv-store group-committer (seq snapshot))))
 
   (abort-index-tx [_]
     (with-open [snapshot (kv/new-snapshot transient-kv-store)]
       (let [{:crux.tx/keys [tx-id tx-time]} tx]
         ;; we still put the ECAV KVs in so that we can keep track of what we need to evict later
         ;; the bitemp indices will ensure these are never returned in queries
-        (kv/store persistent-kv-store
-                  (conj (->> (seq snapshot)
-                             (filter (fn [[^DirectBuffer k-buf v-buf]]
-                                       (= c/ecav-index-id (.getByte k-buf 0)))))
+        (commit-to-kv-store persistent-kv-store group-committer
+                            (conj (->> (seq snapshot)
+                                       (filter (fn [[^DirectBuffer k-buf v-buf]]
+                                                 (= c/ecav-index-id (.getByte k-buf 0)))))
 
-                        (MapEntry/create (encode-failed-tx-id-key-to nil tx-id) mem/empty-buffer)
-                        (MapEntry/create (encode-tx-time-mapping-key-to nil tx-time tx-id) mem/empty-buffer))))))
+                                  (MapEntry/create (encode-failed-tx-id-key-to nil tx-id) mem/empty-buffer)
+                                  (MapEntry/create (encode-tx-time-mapping-key-to nil tx-time tx-id) mem/empty-buffer))))))
 
   db/IndexSnapshotFactory
   (open-index-snapshot [_]
@@ -1078,16 +1197,21 @@
                                                        cav-cache canonical-buffer-cache temp-hash-cache)
                                 @!evicted-eids)))
 
-(defrecord KvIndexStore [kv-store thread-mgr cav-cache canonical-buffer-cache]
+(defrecord KvIndexStore [kv-store thread-mgr cav-cache canonical-buffer-cache group-committer]
   db/IndexStore
   (begin-index-tx [_ tx fork-at]
     (let [{:crux.tx/keys [tx-id tx-time]} tx
-          transient-kv-store (mut-kv/->mutable-kv-store)]
+          ;; forks only see what's in the persistent store, so they bypass group commits
+          group-committer (when-not fork-at group-committer)
+          transient-kv-store (if group-committer
+                               (mut-kv/->overlay-kv-store (pending-kvs group-committer))
+                               (mut-kv/->mutable-kv-store))]
       (kv/store transient-kv-store
                 [(MapEntry/create (encode-tx-time-mapping-key-to nil tx-time tx-id) mem/empty-buffer)])
       (->KvIndexStoreTx kv-store transient-kv-store tx fork-at
                         (atom #{}) thread-mgr
-                        (nop-cache/->nop-cache {}) (nop-cache/->nop-cache {}) (HashMap.))))
+                        (nop-cache/->nop-cache {}) (nop-cache/->nop-cache {}) (HashMap.)
+                        group-committer)))
 
   (store-index-meta [_ k v]
     (store-meta kv-store k v))
@@ -1116,13 +1240,25 @@
 
   Closeable
   (close [_]
+    (cio/try-close group-committer)
     (cio/try-close thread-mgr)))
 
 (defn ->kv-index-store {::sys/deps {:kv-store 'crux.mem-kv/->kv-store
                                     :cav-cache 'crux.cache/->cache
                                     :canonical-buffer-cache 'crux.cache/->cache}
                         ::sys/args {:skip-index-version-bump {:spec (s/tuple int? int?)
-                                                              :doc "Skip an index version bump. For example, to skip from v10 to v11, specify [10 11]"}}}
-  [{:keys [kv-store cav-cache canonical-buffer-cache] :as opts}]
+                                                              :doc "Skip an index version bump. For example, to skip from v10 to v11, specify [10 11]"}
+                                    :group-commit-max-txs {:doc "Maximum number of txs to write to the KV store in one batch - 1 disables group commits"
+                                                           :default 1
+                                                           :spec ::sys/pos-int}
+                                    :group-commit-max-bytes {:doc "Maximum size of the KVs to accumulate before writing a group commit"
+                                                             :default (* 16 1024 1024)
+                                                             :spec ::sys/pos-int}
+                                    :group-commit-max-delay {:doc "Maximum time a committed tx waits to be written as part of a group commit"
+                                                             :default (Duration/ofMillis 100)
+                                                             :spec ::sys/duration}}}
+  [{:keys [kv-store cav-cache canonical-buffer-cache ^long group-commit-max-txs] :as opts}]
   (check-and-store-index-version opts)
-  (->KvIndexStore kv-store (ThreadManager. (HashMap.) nil) cav-cache canonical-buffer-cache))
+  (->KvIndexStore kv-store (ThreadManager. (HashMap.) nil) cav-cache canonical-buffer-cache
+                  (when (and group-commit-max-txs (> group-commit-max-txs 1))
+                    (->group-committer kv-store opts))))
@@ -3,7 +3,7 @@
             [crux.memory :as mem])
   (:import clojure.lang.ISeq
            java.io.Closeable
-           [java.util NavigableMap TreeMap]))
+           [java.util Map$Entry NavigableMap TreeMap]))
 
 (deftype MutableKvIterator [^NavigableMap db, !tail-seq]
   kv/KvIterator
@@ -60,3 +60,82 @@
 (defn ->mutable-kv-store
   ([] (->mutable-kv-store nil))
   ([_] (->MutableKvStore (TreeMap. mem/buffer-comparator))))
+
+;; An overlay store reads through to a base map that it never writes to.
+;; nil values in either map are deletions, and the overlay's own entries win.
+
+(defn- overlay-entry ^java.util.Map$Entry [^NavigableMap own ^NavigableMap base k direction]
+  (loop [k k, direction direction]
+    (let [[^Map$Entry own-entry ^Map$Entry base-entry]
+          (case direction
+            :ceiling [(.ceilingEntry own k) (.ceilingEntry base k)]
+            :higher [(.higherEntry own k) (.higherEntry base k)]
+            :lower [(.lowerEntry own k) (.lowerEntry base k)])
+
+          ^Map$Entry entry (cond
+                             (nil? own-entry) base-entry
+                             (nil? base-entry) own-entry
+                             :else (let [cmp (.compare mem/buffer-comparator (.getKey own-entry) (.getKey base-entry))]
+                                     (if (or (zero? cmp)
+                                             (= (neg? cmp) (not= direction :lower)))
+                                       own-entry
+                                       base-entry)))]
+      (if (and entry (nil? (.getValue entry)))
+        (recur (.getKey entry) (if (= direction :lower) :lower :higher))
+        entry))))
+
+(deftype OverlayKvIterator [^NavigableMap own, ^NavigableMap base, !entry]
+  kv/KvIterator
+  (seek [this k]
+    (some-> (reset! !entry (overlay-entry own base (mem/as-buffer k) :ceiling)) key))
+
+  (next [this]
+    (when-let [^Map$Entry entry @!entry]
+      (some-> (reset! !entry (overlay-entry own base (.getKey entry) :higher)) key)))
+
+  (prev [this]
+    (when-let [^Map$Entry entry @!entry]
+      (some-> (reset! !entry (overlay-entry own base (.getKey entry) :lower)) key)))
+
+  (value [this]
+    (some-> ^Map$Entry @!entry val))
+
+  Closeable
+  (close [_]))
+
+(deftype OverlayKvSnapshot [^NavigableMap own ^NavigableMap base]
+  kv/KvSnapshot
+  (new-iterator [this] (->OverlayKvIterator own base (atom nil)))
+
+  (get-value [this k]
+    (let [k (mem/as-buffer k)]
+      (if (.containsKey own k)
+        (.get own k)
+        (.get base k))))
+
+  ;; only the overlay's own entries, so that they can be written through to another store
+  ISeq
+  (seq [_] (seq own))
+
+  Closeable
+  (close [_]))
+
+(deftype OverlayKvStore [^NavigableMap own ^NavigableMap base]
+  kv/KvStore
+  (new-snapshot ^java.io.Closeable [this]
+    (->OverlayKvSnapshot own base))
+
+  (store [this kvs]
+    (doseq [[k v] kvs]
+      (.put own (mem/as-buffer k) (some-> v mem/as-buffer))))
+
+  (fsync [this])
+  (compact [this])
+  (count-keys [this] (count own))
+  (db-dir [this])
+  (kv-name [this] (str (class this))))
+
+(defn ->overlay-kv-store
+  "`base` mustn't be written to while the overlay is in use."
+  [^NavigableMap base]
+  (->OverlayKvStore (TreeMap. mem/buffer-comparator) base))
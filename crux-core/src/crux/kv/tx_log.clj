@@ -1,5 +1,6 @@
 (ns crux.kv.tx-log
-  (:require [clojure.tools.logging :as log]
+  (:require [clojure.spec.alpha :as s]
+            [crux.bus :as bus]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.io :as cio]
@@ -8,11 +9,12 @@
             [crux.memory :as mem]
             [crux.system :as sys]
             [crux.tx :as tx]
+            [crux.tx.group-submit :as group-submit]
             [crux.tx.subscribe :as tx-sub])
   (:import java.io.Closeable
            java.nio.ByteOrder
-           [java.util.concurrent ExecutorService LinkedBlockingQueue RejectedExecutionHandler ThreadPoolExecutor TimeUnit]
            java.util.Date
+           [java.util.concurrent ExecutionException ExecutorService Executors Future]
            [org.agrona DirectBuffer MutableDirectBuffer]))
 
 (defn encode-tx-event-key-to ^org.agrona.MutableDirectBuffer [^MutableDirectBuffer b, {::tx/keys [tx-id tx-time]}]
@@ -37,92 +39,135 @@
   (when-let [tx-id (kvi/read-meta kv-store :crux.kv-tx-log/latest-submitted-tx-id)]
     {::tx/tx-id tx-id}))
 
-(defn- submit-tx [tx-events {:keys [^ExecutorService tx-submit-executor kv-store fsync? subscriber-handler]}]
-  (if (.isShutdown tx-submit-executor)
-    ::closed
-
+(s/def ::batch-size pos-int?)
+(s/def ::submit-latencies-ns (s/coll-of nat-int?))
+(defmethod bus/event-spec ::submitted-txs [_] (s/keys :req-un [::batch-size ::submit-latencies-ns]))
+
+(defn- submit-txs!
+  "group commit - every queued submission goes into one store (and one fsync), with consecutive tx-ids"
+  [{:keys [kv-store fsync? subscriber-handler bus !latest-submitted-tx-id]} submissions]
+  (let [tx-time (Date.)
+        first-tx-id (inc (long (or @!latest-submitted-tx-id -1)))
+        txs (vec (for [idx (range (count submissions))]
+                   {::tx/tx-id (+ first-tx-id (long idx)), ::tx/tx-time tx-time}))
+        latest-tx-id (::tx/tx-id (peek txs))]
     ;; this needs to remain `:crux.kv-tx-log/latest-submitted-tx-id` because we're a TxLog
-    (let [tx-time (Date.)
-          tx-id (inc (or (kvi/read-meta kv-store :crux.kv-tx-log/latest-submitted-tx-id) -1))
-          next-tx {::tx/tx-id tx-id, ::tx/tx-time tx-time}]
-      (kv/store kv-store [[(encode-tx-event-key-to nil next-tx)
-                           (mem/->nippy-buffer tx-events)]
-                          (kvi/meta-kv :crux.kv-tx-log/latest-submitted-tx-id tx-id)])
-
-      (when fsync?
-        (kv/fsync kv-store))
-
-      (tx-sub/notify-tx! subscriber-handler next-tx)
-
-      next-tx)))
-
-(defn- txs-after [{:keys [kv-store]} after-tx-id {:keys [limit], :or {limit 100}}]
-  (with-open [snapshot (kv/new-snapshot kv-store)
-              iterator (kv/new-iterator snapshot)]
-    (letfn [(tx-log [k]
+    (kv/store kv-store (concat (for [[tx {:keys [tx-events]}] (map vector txs submissions)]
+                                 [(encode-tx-event-key-to nil tx)
+                                  (mem/->nippy-buffer tx-events)])
+                               [(kvi/meta-kv :crux.kv-tx-log/latest-submitted-tx-id latest-tx-id)]))
+
+    (when fsync?
+      (kv/fsync kv-store))
+
+    (reset! !latest-submitted-tx-id latest-tx-id)
+
+    (let [now (System/nanoTime)]
+      (doseq [tx txs]
+        ;; the notifying subscribers expect one notification per tx
+        (tx-sub/notify-tx! subscriber-handler tx))
+
+      (some-> bus (bus/send {:crux/event-type ::submitted-txs
+                             :batch-size (count submissions)
+                             :submit-latencies-ns (mapv (fn [{:keys [^long submitted-ns]}]
+                                                          (- now submitted-ns))
+                                                        submissions)})))
+    txs))
+
+(defn- read-tx-batch
+  "up to `batch-size` txs from the iterator, from `k` - with their tx-events still encoded, copied on-heap"
+  [iterator k ^long batch-size]
+  (loop [k k
+         txs (transient [])]
+    (if (and (some-> k (tx-event-key?))
+             (< (count txs) batch-size))
+      (recur (kv/next iterator)
+             (conj! txs [(decode-tx-event-key-from k) (mem/->on-heap (kv/value iterator))]))
+      (persistent! txs))))
+
+(defn- decode-tx-batch ^java.util.concurrent.Future [^ExecutorService tx-decode-executor txs]
+  (.submit tx-decode-executor
+           ^Callable (fn []
+                       (vec (for [[tx ^bytes tx-events] txs]
+                              (assoc tx :crux.tx.event/tx-events (mem/<-nippy-buffer (mem/as-buffer tx-events))))))))
+
+(defn- open-tailing-tx-log
+  "Reads the log a batch at a time, decoding the next batch on the tx-decode-executor
+  while this one's being consumed.
+
+  Each batch is read from its own snapshot, closed before the batch is handed out -
+  consumers index the txs as they go, and an open snapshot would hold up LMDB growing
+  its map (and mem-kv pruning old versions) the whole time. Re-seeking is cheap."
+  ^crux.api.ICursor [{:keys [kv-store tx-decode-executor ^long read-batch-size]} after-tx-id]
+  (let [!closed? (volatile! false)]
+    (letfn [(next-batch [last-tx-id]
+              (when-not @!closed?
+                (let [txs (with-open [snapshot (kv/new-snapshot kv-store)
+                                      iterator (kv/new-iterator snapshot)]
+                            (read-tx-batch iterator
+                                           (kv/seek iterator (encode-tx-event-key-to nil {::tx/tx-id (if last-tx-id
+                                                                                                        (inc (long last-tx-id))
+                                                                                                        0)}))
+                                           read-batch-size))]
+                  (when (seq txs)
+                    {:!txs (decode-tx-batch tx-decode-executor txs)
+                     :last-tx-id (::tx/tx-id (first (peek txs)))}))))
+
+            (tx-log [{:keys [^Future !txs last-tx-id] :as batch}]
               (lazy-seq
-               (when (some-> k (tx-event-key?))
-                 (cons (assoc (decode-tx-event-key-from k)
-                              :crux.tx.event/tx-events (mem/<-nippy-buffer (kv/value iterator)))
-                       (tx-log (kv/next iterator))))))]
-      (let [after-tx-id (or (some-> after-tx-id (+ 1)) 0)]
-        (->> (tx-log (kv/seek iterator (encode-tx-event-key-to nil {::tx/tx-id after-tx-id})))
-             (take limit)
-             vec)))))
-
-(defrecord KvTxLog [^ExecutorService tx-submit-executor
+               (when batch
+                 (let [txs (try
+                             (.get !txs)
+                             (catch ExecutionException e
+                               (throw (.getCause e))))]
+                   ;; read the next batch before handing this one out, so it decodes in the meantime
+                   (concat txs (tx-log (next-batch last-tx-id)))))))]
+
+      (cio/->cursor (fn []
+                      (vreset! !closed? true))
+                    (tx-log (next-batch after-tx-id))))))
+
+(defrecord KvTxLog [group-submitter ^ExecutorService tx-decode-executor
                     kv-store fsync? subscriber-handler]
   db/TxLog
   (submit-tx [this tx-events]
-    (when (.isShutdown tx-submit-executor)
-      (throw (IllegalStateException. "TxLog is closed.")))
-
-    (let [!submitted-tx (.submit tx-submit-executor ^Callable #(submit-tx tx-events this))]
-      (delay
-        (let [submitted-tx @!submitted-tx]
-          (when (= ::closed submitted-tx)
-            (throw (IllegalStateException. "TxLog is closed.")))
-
-          submitted-tx))))
+    (group-submit/submit! group-submitter {:tx-events tx-events, :submitted-ns (System/nanoTime)}))
 
   (latest-submitted-tx [_]
     (latest-submitted-tx kv-store))
 
   (open-tx-log [this after-tx-id]
-    (let [batch-size 100]
-      (letfn [(tx-log [after-tx-id]
-                (lazy-seq
-                 (let [txs (txs-after this after-tx-id {:limit batch-size})]
-                   (concat txs
-                           (when (= batch-size (count txs))
-                             (tx-log (::tx/tx-id (last txs))))))))]
-        (cio/->cursor (fn []) (tx-log after-tx-id)))))
+    (open-tailing-tx-log this after-tx-id))
 
   (subscribe [this after-tx-id f]
     (tx-sub/handle-notifying-subscriber subscriber-handler this after-tx-id f))
 
   Closeable
   (close [_]
-    (try
-      (.shutdownNow tx-submit-executor)
-      (catch Exception e
-        (log/warn e "Error shutting down tx-submit-executor")))
-
-    (or (.awaitTermination tx-submit-executor 5 TimeUnit/SECONDS)
-        (log/warn "waited 5s for tx-submit-executor to exit, no dice."))))
-
-(defn- bounded-solo-thread-pool [^long queue-size thread-factory]
-  (let [queue (LinkedBlockingQueue. queue-size)]
-    (ThreadPoolExecutor. 1 1
-                         0 TimeUnit/MILLISECONDS
-                         queue
-                         thread-factory
-                         (reify RejectedExecutionHandler
-                           (rejectedExecution [_ runnable executor]
-                             (.put queue runnable))))))
-
-(defn ->tx-log {::sys/deps {:kv-store 'crux.mem-kv/->kv-store}}
-  [{:keys [kv-store]}]
-  (map->KvTxLog {:tx-submit-executor (bounded-solo-thread-pool 16 (cio/thread-factory "crux-standalone-submit-tx"))
-                 :kv-store kv-store
-                 :subscriber-handler (tx-sub/->notifying-subscriber-handler (latest-submitted-tx kv-store))}))
+    (cio/try-close group-submitter)
+    (.shutdownNow tx-decode-executor)))
+
+(defn ->tx-log {::sys/deps {:kv-store 'crux.mem-kv/->kv-store
+                            :bus :crux/bus}
+                ::sys/args {:fsync? {:doc "Sync the KV store to disk after each batch of submitted txs"
+                                     :spec ::sys/boolean
+                                     :required? true
+                                     :default true}
+                            :max-batch-size {:doc "Maximum number of queued txs written (and fsync'd) together"
+                                             :spec ::sys/pos-int
+                                             :required? true
+                                             :default 1024}
+                            :read-batch-size {:doc "Number of txs read (and decoded) ahead of consumers of the tx-log"
+                                              :spec ::sys/pos-int
+                                              :required? true
+                                              :default 256}}}
+  [{:keys [kv-store bus fsync? ^long max-batch-size] :as opts}]
+  (let [latest-submitted-tx (latest-submitted-tx kv-store)
+        tx-log (map->KvTxLog (merge opts
+                                    {:!latest-submitted-tx-id (atom (::tx/tx-id latest-submitted-tx))
+                                     :tx-decode-executor (Executors/newCachedThreadPool (cio/thread-factory "crux-kv-tx-log-decoder"))
+                                     :subscriber-handler (tx-sub/->notifying-subscriber-handler latest-submitted-tx)}))
+        group-submitter (group-submit/->group-submitter {:max-batch-size max-batch-size
+                                                         :thread-name "crux-standalone-submit-tx"}
+                                                        #(submit-txs! tx-log %))]
+    (assoc tx-log :group-submitter group-submitter)))
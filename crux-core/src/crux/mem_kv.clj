@@ -10,78 +10,220 @@
             [crux.memory :as mem]
             [crux.system :as sys]
             [juxt.clojars-mirrors.nippy.v3v1v1.taoensso.nippy :as nippy])
-  (:import clojure.lang.Box
-           java.io.Closeable))
+  (:import java.io.Closeable
+           [java.util Comparator HashSet Map$Entry Set TreeMap]
+           [java.util.concurrent ConcurrentSkipListMap]
+           [java.util.concurrent.atomic AtomicBoolean AtomicLong]
+           org.agrona.DirectBuffer))
 
-(defn- persist-db [dir db]
-  (let [file (io/file dir)]
-    (.mkdirs file)
-    (->> (for [[k v] db]
-           [(mem/->on-heap k)
-            (mem/->on-heap v)])
-         (into {})
-         (nippy/freeze-to-file (io/file file "memkv")))))
+(set! *unchecked-math* :warn-on-boxed)
 
-(defn- restore-db [dir]
-  (cio/with-nippy-thaw-all
-    (->> (for [[k v] (nippy/thaw-from-file (io/file dir "memkv"))]
-           [(mem/->off-heap k)
-            (mem/->off-heap v)])
-         (into (sorted-map-by mem/buffer-comparator)))))
+;; A multi-version concurrent skip list: each store writes its KVs (copied
+;; off-heap) under a new version, and a snapshot only sees the versions up
+;; to the one that was current when it was opened. Readers never block,
+;; and seek, next and prev are each O(log n) in the number of entries.
+;; Versions that no open snapshot can see any more are pruned by later stores.
+
+(deftype VersionedKey [^DirectBuffer k ^long version])
+
+(def ^:private ^Comparator versioned-key-comparator
+  (reify Comparator
+    (compare [_ a b]
+      (let [^VersionedKey a a
+            ^VersionedKey b b
+            cmp (mem/compare-buffers (.k a) (.k b))]
+        (if (zero? cmp)
+          ;; newest version first
+          (Long/compare (.version b) (.version a))
+          cmp)))))
+
+(def ^:private tombstone (Object.))
 
-;; NOTE: Using Box here to hide the db from equals/hashCode, otherwise
-;; unusable in practice.
-(deftype MemKvIterator [^Box db cursor]
+(defn- newest-version-key ^crux.mem_kv.VersionedKey [k]
+  (VersionedKey. k Long/MAX_VALUE))
+
+(defn- past-versions-key
+  "sorts after every version of `k`"
+  ^crux.mem_kv.VersionedKey [k]
+  (VersionedKey. k Long/MIN_VALUE))
+
+(defn- entry-key ^org.agrona.DirectBuffer [^Map$Entry e]
+  (.k ^VersionedKey (.getKey e)))
+
+(defn- visible-entry
+  "the first entry visible at `version` whose key is at or after `vk`'s"
+  ^java.util.Map$Entry [^ConcurrentSkipListMap db ^long version ^VersionedKey vk]
+  (loop [^VersionedKey vk vk]
+    (when vk
+      (let [k (.k vk)]
+        (when-let [e (.ceilingEntry db (VersionedKey. k version))]
+          (cond
+            ;; nothing of `k`'s is visible, `e` is the newest version of the next key
+            (not (mem/buffers=? k (entry-key e))) (recur (.getKey e))
+            (identical? tombstone (.getValue e)) (recur (.higherKey db (past-versions-key k)))
+            :else e))))))
+
+(defn- visible-entry-before
+  "the last entry visible at `version` whose key is before `k`"
+  ^java.util.Map$Entry [^ConcurrentSkipListMap db ^long version ^DirectBuffer k]
+  (loop [k k]
+    (when-let [^VersionedKey vk (.lowerKey db (newest-version-key k))]
+      (let [prev-k (.k vk)
+            e (.ceilingEntry db (VersionedKey. prev-k version))]
+        (if (and e
+                 (mem/buffers=? prev-k (entry-key e))
+                 (not (identical? tombstone (.getValue e))))
+          e
+          (recur prev-k))))))
+
+(deftype MemKvIterator [^ConcurrentSkipListMap db ^long version ^:unsynchronized-mutable ^Map$Entry entry]
   kv/KvIterator
   (seek [this k]
-    (let [[x & xs] (subseq (.val db) >= (mem/as-buffer k))]
-      (some->> (reset! cursor {:first x :rest xs})
-               :first
-               (key))))
+    (set! entry (visible-entry db version (newest-version-key (mem/as-buffer k))))
+    (some-> entry entry-key))
 
   (next [this]
-    (some->> (swap! cursor (fn [{[x & xs] :rest}]
-                             {:first x :rest xs}))
-             :first
-             (key)))
+    (when entry
+      (set! entry (visible-entry db version (.higherKey db (past-versions-key (entry-key entry))))))
+    (some-> entry entry-key))
 
   (prev [this]
-    (when-let [prev (first (rsubseq (.val db) < (key (:first @cursor))))]
-      (kv/seek this (key prev))))
+    (when entry
+      (set! entry (visible-entry-before db version (entry-key entry))))
+    (some-> entry entry-key))
 
   (value [this]
-    (some->> @cursor
-             :first
-             (val)))
+    (some-> entry .getValue))
 
   Closeable
   (close [_]))
 
-(deftype MemKvSnapshot [db]
+(defn- visible-value [^ConcurrentSkipListMap db ^long version k]
+  (let [k (mem/as-buffer k)]
+    (when-let [e (.ceilingEntry db (VersionedKey. k version))]
+      (when (and (mem/buffers=? k (entry-key e))
+                 (not (identical? tombstone (.getValue e))))
+        (.getValue e)))))
+
+;; deftype rather than a record, so that equals/hashCode don't walk the db
+(deftype VersionedDb [^ConcurrentSkipListMap db
+                      ^AtomicLong visible-version
+                      ^TreeMap snapshot-versions
+                      ^Set prune-later-ks
+                      ^AtomicLong pruned-at])
+
+(defn- ->versioned-db ^crux.mem_kv.VersionedDb [kvs]
+  (let [db (ConcurrentSkipListMap. versioned-key-comparator)]
+    (doseq [[k v] kvs]
+      (.put db (VersionedKey. k 0) v))
+    (VersionedDb. db (AtomicLong. 0) (TreeMap.) (HashSet.) (AtomicLong. 0))))
+
+(defn- oldest-visible-version ^long [^VersionedDb vdb]
+  (let [^TreeMap snapshot-versions (.snapshot-versions vdb)]
+    (locking snapshot-versions
+      (if (.isEmpty snapshot-versions)
+        (.get ^AtomicLong (.visible-version vdb))
+        (long (.firstKey snapshot-versions))))))
+
+(defn- open-version ^long [^VersionedDb vdb]
+  ;; under the same lock as `oldest-visible-version`, so a store can't prune
+  ;; what a snapshot is about to see
+  (let [^TreeMap snapshot-versions (.snapshot-versions vdb)]
+    (locking snapshot-versions
+      (let [version (.get ^AtomicLong (.visible-version vdb))]
+        (.put snapshot-versions version (inc (long (.getOrDefault snapshot-versions version 0))))
+        version))))
+
+(defn- release-version [^VersionedDb vdb ^long version]
+  (let [^TreeMap snapshot-versions (.snapshot-versions vdb)]
+    (locking snapshot-versions
+      (let [n (dec (long (.get snapshot-versions version)))]
+        (if (zero? n)
+          (.remove snapshot-versions version)
+          (.put snapshot-versions version n))))))
+
+(defn- prune-versions!
+  "removes the versions of `k` older than the one visible at `oldest-version`
+  (and that one too, if it's a tombstone) - true if some may be prunable later"
+  [^ConcurrentSkipListMap db ^DirectBuffer k ^long oldest-version]
+  (let [versions (.subMap db (newest-version-key k) true (past-versions-key k) true)]
+    (when-let [^Map$Entry e (.ceilingEntry versions (VersionedKey. k oldest-version))]
+      (let [^VersionedKey vk (.getKey e)]
+        (.clear (.tailMap versions vk (identical? tombstone (.getValue e))))))
+    (let [n (.size versions)]
+      (or (> n 1)
+          (and (= n 1) (identical? tombstone (.getValue (.firstEntry versions))))))))
+
+(defn- prune! [^VersionedDb vdb written-ks]
+  (let [db (.db vdb)
+        ^Set prune-later-ks (.prune-later-ks vdb)
+        ^AtomicLong pruned-at (.pruned-at vdb)
+        oldest-version (oldest-visible-version vdb)
+        ;; keys deferred by open snapshots only need another look once the oldest has closed
+        deferred-ks (when (> oldest-version (.get pruned-at))
+                      (.set pruned-at oldest-version)
+                      (let [ks (vec prune-later-ks)]
+                        (.clear prune-later-ks)
+                        ks))]
+    (doseq [k (concat written-ks deferred-ks)]
+      (when (prune-versions! db k oldest-version)
+        (.add prune-later-ks k)))))
+
+(deftype MemKvSnapshot [^ConcurrentSkipListMap db ^long version release-fn ^AtomicBoolean closed?]
   kv/KvSnapshot
   (new-iterator [_]
-    (MemKvIterator. (Box. db) (atom {:rest (seq db)})))
+    (MemKvIterator. db version nil))
 
   (get-value [_ k]
-    (get db (mem/as-buffer k)))
+    (visible-value db version k))
 
   Closeable
-  (close [_]))
+  (close [_]
+    (when (.compareAndSet closed? false true)
+      (release-fn))))
+
+(defn- persist-db [dir kv-store]
+  (let [file (io/file dir)]
+    (.mkdirs file)
+    (with-open [snapshot (kv/new-snapshot kv-store)
+                i (kv/new-iterator snapshot)]
+      (->> (loop [k (kv/seek i mem/empty-buffer)
+                  db (transient {})]
+             (if k
+               (let [db (assoc! db (mem/->on-heap k) (mem/->on-heap (kv/value i)))]
+                 (recur (kv/next i) db))
+               (persistent! db)))
+           (nippy/freeze-to-file (io/file file "memkv"))))))
+
+(defn- restore-db [dir]
+  (cio/with-nippy-thaw-all
+    (->> (for [[k v] (nippy/thaw-from-file (io/file dir "memkv"))]
+           [(mem/copy-to-unpooled-buffer (mem/as-buffer k))
+            (mem/copy-to-unpooled-buffer (mem/as-buffer v))])
+         (vec))))
 
-(defrecord MemKv [!db cp-job]
+(defrecord MemKv [^VersionedDb vdb cp-job]
   kv/KvStore
   (new-snapshot [_]
-    (MemKvSnapshot. @!db))
+    (let [version (open-version vdb)]
+      (MemKvSnapshot. (.db vdb) version #(release-version vdb version) (AtomicBoolean.))))
 
   (store [_ kvs]
-    (swap! !db (fn [db]
-                 (reduce (fn [db [k v]]
-                           (let [k-buf (mem/as-buffer k)]
-                             (if v
-                               (assoc db (mem/copy-to-unpooled-buffer k-buf) (mem/copy-to-unpooled-buffer (mem/as-buffer v)))
-                               (dissoc db k-buf))))
-                         db
-                         kvs)))
+    (locking vdb
+      (let [^ConcurrentSkipListMap db (.db vdb)
+            ^AtomicLong visible-version (.visible-version vdb)
+            version (inc (.get visible-version))
+            written-ks (vec (for [[k v] kvs]
+                              (let [k (mem/copy-to-unpooled-buffer (mem/as-buffer k))]
+                                (.put db (VersionedKey. k version)
+                                      (if v
+                                        (mem/copy-to-unpooled-buffer (mem/as-buffer v))
+                                        tombstone))
+                                k)))]
+        ;; until now, the new version's been invisible to snapshots
+        (locking (.snapshot-versions vdb)
+          (.set visible-version version))
+        (prune! vdb written-ks)))
     nil)
 
   (compact [_])
@@ -89,8 +231,14 @@
   (fsync [_]
     (log/debug "Using fsync on MemKv has no effect."))
 
-  (count-keys [_]
-    (count @!db))
+  (count-keys [this]
+    (with-open [snapshot (kv/new-snapshot this)
+                i (kv/new-iterator snapshot)]
+      (loop [k (kv/seek i mem/empty-buffer)
+             n 0]
+        (if k
+          (recur (kv/next i) (inc n))
+          n))))
 
   (db-dir [_] nil)
 
@@ -99,7 +247,7 @@
 
   cp/CheckpointSource
   (save-checkpoint [this dir]
-    (persist-db dir @!db)
+    (persist-db dir this)
     {:tx (kvi/latest-completed-tx this)})
 
   Closeable
@@ -122,12 +270,11 @@
   ([] (->kv-store {}))
 
   ([{:keys [checkpointer db-dir]}]
-   (let [db (or (when db-dir
-                  ;; for crux.kv-test/test-checkpoint-and-restore-db
-                  (restore-db db-dir))
-                (when checkpointer
-                  (try-restore-from-checkpoint checkpointer))
-                (sorted-map-by mem/buffer-comparator))
-         kv-store (map->MemKv {:!db (atom db)})]
+   (let [kvs (or (when db-dir
+                   ;; for crux.kv-test/test-checkpoint-and-restore-db
+                   (restore-db db-dir))
+                 (when checkpointer
+                   (try-restore-from-checkpoint checkpointer)))
+         kv-store (map->MemKv {:vdb (->versioned-db kvs)})]
      (cond-> kv-store
        checkpointer (assoc :cp-job (cp/start checkpointer kv-store {::cp/cp-format cp-format}))))))
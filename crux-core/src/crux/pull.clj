@@ -1,6 +1,7 @@
 (ns ^:no-doc crux.pull
   (:require [crux.codec :as c]
             [crux.db :as db]
+            [crux.memory :as mem]
             [juxt.clojars-mirrors.eql.v2021v02v28.edn-query-language.core :as eql]
             [clojure.string :as string])
   (:import clojure.lang.MapEntry))
@@ -116,7 +117,9 @@
                              (into {}))]
 
       (fn [value {:keys [entity-resolver-fn] :as db} recurse-state]
+        ;; the resolver's buffer is reused, and the doc lookup is deferred
         (when-let [content-hash (some-> (entity-resolver-fn (c/->id-buffer value))
+                                        mem/copy-buffer
                                         c/new-id)]
           (let-docs [docs #{content-hash}]
             (let [doc (get docs content-hash)]
@@ -181,21 +184,41 @@
     (fn [value db]
       (pull-child value db nil))))
 
+(defn- resolve-entities-in-key-order
+  "Resolves the batch's pulled entities up front, in id order, so that the
+  lookups walk forwards through the bitemporal index - the entity resolver
+  caches them for the pull itself."
+  [{:keys [entity-resolver-fn]} pull-idxs rows]
+  (when (seq pull-idxs)
+    (doseq [eid-buffer (->> (for [row rows
+                                  idx pull-idxs
+                                  :let [value (nth row idx)]
+                                  :when (some? value)]
+                              (c/->id-buffer value))
+                            (into (sorted-set-by mem/buffer-comparator)))]
+      (entity-resolver-fn eid-buffer))))
+
 (defn ->pull-result [db compiled-find q-conformed res]
-  (->> res
-       (map (fn [row]
-              (mapv (fn [value ->result]
-                      (->result value db))
-                    row
-                    (mapv :->result compiled-find))))
-       (partition-all (or (:batch-size q-conformed)
-                          (:batch-size db)
-                          100))
-       (map (fn [results]
-              (->> results
-                   (mapv raise-doc-lookup-out-of-coll)
-                   raise-doc-lookup-out-of-coll)))
-       (mapcat (fn [lookup]
-                 (if (::hashes (meta lookup))
-                   (recur (replace-docs lookup (lookup-docs lookup db)))
-                   lookup)))))
+  (let [->results (mapv :->result compiled-find)
+        pull-idxs (vec (keep-indexed (fn [idx {:keys [var-type]}]
+                                       (when (= :pull var-type)
+                                         idx))
+                                     compiled-find))]
+    (->> res
+         (partition-all (or (:batch-size q-conformed)
+                            (:batch-size db)
+                            100))
+         (map (fn [rows]
+                (resolve-entities-in-key-order db pull-idxs rows)
+                (->> rows
+                     (mapv (fn [row]
+                             (mapv (fn [value ->result]
+                                     (->result value db))
+                                   row
+                                   ->results)))
+                     (mapv raise-doc-lookup-out-of-coll)
+                     raise-doc-lookup-out-of-coll)))
+         (mapcat (fn [lookup]
+                   (if (::hashes (meta lookup))
+                     (recur (replace-docs lookup (lookup-docs lookup db)))
+                     lookup))))))
@@ -8,25 +8,30 @@
             [crux.api :as api]
             [crux.bus :as bus]
             [crux.cache :as cache]
-            [crux.cache.lru :as lru]
+            [crux.cache.id-table :as id-table]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.error :as err]
+            [crux.histogram :as hist]
+            [crux.hyper-log-log :as hll]
             [crux.index :as idx]
             [crux.io :as cio]
             [crux.memory :as mem]
             [crux.pull :as pull]
             [crux.system :as sys]
+            [crux.t-digest :as tdigest]
             [crux.tx :as tx]
             [crux.tx.conform :as txc]
             [juxt.clojars-mirrors.dependency.v1v0v0.com.stuartsierra.dependency :as dep]
             [juxt.clojars-mirrors.eql.v2021v02v28.edn-query-language.core :as eql]
             [juxt.clojars-mirrors.nippy.v3v1v1.taoensso.nippy :as nippy])
-  (:import [clojure.lang Box ExceptionInfo]
+  (:import [clojure.lang Box ExceptionInfo IFn]
            crux.codec.EntityTx
            [java.io Closeable Writer]
+           [java.time Duration Instant LocalDate LocalDateTime LocalTime]
            [java.util Collection Comparator Date List UUID]
-           [java.util.concurrent Executors Future ScheduledExecutorService TimeoutException TimeUnit]))
+           [java.util.concurrent ArrayBlockingQueue BlockingQueue Executors Future ScheduledExecutorService TimeoutException TimeUnit]
+           [java.util.concurrent.atomic AtomicBoolean AtomicLong]))
 
 (defn logic-var? [x]
   (and (symbol? x)
@@ -195,6 +200,9 @@
 (defmethod aggregate-args-spec 'sample [_]
   (s/cat :aggregate-fn '#{sample} :args (s/tuple pos-int?)))
 
+(defmethod aggregate-args-spec 'approx-percentile [_]
+  (s/cat :aggregate-fn '#{approx-percentile} :args (s/tuple (s/and number? #(<= 0 % 1)))))
+
 (defmethod aggregate-args-spec :default [_]
   (s/cat :aggregate-fn symbol? :args empty?))
 
@@ -293,6 +301,12 @@
     ([acc] (count (persistent! acc)))
     ([acc x] (conj! acc x))))
 
+(defmethod aggregate 'approx-count-distinct [_]
+  (fn aggregate-approx-count-distinct
+    ([] (mem/on-heap-buffer (byte-array hll/default-buffer-size)))
+    ([acc] (Math/round (hll/estimate acc)))
+    ([acc x] (hll/add acc x))))
+
 (defmethod aggregate 'sum [_]
   (fn aggregate-sum
     ([] 0)
@@ -321,6 +335,15 @@
                                   (nth acc (dec half-n))) 2)))))
     ([acc x] (conj! acc x))))
 
+(defmethod aggregate 'approx-percentile [_ q]
+  (fn aggregate-approx-percentile
+    ([] (tdigest/->t-digest))
+    ([acc] (tdigest/quantile acc q))
+    ([acc x] (tdigest/add! acc x))))
+
+(defmethod aggregate 'approx-median [_]
+  (aggregate 'approx-percentile 0.5))
+
 (defmethod aggregate 'variance [_]
   (let [mean (aggregate 'avg)]
     (fn aggregate-variance
@@ -407,6 +430,128 @@
           (disj acc (first acc))
           acc))))))
 
+;; `aggregate-result` uses these mutable, unboxed accumulators in place of
+;; the built-in count/sum/avg/min/max fns above - they give the same results.
+(definterface PrimitiveAccumulator
+  (accumulate [x])
+  (result []))
+
+(defn- long-like? [x]
+  (or (instance? Long x) (instance? Integer x) (instance? Short x) (instance? Byte x)))
+
+(deftype CountAccumulator [^:unsynchronized-mutable ^long n]
+  PrimitiveAccumulator
+  (accumulate [_ _]
+    (set! n (inc n))
+    nil)
+
+  (result [_] n))
+
+;; adds longs, then doubles once it has seen one, unboxed - anything else
+;; (ratios, bigints etc) switches it to adding boxed, as `(aggregate 'sum)` does.
+(deftype SumAccumulator [^:unsynchronized-mutable ^long long-sum
+                         ^:unsynchronized-mutable ^double double-sum
+                         ^:unsynchronized-mutable ^boolean doubles?
+                         ^:unsynchronized-mutable boxed-sum]
+  PrimitiveAccumulator
+  (accumulate [this x]
+    (cond
+      boxed-sum (set! boxed-sum (+ boxed-sum x))
+
+      (long-like? x) (if doubles?
+                       (set! double-sum (+ double-sum (double x)))
+                       (set! long-sum (+ long-sum (long x))))
+
+      (or (instance? Double x) (instance? Float x))
+      (do (when-not doubles?
+            (set! double-sum (double long-sum))
+            (set! doubles? true))
+          (set! double-sum (+ double-sum (double x))))
+
+      :else (set! boxed-sum (+ (.result this) x)))
+    nil)
+
+  (result [_]
+    (cond
+      boxed-sum boxed-sum
+      doubles? double-sum
+      :else long-sum)))
+
+(defn- ->sum-accumulator []
+  (SumAccumulator. 0 0.0 false nil))
+
+(deftype AvgAccumulator [^:unsynchronized-mutable ^long n ^PrimitiveAccumulator sum]
+  PrimitiveAccumulator
+  (accumulate [_ x]
+    (set! n (inc n))
+    (.accumulate sum x))
+
+  (result [_]
+    (maybe-ratio (/ (.result sum) n))))
+
+;; keeps its extreme unboxed while it has only seen longs, or only doubles -
+;; otherwise it compares boxed, as `(aggregate 'min)` and `(aggregate 'max)` do.
+(deftype ExtremeAccumulator [^boolean max?
+                             ^:unsynchronized-mutable ^long mode ; 0 empty, 1 longs, 2 doubles, 3 boxed
+                             ^:unsynchronized-mutable ^long long-acc
+                             ^:unsynchronized-mutable ^double double-acc
+                             ^:unsynchronized-mutable boxed-acc]
+  PrimitiveAccumulator
+  (accumulate [this x]
+    (case mode
+      0 (cond
+          (instance? Long x) (do (set! long-acc (long x))
+                                 (set! mode 1))
+          (instance? Double x) (do (set! double-acc (double x))
+                                   (set! mode 2))
+          :else (do (set! boxed-acc x)
+                    (set! mode 3)))
+
+      1 (if (instance? Long x)
+          (let [x (long x)]
+            (when (if max? (> x long-acc) (< x long-acc))
+              (set! long-acc x)))
+          (do (set! boxed-acc (.result this))
+              (set! mode 3)
+              (.accumulate this x)))
+
+      2 (if (instance? Double x)
+          (let [x (double x)]
+            (when (if max? (> x double-acc) (< x double-acc))
+              (set! double-acc x)))
+          (do (set! boxed-acc (.result this))
+              (set! mode 3)
+              (.accumulate this x)))
+
+      3 (set! boxed-acc (if boxed-acc
+                          (let [diff (compare boxed-acc x)]
+                            (if (if max? (neg? diff) (pos? diff))
+                              x
+                              boxed-acc))
+                          x)))
+    nil)
+
+  (result [_]
+    (case mode
+      0 nil
+      1 long-acc
+      2 double-acc
+      3 boxed-acc)))
+
+(def ^:private primitive-accumulators
+  ;; keyed by the method each one stands in for, so a redefined built-in is still used
+  {'count [(get-method aggregate 'count) #(CountAccumulator. 0)]
+   'sum [(get-method aggregate 'sum) ->sum-accumulator]
+   'avg [(get-method aggregate 'avg) #(AvgAccumulator. 0 (->sum-accumulator))]
+   'min [(get-method aggregate 'min) #(ExtremeAccumulator. false 0 0 0.0 nil)]
+   'max [(get-method aggregate 'max) #(ExtremeAccumulator. true 0 0 0.0 nil)]})
+
+(defn- primitive-accumulator-fn [aggregate-name args]
+  (when (empty? args)
+    (when-let [[method ->accumulator] (get primitive-accumulators aggregate-name)]
+      (when (identical? method (get-method aggregate aggregate-name))
+        ->accumulator))))
+
 (set! *unchecked-math* :warn-on-boxed)
 
 (defn- blank-var? [v]
@@ -583,13 +728,45 @@
       (idx/new-relation-virtual-index (mapv vector v) 1 encode-value-fn)
       (idx/new-singleton-virtual-index v encode-value-fn))))
 
+;; Without a histogram sample, this is the baseline 1/eid-cardinality
+;; estimate. The value histogram scales it down for values that are rarer
+;; than an average value (1/value-cardinality of the triples), the baseline
+;; stays as an upper bound per value.
+(defn- literal-selectivity
+  "estimated selectivity of the literal `v` for `a`, in the units of the baseline 1/eid-cardinality"
+  ^double [stats a v]
+  (let [baseline (/ 1.0 (double (db/eid-cardinality stats a)))]
+    (if-let [{:keys [^long total-count] :as histogram} (when (pos? (long (db/doc-count stats a)))
+                                                        (db/value-histogram stats a))]
+      (let [value-cardinality (max 1.0 (double (db/value-cardinality stats a)))]
+        (-> (reduce (fn [acc v]
+                      (let [matches (double (or (hist/estimate-equal histogram (c/->value-buffer v))
+                                                total-count))]
+                        (+ acc (* baseline (min 1.0 (/ (* matches value-cardinality) total-count))))))
+                    0.0
+                    (c/vectorize-value v))
+            (max (/ baseline (inc total-count)))))
+      baseline)))
+
+(defn- range-selectivity
+  "fraction of the triples of `a` expected to satisfy all of the (literal) `range-clauses`, nil if unknown"
+  [stats a range-clauses]
+  (when-let [{:keys [^long total-count] :as histogram} (when (pos? (long (db/doc-count stats a)))
+                                                        (db/value-histogram stats a))]
+    (when-let [matches (hist/estimate-range histogram (for [{:keys [op val]} range-clauses]
+                                                        [op (c/->value-buffer val)]))]
+      (-> (/ (double matches) total-count)
+          (max (/ 1.0 (inc total-count)))
+          (min 1.0)))))
+
 (defn- triple-joins [triple-clauses
                      var->joins
                      {range-clauses :range
                       pred-clauses :pred
                       :as type->clauses}
                      in-vars
-                     stats]
+                     stats
+                     ordered-var]
   (let [collected-vars (collect-vars type->clauses)
         pred-var-frequencies (frequencies
                               (for [{:keys [pred return]} pred-clauses
@@ -602,7 +779,10 @@
                                      sym [sym sym-a sym-b]
                                      :when (logic-var? sym)]
                                  sym))
-        cardinality-for-var (fn [var cardinality]
+        var->literal-range-clauses (->> range-clauses
+                                        (filter #(contains? % :val))
+                                        (group-by :sym))
+        cardinality-for-var (fn [var cardinality selectivity]
                               (cond-> (double (cond
                                                 (literal? var)
                                                 0.0
@@ -620,20 +800,29 @@
                                 (contains? pred-var-frequencies var)
                                 (Math/pow (/ 0.25 (double (get pred-var-frequencies var))))
 
-                                (contains? range-var-frequencies var)
+                                selectivity
+                                (* (double selectivity))
+
+                                (and (nil? selectivity)
+                                     (contains? range-var-frequencies var))
                                 (Math/pow (/ 0.5 (double (get range-var-frequencies var))))))
         update-cardinality (fn [acc {:keys [e a v] :as clause}]
                              (let [{:keys [self-join? ignore-v?]} (meta clause)
-                                   es (double (cardinality-for-var e (cond->> (double (db/eid-cardinality stats a))
-                                                                       (literal? v) (/ 1.0))))
+                                   es (double (cardinality-for-var e (if (literal? v)
+                                                                       (literal-selectivity stats a v)
+                                                                       (db/eid-cardinality stats a))
+                                                                     nil))
                                    vs (cond
                                         ignore-v?
                                         Double/MAX_VALUE
                                         self-join?
                                         (Math/nextUp es)
                                         :else
-                                        (cardinality-for-var v (cond->> (double (db/value-cardinality stats a))
-                                                                 (literal? e) (/ 1.0))))]
+                                        (cardinality-for-var v
+                                                             (cond->> (double (db/value-cardinality stats a))
+                                                               (literal? e) (/ 1.0))
+                                                             (some->> (get var->literal-range-clauses v)
+                                                                      (range-selectivity stats a))))]
                                (-> acc
                                    (update v (fnil min Double/MAX_VALUE) vs)
                                    (update e (fnil min Double/MAX_VALUE) es))))
@@ -642,7 +831,10 @@
                                  (group-by :v triple-clauses)
                                  (group-by :e triple-clauses))
         literals (set (filter literal? (keys var->clauses)))
-        join-order (loop [vars (filter logic-var? (map key (sort-by val var->cardinality)))
+        vars-by-cardinality (filter logic-var? (map key (sort-by val var->cardinality)))
+        join-order (loop [vars (if (contains? var->cardinality ordered-var)
+                                 (cons ordered-var (remove #{ordered-var} vars-by-cardinality))
+                                 vars-by-cardinality)
                           join-order (vec literals)
                           reachable-var-groups (list)]
                      (if (seq vars)
@@ -1370,9 +1562,12 @@
     (all-attrs [_] (db/all-attrs index-snapshot))
     (doc-count [_ a] (db/doc-count index-snapshot a))
     (eid-cardinality [_ a] (db/eid-cardinality index-snapshot a))
-    (value-cardinality [_ a] (db/value-cardinality index-snapshot a))))
+    (value-cardinality [_ a] (db/value-cardinality index-snapshot a))
+    (value-histogram [_ a] (db/value-histogram index-snapshot a))))
 
-(defn- compile-sub-query [encode-value-fn stats {:keys [fn-allow-list pred-ctx] :as db} where in rule-name->rules]
+(defn- compile-sub-query
+  "`ordered-var`, if given, is joined first where possible - see `index-ordered-var`."
+  [encode-value-fn stats {:keys [fn-allow-list pred-ctx] :as db} where in rule-name->rules ordered-var]
   (try
     (let [where (-> (expand-rules where rule-name->rules {})
                     (build-pred-fns fn-allow-list))
@@ -1392,7 +1587,8 @@
                                                                        var->joins
                                                                        type->clauses
                                                                        in-vars
-                                                                       stats)
+                                                                       stats
+                                                                       ordered-var)
           [in-idx-ids var->joins] (in-joins (:bindings in) var->joins)
           [pred-clause+idx-ids var->joins] (pred-joins pred-clauses var->joins)
           known-vars (set/union e-vars v-vars in-vars)
@@ -1465,7 +1661,7 @@
         (if (and (= ::dep/circular-dependency reason)
                  (not (contains? *broken-cycles* cycle)))
           (binding [*broken-cycles* (conj *broken-cycles* cycle)]
-            (compile-sub-query encode-value-fn stats db (break-cycle where cycle) in rule-name->rules))
+            (compile-sub-query encode-value-fn stats db (break-cycle where cycle) in rule-name->rules ordered-var))
           (throw e))))))
 
 (defn- build-idx-id->idx [db index-snapshot {:keys [var->joins] :as compiled-query}]
@@ -1497,59 +1693,145 @@
                                                     logic-var+range-constraint)))))
     compiled-query))
 
-(defn- build-sub-query [index-snapshot {:keys [query-cache] :as db} where in in-args rule-name->rules]
-  ;; NOTE: this implies argument sets with different vars get compiled
-  ;; differently.
-  (let [encode-value-fn (partial db/encode-value index-snapshot)
-        {:keys [depth->constraints
-                vars-in-join-order
-                var->range-constraints
-                var->joins
-                var->bindings
-                in-bindings]
-         :as compiled-query} (-> (cache/compute-if-absent
-                                  query-cache
-                                  [where in rule-name->rules]
-                                  identity
-                                  (fn [_]
-                                    (compile-sub-query encode-value-fn (->stats index-snapshot) db where in rule-name->rules)))
-                                 (add-logic-var-constraints))
-        idx-id->idx (build-idx-id->idx db index-snapshot compiled-query)
-        unary-join-indexes (for [v vars-in-join-order]
-                             (-> (idx/new-unary-join-virtual-index
-                                  (vec (for [{:keys [id idx-fn] :as join} (get var->joins v)]
-                                         (or (get idx-id->idx id)
-                                             (idx-fn db index-snapshot compiled-query)))))
-                                 (idx/wrap-with-range-constraints (get var->range-constraints v))))
-        constrain-result-fn (fn [join-keys ^long depth]
-                              (every? (fn [f]
-                                        (f index-snapshot db idx-id->idx join-keys))
-                                      (.get ^List depth->constraints depth)))]
-    (binding [nippy/*freeze-fallback* :write-unfreezable]
-      (doseq [[{:keys [idx-id bind-type tuple-idxs-in-join-order]} in-arg] (map vector in-bindings in-args)]
-        (bind-binding bind-type
-                      tuple-idxs-in-join-order
-                      (get idx-id->idx idx-id)
-                      in-arg)))
-    (log/debug :where (cio/pr-edn-str where))
-    (log/debug :vars-in-join-order vars-in-join-order)
-    (log/debug :var->bindings (cio/pr-edn-str var->bindings))
-    {:n-ary-join (when (constrain-result-fn [] 0)
-                   (idx/new-n-ary-join-layered-virtual-index unary-join-indexes constrain-result-fn))
-     :var->bindings var->bindings}))
+(defn- build-sub-query
+  ([index-snapshot db where in in-args rule-name->rules]
+   (build-sub-query index-snapshot db where in in-args rule-name->rules nil))
+  ([index-snapshot {:keys [query-cache] :as db} where in in-args rule-name->rules ordered-var]
+   ;; NOTE: this implies argument sets with different vars get compiled
+   ;; differently.
+   (let [encode-value-fn (partial db/encode-value index-snapshot)
+         {:keys [depth->constraints
+                 vars-in-join-order
+                 var->range-constraints
+                 var->joins
+                 var->bindings
+                 in-bindings]
+          :as compiled-query} (-> (cache/compute-if-absent
+                                   query-cache
+                                   (cond-> [where in rule-name->rules]
+                                     ordered-var (conj ordered-var))
+                                   identity
+                                   (fn [_]
+                                     (compile-sub-query encode-value-fn (->stats index-snapshot) db where in rule-name->rules ordered-var)))
+                                  (add-logic-var-constraints))
+         idx-id->idx (build-idx-id->idx db index-snapshot compiled-query)
+         unary-join-indexes (for [v vars-in-join-order]
+                              (-> (idx/new-unary-join-virtual-index
+                                   (vec (for [{:keys [id idx-fn] :as join} (get var->joins v)]
+                                          (or (get idx-id->idx id)
+                                              (idx-fn db index-snapshot compiled-query)))))
+                                  (idx/wrap-with-range-constraints (get var->range-constraints v))))
+         constrain-result-fn (fn [join-keys ^long depth]
+                               (every? (fn [f]
+                                         (f index-snapshot db idx-id->idx join-keys))
+                                       (.get ^List depth->constraints depth)))]
+     (binding [nippy/*freeze-fallback* :write-unfreezable]
+       (doseq [[{:keys [idx-id bind-type tuple-idxs-in-join-order]} in-arg] (map vector in-bindings in-args)]
+         (bind-binding bind-type
+                       tuple-idxs-in-join-order
+                       (get idx-id->idx idx-id)
+                       in-arg)))
+     (log/debug :where (cio/pr-edn-str where))
+     (log/debug :vars-in-join-order vars-in-join-order)
+     (log/debug :var->bindings (cio/pr-edn-str var->bindings))
+     {:n-ary-join (when (constrain-result-fn [] 0)
+                    (idx/new-n-ary-join-layered-virtual-index unary-join-indexes constrain-result-fn))
+      :var->bindings var->bindings
+      :vars-in-join-order vars-in-join-order})))
 
 (defn- open-index-snapshot ^java.io.Closeable [{:keys [index-store index-snapshot] :as db}]
   (if index-snapshot
     (db/open-nested-index-snapshot index-snapshot)
     (db/open-index-snapshot index-store)))
 
-(defn- with-entity-resolver-cache [entity-resolver-fn {:keys [entity-cache-size]}]
-  (let [entity-cache (lru/->lru-cache {:cache-size entity-cache-size})]
-    (fn [k]
-      (cache/compute-if-absent entity-cache k mem/copy-to-unpooled-buffer entity-resolver-fn))))
-
-(defn- new-entity-resolver-fn [{:keys [valid-time tx-id index-snapshot] :as db}]
-  (with-entity-resolver-cache #(when tx-id (db/entity-as-of-resolver index-snapshot % valid-time tx-id)) db))
+;; Per-query entity caches come from a pool, so that each query doesn't
+;; allocate (and leave for GC) a new off-heap table. The resolver is closed
+;; with the query (or the open db), which clears its table and returns it.
+(defn- with-entity-resolver-cache [entity-resolver-fn {:keys [^BlockingQueue entity-cache-pool entity-cache-size]}]
+  (let [entity-cache (or (some-> entity-cache-pool .poll)
+                         (id-table/->id-table-cache {:cache-size entity-cache-size}))
+        closed? (AtomicBoolean.)]
+    (reify
+      IFn
+      (invoke [_ k]
+        (cache/compute-if-absent entity-cache k mem/copy-to-unpooled-buffer entity-resolver-fn))
+
+      Closeable
+      (close [_]
+        (when (.compareAndSet closed? false true)
+          (id-table/clear! entity-cache)
+          (when-not (some-> entity-cache-pool (.offer entity-cache))
+            (cio/try-close entity-cache)))))))
+
+;; Entities resolved at the latest tx-id, with a valid-time after any
+;; indexed valid-time (the usual 'now' query), don't depend on the query's
+;; exact valid-time - so the node shares one cache between all of these
+;; queries. It's replaced as soon as a query sees a newer tx.
+;; Generations are reference-counted - the node holds one reference to the
+;; current generation, each query using it another. Once the last reference
+;; goes, the generation's table is cleared and kept for the next generation,
+;; rather than each tx leaving a table behind for GC.
+
+(defn- retain-generation? [{:keys [^AtomicLong !refs]}]
+  (loop []
+    (let [refs (.get !refs)]
+      (cond
+        (zero? refs) false
+        (.compareAndSet !refs refs (inc refs)) true
+        :else (recur)))))
+
+(defn- release-generation! [{:keys [!spare]} {:keys [^AtomicLong !refs cache]}]
+  (when (zero? (.decrementAndGet !refs))
+    (id-table/clear! cache)
+    (when-not (compare-and-set! !spare nil cache)
+      (cio/try-close cache))))
+
+(defn- acquire-shared-generation [{:keys [!generation !spare cache-size] :as shared-entity-cache} tx-id]
+  (loop []
+    (let [{gen-tx-id :tx-id :as generation} @!generation]
+      (cond
+        (= gen-tx-id tx-id)
+        (if (retain-generation? generation)
+          generation
+          (recur))
+
+        (or (nil? gen-tx-id) (< (long gen-tx-id) (long tx-id)))
+        ;; built outside of the CAS, so that a retry doesn't allocate another table
+        (let [cache (or (first (reset-vals! !spare nil))
+                        (id-table/->id-table-cache {:cache-size cache-size}))
+              new-generation {:tx-id tx-id, :cache cache, :!refs (AtomicLong. 2)}]
+          (if (compare-and-set! !generation generation new-generation)
+            (do
+              (some->> generation (release-generation! shared-entity-cache))
+              new-generation)
+            (do
+              (when-not (compare-and-set! !spare nil cache)
+                (cio/try-close cache))
+              (recur))))
+
+        ;; a newer tx has replaced this one's generation
+        :else nil))))
+
+(defn- shared-entity-resolver-fn [shared-entity-cache entity-resolver-fn {:keys [valid-time tx-id index-snapshot]}]
+  (when tx-id
+    (let [max-vt (db/read-index-meta index-snapshot :crux.index/max-valid-time)]
+      (when (and max-vt (not (pos? (compare max-vt valid-time))))
+        (when-let [{:keys [cache] :as generation} (acquire-shared-generation shared-entity-cache tx-id)]
+          (let [closed? (AtomicBoolean.)]
+            (reify
+              IFn
+              (invoke [_ k]
+                (cache/compute-if-absent cache k mem/copy-to-unpooled-buffer entity-resolver-fn))
+
+              Closeable
+              (close [_]
+                (when (.compareAndSet closed? false true)
+                  (release-generation! shared-entity-cache generation))))))))))
+
+(defn- new-entity-resolver-fn [{:keys [valid-time tx-id index-snapshot shared-entity-cache] :as db}]
+  (let [entity-resolver-fn #(when tx-id (db/entity-as-of-resolver index-snapshot % valid-time tx-id))]
+    (or (some-> shared-entity-cache (shared-entity-resolver-fn entity-resolver-fn db))
+        (with-entity-resolver-cache entity-resolver-fn db))))
 
 (defn- validate-in [in]
   (doseq [binding (:bindings in)
@@ -1587,6 +1869,46 @@
                              (= :desc direction) -))
                      order-by))))))))
 
+(def ^:private index-ordered-types
+  ;; types whose encoded values sort the same way as `compare`
+  #{Long Double Date Instant Duration LocalDate LocalTime LocalDateTime})
+
+(defn- index-ordered-var
+  "The var leading the `:order-by`, if the result could come in its index order instead:
+  it has to be ascending, and range constrained against a literal of one of
+  the `index-ordered-types` - which restricts it to values of that type."
+  [{:keys [find where order-by]}]
+  (let [[{[find-arg-type v] :find-arg, :keys [direction]}] order-by]
+    (when (and (= :logic-var find-arg-type)
+               (not= :desc direction)
+               (not-any? (comp #{:aggregate} first) find)
+               (some (fn [{:keys [sym val]}]
+                       (and (= v sym)
+                            (contains? index-ordered-types (type val))))
+                     (:range (normalize-clauses where))))
+      v)))
+
+(defn- order-result [find order-by offset limit index-ordered? result]
+  (let [comparator (order-by-comparator find order-by)
+        k (when limit
+            (+ (long (or offset 0)) (long limit)))]
+    (cond
+      ;; the result is already in the order of the leading :order-by var,
+      ;; so we only have to sort its ties by any other :order-by elements
+      index-ordered?
+      (if (= 1 (count order-by))
+        result
+        (let [idx (.indexOf ^List find (:find-arg (first order-by)))]
+          (->> (partition-by #(nth % idx) result)
+               (mapcat #(sort comparator %)))))
+
+      ;; only the first `offset + limit` rows are returned, so we needn't sort the rest
+      (and k (<= (long k) cio/default-external-sort-part-size))
+      (cio/top-k comparator k result)
+
+      :else
+      (cio/external-sort comparator result))))
+
 (defn- compile-find [conformed-find {:keys [var->bindings]} {:keys [pull-cache]}]
   (for [[var-type arg] conformed-find]
     (case var-type
@@ -1606,41 +1928,96 @@
                       :var-type :aggregate
                       :var-binding (var->bindings (:logic-var arg))
                       :aggregate-fn (apply aggregate (:aggregate-fn arg) (:args arg))
+                      :->accumulator (primitive-accumulator-fn (:aggregate-fn arg) (:args arg))
                       :->result (fn [value _]
                                   value)}))))
 
-(defn- aggregate-result [compiled-find result]
-  (let [indexed-compiled-find (map-indexed vector compiled-find)
+(def ^:private default-aggregate-spill-threshold (* 128 1024))
+(def ^:private default-aggregate-spill-part-bytes (* 16 1024 1024))
+
+(defn- aggregate-result [compiled-find {:keys [aggregate-spill-threshold aggregate-spill-part-bytes]} result]
+  (let [aggregate-spill-threshold (long (or aggregate-spill-threshold default-aggregate-spill-threshold))
+        aggregate-spill-part-bytes (long (or aggregate-spill-part-bytes default-aggregate-spill-part-bytes))
+        indexed-compiled-find (map-indexed vector compiled-find)
         grouping-var-idxs (vec (for [[n {:keys [var-type]}] indexed-compiled-find
                                      :when (not= :aggregate var-type)]
                                  n))
-        idx->aggregate (->> (for [[n {:keys [aggregate-fn]}] indexed-compiled-find
-                                  :when aggregate-fn]
-                              [n aggregate-fn])
-                            (into {}))
-        groups (persistent!
-                (reduce
-                 (fn [acc tuple]
-                   (let [group (mapv tuple grouping-var-idxs)
-                         group-acc (or (get acc group)
-                                       (reduce-kv
-                                        (fn [acc n aggregate-fn]
-                                          (assoc acc n (aggregate-fn)))
-                                        tuple
-                                        idx->aggregate))]
-                     (assoc! acc group (reduce-kv
-                                        (fn [acc n aggregate-fn]
-                                          (update acc n #(aggregate-fn % (get tuple n))))
-                                        group-acc
-                                        idx->aggregate))))
-                 (transient {})
-                 result))]
-    (for [[_ group-acc] groups]
-      (reduce-kv
-       (fn [acc n aggregate-fn]
-         (update acc n aggregate-fn))
-       group-acc
-       idx->aggregate))))
+        aggregates (vec (for [[n {:keys [aggregate-fn ->accumulator]}] indexed-compiled-find
+                              :when aggregate-fn]
+                          [n aggregate-fn ->accumulator]))
+        aggregate-idxs (long-array (map first aggregates))
+        ^objects aggregate-fns (object-array (map second aggregates))
+        ^objects ->accumulators (object-array (map #(nth % 2) aggregates))
+        n-aggregates (alength aggregate-idxs)]
+    ;; each group's accumulators are updated in place, one slot per find element -
+    ;; the built-in aggregates with a `PrimitiveAccumulator` mutate it, the rest are replaced
+    (letfn [(->group [tuple]
+              (mapv tuple grouping-var-idxs))
+
+            (step-group-acc [^objects group-acc tuple]
+              (dotimes [i n-aggregates]
+                (let [n (aget aggregate-idxs i)]
+                  (if (aget ->accumulators i)
+                    (.accumulate ^PrimitiveAccumulator (aget group-acc n) (get tuple n))
+                    (aset group-acc n (.invoke ^IFn (aget aggregate-fns i) (aget group-acc n) (get tuple n))))))
+              group-acc)
+
+            (new-group-acc [tuple]
+              (let [group-acc (object-array tuple)]
+                (dotimes [i n-aggregates]
+                  (aset group-acc (aget aggregate-idxs i) (if-let [->accumulator (aget ->accumulators i)]
+                                                            (.invoke ^IFn ->accumulator)
+                                                            (.invoke ^IFn (aget aggregate-fns i)))))
+                (step-group-acc group-acc tuple)))
+
+            (complete-group-acc [^objects group-acc]
+              (dotimes [i n-aggregates]
+                (let [n (aget aggregate-idxs i)]
+                  (aset group-acc n (if (aget ->accumulators i)
+                                      (.result ^PrimitiveAccumulator (aget group-acc n))
+                                      (.invoke ^IFn (aget aggregate-fns i) (aget group-acc n))))))
+              (vec group-acc))
+
+            (aggregate-tuple [groups group tuple]
+              (if-let [group-acc (get groups group)]
+                (do (step-group-acc group-acc tuple)
+                    groups)
+                (assoc! groups group (new-group-acc tuple))))
+
+            (aggregate-tuples [tuples]
+              (->> (persistent! (reduce (fn [groups tuple]
+                                          (aggregate-tuple groups (->group tuple) tuple))
+                                        (transient {})
+                                        tuples))
+                   (vals)
+                   (map complete-group-acc)))]
+
+      ;; groups are aggregated in memory until there are `aggregate-spill-threshold` of them.
+      ;; after that, tuples of any new groups are spilled to disk, sorted by the hash of their group,
+      ;; and then aggregated a hash at a time. each sorted part holds roughly
+      ;; `aggregate-spill-part-bytes` of (serialised) tuples before it's written out.
+      (let [!groups (volatile! (transient {}))
+            ;; NOTE: `external-sort` consumes the whole result before returning
+            spilled (->> result
+                         (remove (fn [tuple]
+                                   (let [group (->group tuple)
+                                         groups @!groups]
+                                     (when (or (get groups group)
+                                               (< (count groups) aggregate-spill-threshold))
+                                       (vreset! !groups (aggregate-tuple groups group tuple))
+                                       true))))
+                         (map (fn [tuple]
+                                [(hash (->group tuple)) tuple]))
+                         (cio/external-sort-by-size (fn [[h1] [h2]]
+                                                      (compare h1 h2))
+                                                    aggregate-spill-part-bytes
+                                                    (fn [hashed-tuple]
+                                                      (alength ^bytes (nippy/fast-freeze hashed-tuple)))))
+            groups (persistent! @!groups)]
+        (concat (map complete-group-acc (vals groups))
+                (->> (partition-by first spilled)
+                     (mapcat (fn [hashed-tuples]
+                               (aggregate-tuples (map second hashed-tuples))))))))))
 
 (defn- arg-for-var [arg var]
   (second
@@ -1661,13 +2038,69 @@
                   in-args))])
     [in in-args]))
 
-(defn query-plan-for [db q]
-  (s/assert ::query q)
-  (with-open [index-snapshot (open-index-snapshot db)]
-    (let [db (assoc db :index-snapshot index-snapshot)
-          {:keys [where rules] :as conformed-q} (s/conform ::query q)
-          [in _in-args] (add-legacy-args conformed-q [])]
-      (compile-sub-query (partial db/encode-value index-snapshot) (->stats index-snapshot) db where in (rule-name->rules rules)))))
+(deftype CountingLayeredIndex [idx ^longs depth->count ^:unsynchronized-mutable ^long depth]
+  db/Index
+  (seek-values [this k]
+    (let [v (db/seek-values idx k)]
+      (when v
+        (aset depth->count depth (inc (aget depth->count depth))))
+      v))
+
+  (next-values [this]
+    (let [v (db/next-values idx)]
+      (when v
+        (aset depth->count depth (inc (aget depth->count depth))))
+      v))
+
+  db/LayeredIndex
+  (open-level [this]
+    (db/open-level idx)
+    (set! depth (inc depth))
+    nil)
+
+  (close-level [this]
+    (db/close-level idx)
+    (set! depth (dec depth))
+    nil)
+
+  (max-depth [this]
+    (db/max-depth idx)))
+
+(defn query-plan-for
+  "Returns the compiled plan for the query's where clause.
+  Given `in-args`, also runs the join and adds `:var->actual-cardinality` -
+  the number of partial results at each var's level of the join - to compare
+  with the planner's estimated `:var->cardinality`."
+  ([db q]
+   (s/assert ::query q)
+   (with-open [index-snapshot (open-index-snapshot db)]
+     (let [db (assoc db :index-snapshot index-snapshot)
+           {:keys [where rules] :as conformed-q} (s/conform ::query q)
+           [in _in-args] (add-legacy-args conformed-q [])]
+       (compile-sub-query (partial db/encode-value index-snapshot) (->stats index-snapshot) db where in (rule-name->rules rules) nil))))
+
+  ([db q in-args]
+   (s/assert ::query q)
+   (with-open [index-snapshot (open-index-snapshot db)]
+     (let [own-entity-resolver-fn (when-not (:entity-resolver-fn db)
+                                    (new-entity-resolver-fn (assoc db :index-snapshot index-snapshot)))]
+       (try
+         (let [db (assoc db
+                         :index-snapshot index-snapshot
+                         :entity-resolver-fn (or (:entity-resolver-fn db) own-entity-resolver-fn))
+               {:keys [where rules] :as conformed-q} (s/conform ::query q)
+               [in in-args] (add-legacy-args conformed-q in-args)
+               rule-name->rules (rule-name->rules rules)
+               {:keys [vars-in-join-order] :as compiled-query} (compile-sub-query (partial db/encode-value index-snapshot)
+                                                                                  (->stats index-snapshot)
+                                                                                  db where in rule-name->rules nil)
+               {:keys [n-ary-join]} (build-sub-query index-snapshot db where in in-args rule-name->rules)
+               depth->count (long-array (count vars-in-join-order))]
+           (when n-ary-join
+             (dorun (idx/layered-idx->seq (->CountingLayeredIndex n-ary-join depth->count 0))))
+           (assoc compiled-query :var->actual-cardinality (zipmap vars-in-join-order depth->count)))
+         (finally
+           (cio/try-close own-entity-resolver-fn)))))))
 
 (defn- ->return-maps [{:keys [keys syms strs]}]
   (let [ks (or (some->> keys (mapv keyword))
@@ -1696,7 +2129,14 @@
           entity-resolver-fn (or (:entity-resolver-fn db)
                                  (new-entity-resolver-fn db))
           db (assoc db :entity-resolver-fn entity-resolver-fn)
-          {:keys [n-ary-join] :as built-query} (build-sub-query index-snapshot db where in in-args rule-name->rules)
+          index-ordered-var (when order-by
+                              (index-ordered-var q-conformed))
+          ;; with a :limit, it's worth joining the ordered var first, so the first page is found without a full scan
+          {:keys [n-ary-join vars-in-join-order] :as built-query} (build-sub-query index-snapshot db where in in-args rule-name->rules
+                                                                                   (when limit index-ordered-var))
+          index-ordered? (and index-ordered-var
+                              ;; single literals don't change the order, but sets of them do
+                              (= index-ordered-var (first (remove (every-pred literal? (complement coll?)) vars-in-join-order))))
           compiled-find (compile-find find built-query db)
           var-types (set (map :var-type compiled-find))
           aggregate? (contains? var-types :aggregate)
@@ -1718,8 +2158,8 @@
                           (bound-result-for-var index-snapshot var-binding join-keys))
                         var-bindings))
 
-         aggregate? (aggregate-result compiled-find)
-         order-by (cio/external-sort (order-by-comparator find order-by))
+         aggregate? (aggregate-result compiled-find db)
+         order-by (order-result find order-by offset limit index-ordered?)
          offset (drop offset)
          limit (take limit)
          pull? (pull/->pull-result db compiled-find q-conformed)
@@ -1766,6 +2206,7 @@
                             fn-allow-list]
   Closeable
   (close [_]
+    (cio/try-close entity-resolver-fn)
     (when index-snapshot
       (.close ^Closeable index-snapshot)))
 
@@ -1807,24 +2248,29 @@
     (let [conformed-query (normalize-and-conform-query conform-cache query)
           query-id (str (UUID/randomUUID))
           safe-query (-> conformed-query .q-normalized (dissoc :args))
-          index-snapshot (open-index-snapshot this)]
+          index-snapshot (open-index-snapshot this)
+          ;; only closed with the query if it's the query's own
+          own-entity-resolver-fn (when-not entity-resolver-fn
+                                   (new-entity-resolver-fn (assoc this :index-snapshot index-snapshot)))]
       (when bus
         (bus/send bus {:crux/event-type ::submitted-query
                        ::query safe-query
                        ::query-id query-id}))
       (try
-        (let [db (as-> this db
-                   (assoc db :index-snapshot index-snapshot)
-                   (assoc db :entity-resolver-fn (or entity-resolver-fn (new-entity-resolver-fn db))))]
+        (let [db (assoc this
+                        :index-snapshot index-snapshot
+                        :entity-resolver-fn (or entity-resolver-fn own-entity-resolver-fn))]
 
           (->> (crux.query/query db conformed-query args)
                (cio/->cursor (fn []
+                               (cio/try-close own-entity-resolver-fn)
                                (cio/try-close index-snapshot)
                                (when bus
                                  (bus/send bus {:crux/event-type ::completed-query
                                                 ::query safe-query
                                                 ::query-id query-id}))))))
         (catch Exception e
+          (cio/try-close own-entity-resolver-fn)
           (cio/try-close index-snapshot)
           (when bus
             (bus/send bus {:crux/event-type ::failed-query
@@ -1930,7 +2376,8 @@
 
 (defrecord QueryEngine [^ScheduledExecutorService interrupt-executor document-store
                         index-store bus !pred-ctx
-                        query-cache conform-cache pull-cache]
+                        query-cache conform-cache pull-cache
+                        shared-entity-cache]
   api/DBProvider
   (db [this] (api/db this nil))
   (db [this valid-time tx-time] (api/db this {:crux.db/valid-time valid-time, :crux.tx/tx-time tx-time}))
@@ -2011,8 +2458,22 @@
                                                :spec ::sys/pos-int}
                                   :fn-allow-list {:doc "Predicate Allowlist"
                                                   :default nil
-                                                  :spec ::fn-allow-list}}}
-  [opts]
+                                                  :spec ::fn-allow-list}
+                                  :aggregate-spill-threshold {:doc "Number of groups an aggregate query holds in memory before spilling the rest to disk"
+                                                              :default default-aggregate-spill-threshold
+                                                              :spec ::sys/pos-int}
+                                  :aggregate-spill-part-bytes {:doc "Approximate size, in serialised bytes, of each sorted part an aggregate query spills to disk"
+                                                               :default default-aggregate-spill-part-bytes
+                                                               :spec ::sys/pos-int}
+                                  :shared-entity-cache-size {:doc "Size of the entity cache shared between queries at the latest tx, 0 to disable"
+                                                             :default (* 128 1024)
+                                                             :spec ::sys/nat-int}}}
+  [{:keys [^long shared-entity-cache-size] :as opts}]
   (map->QueryEngine (assoc opts
                            :interrupt-executor (Executors/newSingleThreadScheduledExecutor (cio/thread-factory "crux-query-interrupter"))
-                           :!pred-ctx (atom {}))))
+                           :!pred-ctx (atom {})
+                           :entity-cache-pool (ArrayBlockingQueue. (.availableProcessors (Runtime/getRuntime)))
+                           :shared-entity-cache (when (pos? shared-entity-cache-size)
+                                                  {:!generation (atom nil)
+                                                   :!spare (atom nil)
+                                                   :cache-size shared-entity-cache-size}))))
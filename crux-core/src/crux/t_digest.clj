@@ -0,0 +1,113 @@
+(ns ^:no-doc crux.t-digest
+  (:import java.util.Arrays))
+
+;; A merging t-digest: an approximation of a distribution in bounded
+;; memory, most accurate towards the tails. Points are buffered, then
+;; merged into the (mean-sorted) centroids, which are kept small enough
+;; that each spans at most one unit of the k1 scale function.
+
+;; https://arxiv.org/abs/1902.04023
+
+(set! *unchecked-math* :warn-on-boxed)
+
+(def ^:const default-compression 100)
+
+(defprotocol PTDigest
+  (add! [this x])
+  (compress! [this])
+  (quantile [this q]
+    "`q` in [0, 1], nil if nothing's been added")
+  (total-weight [this]))
+
+(defn- k-scale ^double [^double compression ^double q]
+  (* (/ compression (* 2.0 Math/PI)) (Math/asin (- (* 2.0 (Math/min 1.0 q)) 1.0))))
+
+(deftype TDigest [^double compression
+                  ^:unsynchronized-mutable ^doubles means
+                  ^:unsynchronized-mutable ^doubles weights
+                  ^:unsynchronized-mutable ^long n-centroids
+                  ^doubles buffer
+                  ^:unsynchronized-mutable ^long n-buffered
+                  ^:unsynchronized-mutable ^double total
+                  ^:unsynchronized-mutable ^double min-x
+                  ^:unsynchronized-mutable ^double max-x]
+  PTDigest
+  (add! [this x]
+    (when (= n-buffered (alength buffer))
+      (compress! this))
+    (let [x (double x)]
+      (aset buffer n-buffered x)
+      (set! n-buffered (inc n-buffered))
+      (set! total (+ total 1.0))
+      (set! min-x (Math/min min-x x))
+      (set! max-x (Math/max max-x x))
+      this))
+
+  (compress! [this]
+    (if (zero? n-buffered)
+      this
+      (let [n (+ n-centroids n-buffered)
+            new-means (double-array n)
+            new-weights (double-array n)]
+        (Arrays/sort buffer 0 n-buffered)
+        ;; both inputs are sorted by mean, so merge them in order
+        (loop [i 0
+               j 0
+               out -1
+               so-far 0.0
+               k-limit Double/NEGATIVE_INFINITY]
+          (if (or (< i n-centroids) (< j n-buffered))
+            (let [from-centroids? (or (= j n-buffered)
+                                      (and (< i n-centroids) (< (aget means i) (aget buffer j))))
+                  m (if from-centroids? (aget means i) (aget buffer j))
+                  w (if from-centroids? (aget weights i) 1.0)
+                  i (if from-centroids? (inc i) i)
+                  j (if from-centroids? j (inc j))]
+              (if (and (>= out 0)
+                       (<= (k-scale compression (/ (+ so-far w) total)) k-limit))
+                (let [merged-w (+ (aget new-weights out) w)]
+                  (aset new-means out (+ (aget new-means out) (* (- m (aget new-means out)) (/ w merged-w))))
+                  (aset new-weights out merged-w)
+                  (recur i j out (+ so-far w) k-limit))
+                (let [out (inc out)]
+                  (aset new-means out m)
+                  (aset new-weights out w)
+                  (recur i j out (+ so-far w) (+ (k-scale compression (/ so-far total)) 1.0)))))
+            (do
+              (set! means new-means)
+              (set! weights new-weights)
+              (set! n-centroids (inc out))
+              (set! n-buffered 0)
+              this))))))
+
+  (quantile [this q]
+    (compress! this)
+    (when (pos? n-centroids)
+      (let [target (* (Math/min 1.0 (Math/max 0.0 (double q))) total)]
+        ;; interpolate between centroid centres, and out to the min/max at the ends
+        (loop [i 0
+               cum 0.0
+               prev-center 0.0
+               prev-mean min-x]
+          (if (< i n-centroids)
+            (let [w (aget weights i)
+                  m (aget means i)
+                  center (+ cum (/ w 2.0))]
+              (if (<= target center)
+                (if (== center prev-center)
+                  m
+                  (+ prev-mean (* (- m prev-mean) (/ (- target prev-center) (- center prev-center)))))
+                (recur (inc i) (+ cum w) center m)))
+            (if (== total prev-center)
+              max-x
+              (+ prev-mean (* (- max-x prev-mean) (/ (- target prev-center) (- total prev-center))))))))))
+
+  (total-weight [_] total))
+
+(defn ->t-digest
+  (^crux.t_digest.TDigest [] (->t-digest default-compression))
+  (^crux.t_digest.TDigest [^long compression]
+   (->TDigest (double compression)
+              (double-array 0) (double-array 0) 0
+              (double-array (* 5 compression)) 0
+              0.0 Double/POSITIVE_INFINITY Double/NEGATIVE_INFINITY)))
@@ -17,9 +17,9 @@
            crux.codec.EntityTx
            java.io.Closeable
            java.time.Duration
-           [java.util.concurrent CompletableFuture Future]
+           [java.util.concurrent ArrayBlockingQueue CompletableFuture ExecutionException Executors ExecutorService Future Semaphore]
            java.util.Date
-           java.util.function.BiConsumer))
+           [java.util.function BiConsumer Supplier]))
 
 (set! *unchecked-math* :warn-on-boxed)
 
@@ -263,6 +263,20 @@
                    (update :bytes-indexed + bytes-indexed)
                    (update :doc-ids into (map c/new-id) (keys indexed-docs))))))))
 
+(defn- when-index-tx-visible
+  "index-store txs may defer making their writes visible (e.g. group commits) -
+  `f` runs once readers can see the tx."
+  [index-tx-result f]
+  (if (instance? CompletableFuture index-tx-result)
+    (.thenRun ^CompletableFuture index-tx-result
+              (reify Runnable
+                (run [_]
+                  (try
+                    (f)
+                    (catch Throwable t
+                      (log/error t "Error notifying of indexed tx"))))))
+    (f)))
+
 (defrecord InFlightTx [tx fork-at !tx-state !tx
                        index-store-tx document-store-tx
                        db-provider bus]
@@ -338,16 +352,18 @@
       (throw (IllegalStateException. "Can't commit from fork.")))
 
     (fork/commit-doc-store-tx document-store-tx)
-    (db/commit-index-tx index-store-tx)
 
-    (log/debug "Transaction committed:" (pr-str tx))
+    (let [{:keys [tx-events] :as indexed-tx} @!tx]
+      (-> (db/commit-index-tx index-store-tx)
+          (when-index-tx-visible
+           (fn []
+             (log/debug "Transaction committed:" (pr-str tx))
 
-    (let [{:keys [tx-events]} @!tx]
-      (bus/send bus (into {:crux/event-type ::indexed-tx,
-                           :submitted-tx tx,
-                           :committed? true
-                           ::txe/tx-events tx-events}
-                          (select-keys @!tx [:doc-ids :av-count :bytes-indexed])))))
+             (bus/send bus (into {:crux/event-type ::indexed-tx,
+                                  :submitted-tx tx,
+                                  :committed? true
+                                  ::txe/tx-events tx-events}
+                                 (select-keys indexed-tx [:doc-ids :av-count :bytes-indexed]))))))))
 
   (abort [_]
     (swap! !tx-state (fn [tx-state]
@@ -359,14 +375,17 @@
       (throw (IllegalStateException. "Can't abort from fork.")))
 
     (fork/abort-doc-store-tx document-store-tx)
-    (db/abort-index-tx index-store-tx)
 
-    (log/debug "Transaction aborted:" (pr-str tx))
+    (let [{:keys [tx-events]} @!tx]
+      (-> (db/abort-index-tx index-store-tx)
+          (when-index-tx-visible
+           (fn []
+             (log/debug "Transaction aborted:" (pr-str tx))
 
-    (bus/send bus {:crux/event-type ::indexed-tx,
-                   :submitted-tx tx,
-                   :committed? false
-                   ::txe/tx-events (:tx-events @!tx)})))
+             (bus/send bus {:crux/event-type ::indexed-tx,
+                            :submitted-tx tx,
+                            :committed? false
+                            ::txe/tx-events tx-events})))))))
 
 (defrecord TxIndexer [index-store document-store bus query-engine]
   db/TxIndexer
@@ -387,7 +406,9 @@
                     document-store-tx
                     (assoc query-engine
                            :index-store index-store-tx
-                           :document-store document-store-tx)
+                           :document-store document-store-tx
+                           ;; in-flight txs see uncommitted state
+                           :shared-entity-cache nil)
                     bus))))
 
 (defn ->tx-indexer {::sys/deps {:index-store :crux/index-store
@@ -421,12 +442,131 @@
     (.cancel job true)
     (log/info "Shut down tx-ingester")))
 
+(s/def ::stall-ns nat-int?)
+(defmethod bus/event-spec ::prefetch-stalled [_] (s/keys :req-un [::submitted-tx ::stall-ns]))
+
+(defrecord PrefetchedDocumentStore [document-store prefetched-docs !submitted-ids]
+  db/DocumentStore
+  (submit-docs [_ id-and-docs]
+    (swap! !submitted-ids into (map (comp c/new-id key)) id-and-docs)
+    (db/submit-docs document-store id-and-docs))
+
+  (fetch-docs [_ ids]
+    (let [ids (set ids)
+          prefetched (select-keys prefetched-docs ids)]
+      (cond-> prefetched
+        (not= (count prefetched) (count ids))
+        (into (db/fetch-docs document-store (set/difference ids (set (keys prefetched)))))))))
+
+(defn- index-tx [tx-indexer process-tx-f tx]
+  (let [in-flight-tx (db/begin-tx tx-indexer
+                                  (select-keys tx [::tx-time ::tx-id])
+                                  nil)
+        committing? (db/index-tx-events in-flight-tx (::txe/tx-events tx))]
+    (process-tx-f (assoc tx :committing? committing?))
+
+    (if committing?
+      (db/commit in-flight-tx)
+      (db/abort in-flight-tx))))
+
+(defn- subscribe-prefetching
+  "Subscribes to the tx-log, fetching the documents for up to `prefetch-depth` transactions ahead
+  of the one currently being indexed, holding at most `prefetch-max-docs` prefetched documents.
+
+  The subscription thread reads the log and starts the fetches; a separate thread indexes the transactions in order."
+  ^java.util.concurrent.CompletableFuture
+  [{:keys [tx-log tx-indexer document-store bus ^long prefetch-depth ^long prefetch-max-docs]}
+   after-tx-id process-tx-f set-ingester-error!]
+  (let [queue (ArrayBlockingQueue. prefetch-depth)
+        doc-permits (Semaphore. prefetch-max-docs)
+        ^ExecutorService pool (Executors/newFixedThreadPool prefetch-depth (cio/thread-factory "crux-tx-prefetch"))
+
+        ^CompletableFuture
+        job (db/subscribe tx-log
+                          after-tx-id
+                          (fn [_fut tx]
+                            (try
+                              (let [doc-hashes (set (txc/tx-events->doc-hashes (::txe/tx-events tx)))
+                                    permits (min (count doc-hashes) prefetch-max-docs)]
+                                (.acquire doc-permits permits)
+                                (.put queue {:tx tx
+                                             :permits permits
+                                             :!docs (CompletableFuture/supplyAsync
+                                                     (reify Supplier
+                                                       (get [_]
+                                                         (db/fetch-docs document-store doc-hashes)))
+                                                     pool)}))
+
+                              (catch InterruptedException e
+                                (throw e))
+
+                              (catch Throwable t
+                                (set-ingester-error! t)
+                                (throw t)))))
+
+        indexer-thread (doto (.newThread (cio/thread-factory "crux-tx-indexer")
+                                         (fn []
+                                           (try
+                                             ;; the fetch for a queued tx may have started before up to
+                                             ;; `prefetch-depth + 1` of its predecessors committed,
+                                             ;; so we don't trust prefetched docs those txs have since re-submitted
+                                             (loop [recent-submitted-ids clojure.lang.PersistentQueue/EMPTY]
+                                               (when-let [{:keys [tx ^long permits ^CompletableFuture !docs]}
+                                                          (try
+                                                            (.take queue)
+                                                            (catch InterruptedException _
+                                                              ;; shutting down between txs
+                                                              nil))]
+                                                 (let [docs (try
+                                                              (if (.isDone !docs)
+                                                                (.get !docs)
+                                                                (let [start-ns (System/nanoTime)
+                                                                      docs (.get !docs)]
+                                                                  (bus/send bus {:crux/event-type ::prefetch-stalled
+                                                                                 :submitted-tx (select-keys tx [::tx-time ::tx-id])
+                                                                                 :stall-ns (- (System/nanoTime) start-ns)})
+                                                                  docs))
+                                                              (catch ExecutionException e
+                                                                (log/warn (.getCause e) "Error prefetching docs, falling back to fetching on indexing")
+                                                                {}))
+                                                       !submitted-ids (atom #{})]
+
+                                                   (index-tx (assoc tx-indexer
+                                                                    :document-store (->PrefetchedDocumentStore document-store
+                                                                                                               (apply dissoc docs (apply concat recent-submitted-ids))
+                                                                                                               !submitted-ids))
+                                                             process-tx-f
+                                                             tx)
+
+                                                   (.release doc-permits permits)
+
+                                                   (recur (cond-> (conj recent-submitted-ids @!submitted-ids)
+                                                            (> (count recent-submitted-ids) prefetch-depth) pop)))))
+
+                                             (catch Throwable t
+                                               (set-ingester-error! t)
+                                               (.completeExceptionally job t)))))
+                         (.start))]
+
+    (doto job
+      (.whenComplete (reify BiConsumer
+                       (accept [_ _v _e]
+                         (.interrupt indexer-thread)
+                         (.shutdownNow pool)))))))
+
 (defn ->tx-ingester {::sys/deps {:tx-indexer :crux/tx-indexer
                                  :index-store :crux/index-store
+                                 :document-store :crux/document-store
                                  :tx-log :crux/tx-log
                                  :bus :crux/bus
-                                 :secondary-indices :crux/secondary-indices}}
-  [{:keys [tx-log tx-indexer bus index-store secondary-indices]}]
+                                 :secondary-indices :crux/secondary-indices}
+                     ::sys/args {:prefetch-depth {:doc "Number of transactions to fetch documents for ahead of the transaction being indexed - 0 to fetch them while indexing"
+                                                  :default 0
+                                                  :spec ::sys/nat-int}
+                                 :prefetch-max-docs {:doc "Maximum number of prefetched documents held at any one time"
+                                                     :default 10000
+                                                     :spec ::sys/pos-int}}}
+  [{:keys [tx-log tx-indexer bus index-store secondary-indices ^long prefetch-depth] :as opts}]
   (log/info "Started tx-ingester")
 
   (let [!error (atom nil)
@@ -458,22 +598,17 @@
               (throw t)))))
 
       ;; moving on...
-      (let [job (db/subscribe tx-log
-                              latest-crux-tx-id
-                              (fn [_fut tx]
-                                (try
-                                  (let [in-flight-tx (db/begin-tx tx-indexer
-                                                                  (select-keys tx [::tx-time ::tx-id])
-                                                                  nil)
-                                        committing? (db/index-tx-events in-flight-tx (::txe/tx-events tx))]
-                                    (process-tx-f (assoc tx :committing? committing?))
-
-                                    (if committing?
-                                      (db/commit in-flight-tx)
-                                      (db/abort in-flight-tx)))
-
-                                  (catch Throwable t
-                                    (set-ingester-error! t)
-                                    (throw t)))))]
+      (let [job (if (pos? prefetch-depth)
+                  (subscribe-prefetching opts latest-crux-tx-id process-tx-f set-ingester-error!)
+
+                  (db/subscribe tx-log
+                                latest-crux-tx-id
+                                (fn [_fut tx]
+                                  (try
+                                    (index-tx tx-indexer process-tx-f tx)
+
+                                    (catch Throwable t
+                                      (set-ingester-error! t)
+                                      (throw t))))))]
 
         (->TxIngester index-store !error job)))))
@@ -0,0 +1,90 @@
+(ns crux.tx.group-submit
+  "Group commit for TxLogs that write their own txs - submitters queue up,
+  and one thread writes whatever's queued as a single batch."
+  (:require [clojure.tools.logging :as log]
+            [crux.io :as cio])
+  (:import java.io.Closeable
+           java.util.ArrayList
+           [java.util.concurrent BlockingQueue CompletableFuture ExecutionException LinkedBlockingQueue TimeUnit]))
+
+(defn- closed-ex []
+  (IllegalStateException. "TxLog is closed."))
+
+(defn- fail-queued-submissions! [^BlockingQueue submit-queue]
+  (let [submissions (ArrayList.)]
+    (.drainTo submit-queue submissions)
+    (doseq [{:keys [^CompletableFuture !tx]} submissions]
+      (.completeExceptionally !tx (closed-ex)))))
+
+(defn- write-batch!* [write-batch! submissions]
+  (try
+    (let [txs (write-batch! submissions)]
+      (assert (= (count txs) (count submissions)))
+      (doseq [[tx {:keys [^CompletableFuture !tx]}] (map vector txs submissions)]
+        (.complete !tx tx)))
+
+    (catch Throwable t
+      ;; Errors too (the LMDB mapsize assertion, say) - otherwise the submitters wait forever
+      (doseq [{:keys [^CompletableFuture !tx]} submissions]
+        (.completeExceptionally !tx t))
+      (throw t))))
+
+(defn- submit-loop [^BlockingQueue submit-queue ^long max-batch-size write-batch!]
+  (try
+    (loop []
+      (let [submissions (ArrayList.)]
+        (.add submissions (.take submit-queue))
+        (.drainTo submit-queue submissions (dec max-batch-size))
+        (try
+          (write-batch!* write-batch! (vec submissions))
+          (catch InterruptedException e
+            (throw e))
+          (catch Throwable t
+            ;; the batch's futures have already failed - we keep the submit thread going for the next
+            (log/warn t "Error submitting txs"))))
+      (when-not (Thread/interrupted)
+        (recur)))
+    (catch InterruptedException _))
+
+  (fail-queued-submissions! submit-queue))
+
+(defrecord GroupSubmitter [^BlockingQueue submit-queue ^Thread submit-thread]
+  Closeable
+  (close [_]
+    (.interrupt submit-thread)
+    (.join submit-thread 5000)
+    (when (.isAlive submit-thread)
+      (log/warn "waited 5s for the submit-tx thread to exit, no dice."))))
+
+(defn submit!
+  "Queues the `submission` map, returning a delay of its tx.
+  The submission is passed to `write-batch!` with its `:!tx` future assoc'd."
+  [{:keys [^BlockingQueue submit-queue ^Thread submit-thread]} submission]
+  (let [!tx (CompletableFuture.)
+        submission (assoc submission :!tx !tx)]
+    ;; blocks while the queue's full - back-pressure for the submitters
+    (loop []
+      (when-not (.isAlive submit-thread)
+        (throw (closed-ex)))
+      (when-not (.offer submit-queue submission 100 TimeUnit/MILLISECONDS)
+        (recur)))
+
+    ;; in case we've been closed in the meantime
+    (when-not (.isAlive submit-thread)
+      (fail-queued-submissions! submit-queue))
+
+    (delay
+      (try
+        @!tx
+        (catch ExecutionException e
+          (throw (.getCause e)))))))
+
+(defn ->group-submitter
+  "Starts the submit thread. `write-batch!` is called with up to `max-batch-size` queued
+  submissions, in order, and returns their txs in the same order - or throws, failing them all."
+  ^java.io.Closeable [{:keys [^long max-batch-size thread-name]} write-batch!]
+  (let [submit-queue (LinkedBlockingQueue. (int max-batch-size))
+        submit-thread (.newThread (cio/thread-factory thread-name)
+                                  #(submit-loop submit-queue max-batch-size write-batch!))]
+    (.start submit-thread)
+    (->GroupSubmitter submit-queue submit-thread)))
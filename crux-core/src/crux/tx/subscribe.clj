@@ -39,10 +39,15 @@
 
     (::tx/tx-id tx)))
 
-(defn handle-polling-subscription [tx-log after-tx-id {:keys [^Duration poll-sleep-duration]} f]
+(defn handle-polling-subscription
+  "polls the tx-log, sleeping `poll-sleep-duration` after an empty poll.
+  If `max-poll-sleep-duration` is given, successive empty polls back off (doubling) up to it,
+  going back to `poll-sleep-duration` as soon as a poll yields txs."
+  [tx-log after-tx-id {:keys [^Duration poll-sleep-duration ^Duration max-poll-sleep-duration]} f]
   (completable-thread
    (fn [^CompletableFuture fut]
-     (loop [after-tx-id after-tx-id]
+     (loop [after-tx-id after-tx-id
+            sleep-ms (.toMillis poll-sleep-duration)]
        (let [last-tx-id (if-let [^ICursor log (try
                                                 (db/open-tx-log tx-log after-tx-id)
                                                 (catch InterruptedException e (throw e))
@@ -59,10 +64,11 @@
          (cond
            (.isDone fut) nil
            (Thread/interrupted) (throw (InterruptedException.))
-           :else (do
-                   (when (= after-tx-id last-tx-id)
-                     (Thread/sleep (.toMillis poll-sleep-duration)))
-                   (recur last-tx-id))))))))
+           (= after-tx-id last-tx-id) (do
+                                        (Thread/sleep sleep-ms)
+                                        (recur last-tx-id (min (* 2 sleep-ms)
+                                                               (.toMillis (or max-poll-sleep-duration poll-sleep-duration)))))
+           :else (recur last-tx-id (.toMillis poll-sleep-duration))))))))
 
 (defprotocol PNotifyingSubscriberHandler
   (notify-tx! [_ tx])
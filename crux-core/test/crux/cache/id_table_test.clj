@@ -0,0 +1,65 @@
+(ns crux.cache.id-table-test
+  (:require [clojure.test :as t]
+            [crux.cache :as cache]
+            [crux.cache.id-table :as id-table]
+            [crux.codec :as c]
+            [crux.memory :as mem]))
+
+(t/deftest test-id-table-cache
+  (with-open [cache (id-table/->id-table-cache {:cache-size 4096})]
+    (let [eids (vec (for [n (range 10000)] (c/->id-buffer (keyword (str "eid-" n)))))
+          ->content-hash #(c/->id-buffer (mem/buffer->hex %))
+          !calls (atom 0)
+          resolve (fn [eid]
+                    (swap! !calls inc)
+                    (when (even? (.getByte ^org.agrona.DirectBuffer eid 1))
+                      (->content-hash eid)))]
+
+      (t/testing "caches values and nils"
+        (doseq [eid (take 100 eids)]
+          (t/is (= (resolve eid) (cache/compute-if-absent cache eid mem/copy-to-unpooled-buffer resolve))))
+        (reset! !calls 0)
+        (doseq [eid (take 100 eids)]
+          (t/is (= (resolve eid) (cache/compute-if-absent cache eid mem/copy-to-unpooled-buffer resolve))))
+        (t/is (= 100 @!calls))
+        (t/is (= 100 (count cache))))
+
+      (t/testing "evicts"
+        (cache/evict cache (first eids))
+        (t/is (= ::none (get cache (first eids) ::none)))
+        (t/is (= 99 (count cache))))
+
+      (t/testing "stays bounded, and correct, past its size"
+        (doseq [eid eids]
+          (t/is (= (resolve eid) (cache/compute-if-absent cache eid mem/copy-to-unpooled-buffer resolve))))
+        (t/is (<= (count cache) 8192)))
+
+      (t/testing "falls back for non-id keys"
+        (let [k (c/->value-buffer "a string eid")]
+          (t/is (= :foo (cache/compute-if-absent cache k mem/copy-to-unpooled-buffer (constantly :foo))))
+          (t/is (= :foo (get cache k))))))))
+
+(t/deftest test-closed-id-table-cache-passes-through
+  (let [cache (id-table/->id-table-cache {:cache-size 16})
+        eid (c/->id-buffer :eid)
+        content-hash (c/->id-buffer :content-hash)]
+    (cache/compute-if-absent cache eid mem/copy-to-unpooled-buffer (constantly content-hash))
+    (.close ^java.io.Closeable cache)
+    (t/is (zero? (count cache)))
+    (t/is (nil? (get cache eid)))
+    (t/is (= content-hash (cache/compute-if-absent cache eid mem/copy-to-unpooled-buffer (constantly content-hash))))
+    (t/is (zero? (count cache)))))
+
+(t/deftest test-cleared-id-table-cache-is-reusable
+  (let [cache (id-table/->id-table-cache {:cache-size 16})
+        eids (vec (for [n (range 100)] (c/->id-buffer (keyword (str "eid-" n)))))
+        ->content-hash #(c/->id-buffer (mem/buffer->hex %))]
+    (doseq [eid eids]
+      (cache/compute-if-absent cache eid mem/copy-to-unpooled-buffer ->content-hash))
+    (id-table/clear! cache)
+    (t/is (zero? (count cache)))
+    (t/is (= ::none (get cache (first eids) ::none)))
+
+    (doseq [eid eids]
+      (t/is (= (->content-hash eid) (cache/compute-if-absent cache eid mem/copy-to-unpooled-buffer ->content-hash))))
+    (t/is (= (->content-hash (first eids)) (get cache (first eids))))))
@@ -0,0 +1,54 @@
+(ns crux.cache.off-heap-test
+  (:require [clojure.test :as t]
+            [crux.cache :as cache]
+            [crux.cache.off-heap :as off-heap]
+            [crux.codec :as c]
+            [crux.memory :as mem]))
+
+(defn- ->doc [n ^long size]
+  {:crux.db/id (keyword (str "doc-" n))
+   :padding (apply str (repeat size "x"))})
+
+(t/deftest test-off-heap-cache
+  (with-open [cache (off-heap/->off-heap-cache {:max-bytes (* 64 1024)})]
+    (let [k (c/->id-buffer :doc-0)
+          doc (->doc 0 10)]
+      (t/testing "caches and thaws values"
+        (t/is (= doc (cache/compute-if-absent cache k mem/copy-to-unpooled-buffer (constantly doc))))
+        (t/is (= doc (get cache k)))
+        (t/is (= doc (cache/compute-if-absent cache k mem/copy-to-unpooled-buffer (fn [_] (throw (IllegalStateException.))))))
+        (t/is (= 1 (count cache))))
+
+      (t/testing "evicts"
+        (cache/evict cache k)
+        (t/is (nil? (get cache k)))
+        (t/is (= ::not-found (get cache k ::not-found)))
+        (t/is (zero? (count cache)))))))
+
+(t/deftest test-bounded-by-bytes
+  (with-open [cache (off-heap/->off-heap-cache {:max-bytes (* 64 1024)})]
+    (let [cache-doc! (fn [n size]
+                       (let [doc (->doc n size)]
+                         (cache/compute-if-absent cache (c/->id-buffer (:crux.db/id doc)) mem/copy-to-unpooled-buffer (constantly doc))))]
+
+      (t/testing "many small docs"
+        (doseq [n (range 100)]
+          (cache-doc! n 100))
+        (t/is (= 100 (count cache))))
+
+      (t/testing "a few big docs push out the least recently used"
+        ;; doc-0 was the first in, but it's the most recently used
+        (t/is (some? (get cache (c/->id-buffer :doc-0))))
+
+        (doseq [n (range 100 103)]
+          (cache-doc! n (* 16 1024)))
+
+        (t/is (< (count cache) 100))
+        (t/is (some? (get cache (c/->id-buffer :doc-0))))
+        (t/is (nil? (get cache (c/->id-buffer :doc-1))))
+        (t/is (every? #(some? (get cache (c/->id-buffer (keyword (str "doc-" %))))) (range 100 103))))
+
+      (t/testing "docs bigger than the whole cache are returned, but not cached"
+        (let [doc (->doc 200 (* 128 1024))]
+          (t/is (= doc (cache-doc! 200 (* 128 1024))))
+          (t/is (nil? (get cache (c/->id-buffer :doc-200)))))))))
@@ -0,0 +1,53 @@
+(ns crux.histogram-test
+  (:require [clojure.test :as t]
+            [crux.codec :as c]
+            [crux.histogram :as hist]
+            [crux.memory :as mem]))
+
+(defn- ->histogram [vs]
+  (let [sample (hist/new-sample (mem/allocate-unpooled-buffer hist/default-buffer-size))]
+    (doseq [[n v] (map-indexed vector vs)]
+      (hist/add sample (c/->value-buffer v) n))
+    (hist/->histogram sample (count vs))))
+
+(t/deftest test-exhaustive-sample-is-exact
+  (let [histogram (->histogram (concat (repeat 10 "foo") (repeat 5 "bar") (range 20)))]
+    (t/is (hist/exhaustive? histogram))
+    (t/is (= 10.0 (hist/estimate-equal histogram (c/->value-buffer "foo"))))
+    (t/is (= 5.0 (hist/estimate-equal histogram (c/->value-buffer "bar"))))
+    (t/is (= 1.0 (hist/estimate-equal histogram (c/->value-buffer 3))))
+    (t/is (= 0.0 (hist/estimate-equal histogram (c/->value-buffer "baz"))))))
+
+(t/deftest test-sample-estimates-skewed-values
+  (let [vs (shuffle (concat (repeat 9000 :common) (range 1000)))
+        histogram (->histogram vs)]
+    (t/is (not (hist/exhaustive? histogram)))
+    (t/is (= hist/default-sample-size (count (:sorted-values histogram))))
+    (t/is (< 7000.0 (hist/estimate-equal histogram (c/->value-buffer :common)) 10000.0))
+    (t/is (> 200.0 (hist/estimate-equal histogram (c/->value-buffer "missing")))))
+
+  (t/testing "sample is deterministic"
+    (let [vs (range 10000)]
+      (t/is (= (map mem/buffer->hex (:sorted-values (->histogram vs)))
+               (map mem/buffer->hex (:sorted-values (->histogram vs))))))))
+
+(t/deftest test-range-estimates
+  (let [small (->histogram (range 100))
+        large (->histogram (shuffle (range 10000)))]
+    (letfn [(estimate [histogram & constraints]
+              (hist/estimate-range histogram (for [[op v] (partition 2 constraints)]
+                                               [op (c/->value-buffer v)])))]
+      (t/is (= 10.0 (estimate small '< 10)))
+      (t/is (= 11.0 (estimate small '<= 10)))
+      (t/is (= 20.0 (estimate small '>= 10 '< 30)))
+      (t/is (= 0.0 (estimate small '> 1000)))
+
+      (t/testing "only matches values of the same type"
+        (t/is (= 0.0 (estimate small '< "foo"))))
+
+      (t/is (< 500.0 (estimate large '< 1000) 1500.0))
+      (t/is (< 8000.0 (estimate large '> 1000) 10000.0))
+      (t/is (< 1000.0 (estimate large '>= 2000 '< 5000) 5000.0)))))
+
+(t/deftest test-empty-sample
+  (t/is (nil? (hist/estimate-equal (->histogram []) (c/->value-buffer "foo")))))
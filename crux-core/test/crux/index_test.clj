@@ -1,5 +1,6 @@
 (ns crux.index-test
-  (:require [clojure.test :as t]
+  (:require [clojure.set :as set]
+            [clojure.test :as t]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.index :as idx])
@@ -43,6 +44,31 @@
                   (idx/idx->seq)
                   (map c/decode-value-buffer))))))
 
+(t/deftest test-sorted-array-and-sorted-set-indexes-agree
+  (let [rng (java.util.Random. 0)
+        relations (vec (for [size [10 500 5000]]
+                         (vec (repeatedly size #(vector (.nextInt rng 10000))))))
+        expected (->> relations
+                      (map #(into #{} (map first) %))
+                      (apply set/intersection)
+                      sort)]
+    (doseq [max-array-size [0 1024 Integer/MAX_VALUE]]
+      (with-redefs [idx/max-sorted-array-index-size max-array-size]
+        (t/is (= expected
+                 (->> (idx/new-unary-join-virtual-index (for [tuples relations]
+                                                          (idx/new-relation-virtual-index tuples 1 c/->value-buffer)))
+                      (idx/idx->seq)
+                      (map c/decode-value-buffer)))
+              (str "max-sorted-array-index-size " max-array-size))
+
+        (let [r (idx/new-relation-virtual-index [[1] [3] [5] [7]] 1 c/->value-buffer)]
+          (t/is (= 5 (c/decode-value-buffer (db/seek-values r (c/->value-buffer 4)))))
+          (t/is (= 7 (c/decode-value-buffer (db/next-values r))))
+          (t/is (nil? (db/next-values r)))
+          (t/is (= 3 (c/decode-value-buffer (db/seek-values r (c/->value-buffer 2)))))
+          (t/is (nil? (db/seek-values r (c/->value-buffer 8))))
+          (t/is (= 1 (c/decode-value-buffer (db/seek-values r nil)))))))))
+
 ;; Q(a, b, c) ← R(a, b), S(b, c), T (a, c).
 
 ;; (1, 3, 4)
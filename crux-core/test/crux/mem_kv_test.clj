@@ -0,0 +1,56 @@
+(ns crux.mem-kv-test
+  (:require [clojure.test :as t]
+            [crux.kv :as kv]
+            [crux.mem-kv :as mem-kv]
+            [crux.memory :as mem])
+  (:import java.util.concurrent.ConcurrentSkipListMap))
+
+(defn- ->buffer [^String s]
+  (mem/as-buffer (.getBytes s)))
+
+(defn- ->str [b]
+  (some-> b mem/->on-heap String.))
+
+(defn- all-kvs [snapshot]
+  (with-open [i (kv/new-iterator snapshot)]
+    (loop [k (kv/seek i mem/empty-buffer)
+           acc []]
+      (if k
+        (let [acc (conj acc [(->str k) (->str (kv/value i))])]
+          (recur (kv/next i) acc))
+        acc))))
+
+(defn- entry-count ^long [kv-store]
+  (.size ^ConcurrentSkipListMap (.db ^crux.mem_kv.VersionedDb (:vdb kv-store))))
+
+(t/deftest test-snapshots-see-the-store-as-of-when-they-were-opened
+  (let [kv-store (mem-kv/->kv-store)]
+    (kv/store kv-store (for [k ["a" "b" "c"]]
+                         [(->buffer k) (->buffer "1")]))
+    (with-open [snapshot (kv/new-snapshot kv-store)]
+      (kv/store kv-store [[(->buffer "a") (->buffer "2")]
+                          [(->buffer "b") nil]
+                          [(->buffer "bb") (->buffer "2")]])
+
+      (t/is (= [["a" "1"] ["b" "1"] ["c" "1"]] (all-kvs snapshot)))
+      (t/is (= "1" (->str (kv/get-value snapshot (->buffer "b")))))
+
+      (with-open [new-snapshot (kv/new-snapshot kv-store)]
+        (t/is (= [["a" "2"] ["bb" "2"] ["c" "1"]] (all-kvs new-snapshot)))
+        (t/is (nil? (kv/get-value new-snapshot (->buffer "b"))))
+
+        (t/testing "prev skips the deleted key"
+          (with-open [i (kv/new-iterator new-snapshot)]
+            (t/is (= "c" (->str (kv/seek i (->buffer "c")))))
+            (t/is (= "bb" (->str (kv/prev i))))
+            (t/is (= "a" (->str (kv/prev i))))
+            (t/is (nil? (kv/prev i))))))
+
+      (t/testing "old versions are kept while a snapshot can see them"
+        (kv/store kv-store [[(->buffer "c") (->buffer "2")]])
+        (t/is (= 7 (entry-count kv-store)))))
+
+    (t/testing "and pruned by the next store after it's closed"
+      (kv/store kv-store [[(->buffer "d") (->buffer "1")]])
+      (t/is (= 4 (entry-count kv-store)))
+      (t/is (= 4 (kv/count-keys kv-store))))))
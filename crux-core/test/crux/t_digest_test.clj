@@ -0,0 +1,23 @@
+(ns crux.t-digest-test
+  (:require [clojure.test :as t]
+            [crux.t-digest :as tdigest]))
+
+(defn- ->t-digest [xs]
+  (reduce tdigest/add! (tdigest/->t-digest) xs))
+
+(t/deftest test-empty-digest
+  (t/is (nil? (tdigest/quantile (tdigest/->t-digest) 0.5))))
+
+(t/deftest test-small-digest-is-exact
+  (let [digest (->t-digest [10 15 20 35 75])]
+    (t/is (= 20.0 (tdigest/quantile digest 0.5)))
+    (t/is (= 10.0 (tdigest/quantile digest 0.0)))
+    (t/is (= 75.0 (tdigest/quantile digest 1.0)))
+    (t/is (= 5.0 (tdigest/total-weight digest)))))
+
+(t/deftest test-quantiles-are-approximately-right
+  (let [digest (->t-digest (shuffle (range 100000)))]
+    (t/is (= 100000.0 (tdigest/total-weight digest)))
+    (doseq [q [0.01 0.1 0.5 0.9 0.99]]
+      (t/is (< (Math/abs (- (* q 100000) (tdigest/quantile digest q))) 500)
+            (str "quantile " q)))))
@@ -8,6 +8,7 @@
             [crux.io :as cio]
             [crux.system :as sys]
             [crux.tx :as tx]
+            [crux.tx.group-submit :as group-submit]
             [juxt.clojars-mirrors.nextjdbc.v1v2v674.next.jdbc :as jdbc]
             [juxt.clojars-mirrors.nextjdbc.v1v2v674.next.jdbc.connection :as jdbcc]
             [juxt.clojars-mirrors.nextjdbc.v1v2v674.next.jdbc.result-set :as jdbcr]
@@ -17,7 +18,8 @@
            java.io.Closeable
            java.sql.Timestamp
            java.time.Duration
-           java.util.Date))
+           java.util.Date
+           [java.util.concurrent Executors ExecutorService Future]))
 
 (defprotocol Dialect
   (setup-schema! [_ pool])
@@ -29,9 +31,16 @@
   (assert t)
   (Date. (.getTime ^Timestamp t)))
 
+(defmulti blob->bytes
+  "the raw bytes of a V column - only valid while the result set's connection is open"
+  (fn [blob dialect] (db-type dialect))
+  :default ::default)
+
+(defmethod blob->bytes ::default [v _] v)
+
 (defmulti <-blob (fn [blob dialect] (db-type dialect)) :default ::default)
 
-(defmethod <-blob ::default [v _] (nippy/thaw v))
+(defmethod <-blob ::default [v dialect] (nippy/thaw (blob->bytes v dialect)))
 
 (defrecord HikariConnectionPool [^HikariDataSource pool dialect]
   Closeable
@@ -59,61 +68,63 @@
 
     (->HikariConnectionPool pool dialect)))
 
-;; TODO to multimethod?
-(defn- tx-result->tx-data [tx-result pool dialect]
-  (let [tx-result (condp contains? (db-type dialect)
-                    #{:sqlite :mysql}
-                    (let [id (first (vals tx-result))]
-                      (jdbc/execute-one! pool ["SELECT * FROM tx_events WHERE EVENT_OFFSET = ?" id]
-                                         {:return-keys true :builder-fn jdbcr/as-unqualified-lower-maps}))
-
-                    #{:mssql}
-                    (if-let [id (:generated_keys tx-result)]
-                      (jdbc/execute-one! pool ["SELECT * FROM tx_events WHERE EVENT_OFFSET = ?" id]
-                                         {:return-keys true :builder-fn jdbcr/as-unqualified-lower-maps})
-                      tx-result)
-
-                    #{:oracle}
-                    (let [id (first (vals tx-result))]
-                      (jdbc/execute-one! pool ["SELECT * FROM tx_events WHERE ROWID = ?" id]
-                                         {:return-keys true :builder-fn jdbcr/as-unqualified-lower-maps}))
-                    tx-result)]
-    {::tx/tx-id (long (:event_offset tx-result))
-     ::tx/tx-time (-> (:tx_time tx-result) (->date dialect))}))
-
-(defn- insert-event! [pool event-key v topic]
-  (let [b (nippy/freeze v)]
-    (jdbc/execute-one! pool ["INSERT INTO tx_events (EVENT_KEY, V, TOPIC, COMPACTED) VALUES (?,?,?,0)" event-key b topic]
-                       {:return-keys true :builder-fn jdbcr/as-unqualified-lower-maps})))
-
-(defn- doc-exists? [pool k]
-  (not-empty (jdbc/execute-one! pool ["SELECT EVENT_OFFSET from tx_events WHERE EVENT_KEY = ? AND COMPACTED = 0" k])))
-
-(defn- update-doc! [pool k doc]
-  (jdbc/execute! pool ["UPDATE tx_events SET V = ? WHERE TOPIC = 'docs' AND EVENT_KEY = ?" (nippy/freeze doc) k]))
-
-(defn- evict-doc! [pool k tombstone]
-  (jdbc/execute! pool ["UPDATE tx_events SET V = ?, COMPACTED = 1 WHERE TOPIC = 'docs' AND EVENT_KEY = ?" (nippy/freeze tombstone) k]))
+(def ^:private doc-chunk-size 1000)
+
+(defn- in-clause [xs]
+  (format "(%s)" (->> (repeat (count xs) "?") (str/join ", "))))
+
+(defn- existing-doc-keys
+  "the keys, out of `ks`, of docs that are already stored (and not evicted)"
+  [tx ks]
+  (->> (for [k-batch (partition-all 100 ks)
+             row (jdbc/execute! tx (into [(str "SELECT DISTINCT EVENT_KEY FROM tx_events WHERE EVENT_KEY IN " (in-clause k-batch) " AND COMPACTED = 0")]
+                                         k-batch)
+                                {:builder-fn jdbcr/as-unqualified-lower-maps})]
+         (:event_key row))
+       (into #{})))
+
+(defn- freeze-docs
+  "[k doc frozen-doc], frozen in parallel - nippy's relatively expensive next to a batched round trip"
+  [id-and-docs]
+  (->> (partition-all 64 id-and-docs)
+       (pmap (fn [id-and-docs]
+               (vec (for [[id doc] id-and-docs]
+                      [(str id) doc (nippy/freeze doc)]))))
+       (into [] cat)))
+
+(defn- execute-batch! [tx sql param-groups]
+  (when (seq param-groups)
+    (with-open [ps (jdbc/prepare tx [sql])]
+      (jdbc/execute-batch! ps param-groups))))
+
+(defn- submit-doc-chunk! [tx id-and-docs]
+  (let [docs (freeze-docs id-and-docs)
+        {evicted-docs true, docs false} (group-by (comp boolean c/evicted-doc? second) docs)
+        existing-ks (existing-doc-keys tx (map first docs))
+        {updated-docs true, new-docs false} (group-by (comp boolean existing-ks first) docs)]
+    (execute-batch! tx "INSERT INTO tx_events (EVENT_KEY, V, TOPIC, COMPACTED) VALUES (?,?,'docs',0)"
+                    (for [[k _ frozen-doc] (concat new-docs evicted-docs)]
+                      [k frozen-doc]))
+
+    (execute-batch! tx "UPDATE tx_events SET V = ? WHERE TOPIC = 'docs' AND EVENT_KEY = ?"
+                    (for [[k _ frozen-doc] updated-docs]
+                      [frozen-doc k]))
+
+    (execute-batch! tx "UPDATE tx_events SET V = ?, COMPACTED = 1 WHERE TOPIC = 'docs' AND EVENT_KEY = ?"
+                    (for [[k _ frozen-doc] evicted-docs]
+                      [frozen-doc k]))))
 
 (defrecord JdbcDocumentStore [pool dialect]
   db/DocumentStore
   (submit-docs [this id-and-docs]
     (jdbc/with-transaction [tx pool]
-      (doseq [[id doc] id-and-docs
-              :let [id (str id)]]
-        (if (c/evicted-doc? doc)
-          (do
-            (insert-event! tx id doc "docs")
-            (evict-doc! tx id doc))
-          (if-not (doc-exists? tx id)
-            (insert-event! tx id doc "docs")
-            (update-doc! tx id doc))))))
+      (doseq [id-and-docs (partition-all doc-chunk-size id-and-docs)]
+        (submit-doc-chunk! tx id-and-docs))))
 
   (fetch-docs [this ids]
     (cio/with-nippy-thaw-all
       (->> (for [id-batch (partition-all 100 ids)
-                 row (jdbc/execute! pool (into [(format "SELECT EVENT_KEY, V FROM tx_events WHERE TOPIC = 'docs' AND EVENT_KEY IN (%s)"
-                                                        (->> (repeat (count id-batch) "?") (str/join ", ")))]
+                 row (jdbc/execute! pool (into [(str "SELECT EVENT_KEY, V FROM tx_events WHERE TOPIC = 'docs' AND EVENT_KEY IN " (in-clause id-batch))]
                                                (map (comp str c/new-id) id-batch))
                                     {:builder-fn jdbcr/as-unqualified-lower-maps})]
              row)
@@ -128,28 +139,146 @@
           :document-cache document-cache
           :document-store (->JdbcDocumentStore pool dialect))))
 
-(defrecord JdbcTxLog [pool dialect ^Closeable tx-consumer]
+(defn- tx-rows->txs [rows dialect]
+  (->> rows
+       (map (fn [{:keys [event_offset tx_time]}]
+              {::tx/tx-id (long event_offset)
+               ::tx/tx-time (-> tx_time (->date dialect))}))
+       ;; a multi-row insert assigns offsets in VALUES order
+       (sort-by ::tx/tx-id)
+       vec))
+
+(defn- multi-row-insert-sql
+  ([row-count] (multi-row-insert-sql row-count nil))
+  ([row-count output-clause]
+   (str "INSERT INTO tx_events (EVENT_KEY, V, TOPIC, COMPACTED) " output-clause " VALUES "
+        (str/join ", " (repeat row-count "(NULL, ?, 'txs', 0)")))))
+
+(defmulti insert-txs!
+  "Inserts the (frozen) tx-events as one multi-row INSERT, within `tx`, returning the txs in order.
+  Dialects differ in what they give back - generated keys, defaults, or neither."
+  (fn [tx dialect frozen-txs] (db-type dialect))
+  :default ::default)
+
+;; H2 and Postgres return every inserted row, `tx_time` included
+(defmethod insert-txs! ::default [tx dialect frozen-txs]
+  (-> (jdbc/execute! tx (into [(multi-row-insert-sql (count frozen-txs))] frozen-txs)
+                     {:return-keys true, :builder-fn jdbcr/as-unqualified-lower-maps})
+      (tx-rows->txs dialect)))
+
+(defmethod insert-txs! :mysql [tx dialect frozen-txs]
+  (let [offsets (->> (jdbc/execute! tx (into [(multi-row-insert-sql (count frozen-txs))] frozen-txs)
+                                    {:return-keys true, :builder-fn jdbcr/as-unqualified-lower-maps})
+                     (mapv (comp long first vals)))]
+    (-> (jdbc/execute! tx (into [(str "SELECT EVENT_OFFSET, TX_TIME FROM tx_events WHERE EVENT_OFFSET IN " (in-clause offsets))]
+                                offsets)
+                       {:builder-fn jdbcr/as-unqualified-lower-maps})
+        (tx-rows->txs dialect))))
+
+;; SQLite only gives us the last rowid - but it only has one writer at a time, so the statement's rows are consecutive
+(defmethod insert-txs! :sqlite [tx dialect frozen-txs]
+  (let [last-offset (-> (jdbc/execute-one! tx (into [(multi-row-insert-sql (count frozen-txs))] frozen-txs)
+                                           {:return-keys true, :builder-fn jdbcr/as-unqualified-lower-maps})
+                        vals first long)]
+    (-> (jdbc/execute! tx ["SELECT EVENT_OFFSET, TX_TIME FROM tx_events WHERE EVENT_OFFSET > ? AND EVENT_OFFSET <= ?"
+                           (- last-offset (count frozen-txs)) last-offset]
+                       {:builder-fn jdbcr/as-unqualified-lower-maps})
+        (tx-rows->txs dialect))))
+
+(defmethod insert-txs! :mssql [tx dialect frozen-txs]
+  (-> (jdbc/execute! tx (into [(multi-row-insert-sql (count frozen-txs) "OUTPUT INSERTED.EVENT_OFFSET, INSERTED.TX_TIME")]
+                              frozen-txs)
+                     {:builder-fn jdbcr/as-unqualified-lower-maps})
+      (tx-rows->txs dialect)))
+
+;; Oracle won't return generated keys for more than one row - we insert row-at-a-time, but still commit once
+(defmethod insert-txs! :oracle [tx dialect frozen-txs]
+  (-> (vec (for [frozen-tx frozen-txs]
+             (let [row-id (-> (jdbc/execute-one! tx ["INSERT INTO tx_events (EVENT_KEY, V, TOPIC, COMPACTED) VALUES (NULL, ?, 'txs', 0)" frozen-tx]
+                                                 {:return-keys true, :builder-fn jdbcr/as-unqualified-lower-maps})
+                              vals first)]
+               (jdbc/execute-one! tx ["SELECT EVENT_OFFSET, TX_TIME FROM tx_events WHERE ROWID = ?" row-id]
+                                  {:builder-fn jdbcr/as-unqualified-lower-maps}))))
+      (tx-rows->txs dialect)))
+
+(defn- submit-txs!
+  "group commit - every queued submission goes into one INSERT, in one transaction"
+  [{:keys [pool dialect]} submissions]
+  (jdbc/with-transaction [tx pool]
+    (insert-txs! tx dialect (mapv :frozen-tx-events submissions))))
+
+(defn- latest-offset
+  "max over all topics - it's the primary key, so this doesn't need to scan the table"
+  [pool]
+  (some-> (jdbc/execute-one! pool ["SELECT max(EVENT_OFFSET) AS max_offset FROM tx_events"]
+                             {:builder-fn jdbcr/as-unqualified-lower-maps})
+          :max_offset
+          long))
+
+(defn- fetch-tx-page
+  "the txs with offsets in (`after-offset`, `to-offset`], with their tx-events still frozen.
+  Paging by offset range rather than LIMIT/OFFSET keeps this the same SQL on every dialect."
+  [pool dialect ^long fetch-size after-offset to-offset]
+  (with-open [conn (jdbc/get-connection pool)]
+    (->> (jdbc/execute! conn ["SELECT EVENT_OFFSET, TX_TIME, V FROM tx_events WHERE TOPIC = 'txs' AND EVENT_OFFSET > ? AND EVENT_OFFSET <= ? ORDER BY EVENT_OFFSET"
+                              after-offset to-offset]
+                        {:builder-fn jdbcr/as-unqualified-lower-maps
+                         :fetch-size fetch-size})
+         (mapv (fn [{:keys [event_offset tx_time v]}]
+                 {::tx/tx-id (long event_offset)
+                  ::tx/tx-time (-> tx_time (->date dialect))
+                  :v (-> v (blob->bytes dialect))})))))
+
+(defn- decode-tx-page
+  "thaws the page's tx-events across the decode-executor - returns the futures, in order"
+  [^ExecutorService decode-executor ^long decode-threads txs]
+  (let [chunk-size (max 1 (long (Math/ceil (/ (count txs) (double decode-threads)))))]
+    (vec (for [chunk (partition-all chunk-size txs)]
+           (.submit decode-executor
+                    ^Callable (fn []
+                                (cio/with-nippy-thaw-all
+                                  (vec (for [{:keys [v] :as tx} chunk]
+                                         (-> tx
+                                             (dissoc :v)
+                                             (assoc :crux.tx.event/tx-events (nippy/thaw v))))))))))))
+
+(defn- open-paged-tx-log
+  "Reads the log up to what's been submitted when it's opened, a page (`page-size` offsets) at a time,
+  thawing the next page on the decode-executor while this one's being consumed."
+  ^crux.api.ICursor [{:keys [pool dialect decode-executor decode-threads ^long page-size fetch-size]} after-tx-id]
+  (let [max-offset (latest-offset pool)
+        !closed? (volatile! false)]
+    (letfn [(next-page [^long after-offset]
+              (when (and max-offset (< after-offset (long max-offset)) (not @!closed?))
+                (let [to-offset (min (+ after-offset page-size) (long max-offset))]
+                  {:!chunks (->> (fetch-tx-page pool dialect fetch-size after-offset to-offset)
+                                 (decode-tx-page decode-executor decode-threads))
+                   :to-offset to-offset})))
+
+            (tx-log [{:keys [!chunks to-offset] :as page}]
+              (lazy-seq
+                (when page
+                  (let [txs (into [] (mapcat #(.get ^Future %)) !chunks)]
+                    (concat txs (tx-log (next-page to-offset)))))))]
+
+      (cio/->cursor #(vreset! !closed? true)
+                    (tx-log (next-page (or after-tx-id 0)))))))
+
+(defrecord JdbcTxLog [pool dialect group-submitter ^ExecutorService decode-executor
+                      ^Duration poll-sleep-duration ^Duration max-poll-sleep-duration]
   db/TxLog
   (submit-tx [_ tx-events]
-    (let [tx (-> (insert-event! pool nil tx-events "txs")
-                 (tx-result->tx-data pool dialect))]
-      (delay tx)))
-
-  (open-tx-log [_ after-tx-id]
-    (let [conn (jdbc/get-connection pool)
-          stmt (jdbc/prepare conn
-                             ["SELECT EVENT_OFFSET, TX_TIME, V, TOPIC FROM tx_events WHERE TOPIC = 'txs' and EVENT_OFFSET > ? ORDER BY EVENT_OFFSET"
-                              (or after-tx-id 0)])
-          rs (.executeQuery stmt)]
-      (cio/->cursor #(run! cio/try-close [rs stmt conn])
-                    (->> (resultset-seq rs)
-                         (map (fn [y]
-                                {:crux.tx/tx-id (long (:event_offset y))
-                                 :crux.tx/tx-time (-> (:tx_time y) (->date dialect))
-                                 :crux.tx.event/tx-events (-> (:v y) (<-blob dialect))}))))))
+    ;; freezing on the submitting thread, so that it's not serialised behind the submit thread
+    (group-submit/submit! group-submitter {:frozen-tx-events (nippy/freeze tx-events)}))
+
+  (open-tx-log [this after-tx-id]
+    (open-paged-tx-log this after-tx-id))
 
   (subscribe [this after-tx-id f]
-    (tx-sub/handle-polling-subscription this after-tx-id {:poll-sleep-duration (Duration/ofMillis 100)} f))
+    (tx-sub/handle-polling-subscription this after-tx-id
+                                        {:poll-sleep-duration poll-sleep-duration
+                                         :max-poll-sleep-duration max-poll-sleep-duration}
+                                        f))
 
   (latest-submitted-tx [_]
     (when-let [max-offset (-> (jdbc/execute-one! pool ["SELECT max(EVENT_OFFSET) AS max_offset FROM tx_events WHERE topic = 'txs'"]
@@ -159,8 +288,39 @@
 
   Closeable
   (close [_]
-    (cio/try-close tx-consumer)))
+    (cio/try-close group-submitter)
+    (.shutdownNow decode-executor)))
 
-(defn ->tx-log {::sys/deps {:connection-pool `->connection-pool}}
-  [{{:keys [pool dialect]} :connection-pool}]
-  (map->JdbcTxLog {:pool pool, :dialect dialect}))
+(defn ->tx-log {::sys/deps {:connection-pool `->connection-pool}
+                ::sys/args {:poll-sleep-duration {:doc "How long to sleep between polls when the previous poll didn't yield any transactions"
+                                                  :required? true
+                                                  :default (Duration/ofMillis 10)
+                                                  :spec ::sys/duration}
+                            :max-poll-sleep-duration {:doc "Successive empty polls back off (doubling) up to this long - resets as soon as a poll yields transactions"
+                                                      :required? true
+                                                      :default (Duration/ofMillis 500)
+                                                      :spec ::sys/duration}
+                            :max-batch-size {:doc "Maximum number of queued txs inserted (and committed) together"
+                                             :required? true
+                                             :default 256
+                                             :spec ::sys/pos-int}
+                            :page-size {:doc "Number of offsets read per query when reading the log"
+                                        :required? true
+                                        :default 10000
+                                        :spec ::sys/pos-int}
+                            :fetch-size {:doc "JDBC fetch size - number of rows the driver brings back per round trip"
+                                         :required? true
+                                         :default 100
+                                         :spec ::sys/pos-int}
+                            :decode-threads {:doc "Number of threads thawing transactions read from the log"
+                                             :required? true
+                                             :default (max 1 (quot (.availableProcessors (Runtime/getRuntime)) 2))
+                                             :spec ::sys/pos-int}}}
+  [{{:keys [pool dialect]} :connection-pool, :keys [decode-threads ^long max-batch-size] :as opts}]
+  (let [tx-log (map->JdbcTxLog (merge (dissoc opts :connection-pool)
+                                      {:pool pool, :dialect dialect
+                                       :decode-executor (Executors/newFixedThreadPool decode-threads (cio/thread-factory "crux-jdbc-tx-decoder"))}))
+        group-submitter (group-submit/->group-submitter {:max-batch-size max-batch-size
+                                                         :thread-name "crux-jdbc-submit-tx"}
+                                                        #(submit-txs! tx-log %))]
+    (assoc tx-log :group-submitter group-submitter)))
@@ -1,7 +1,6 @@
 (ns ^:no-doc crux.jdbc.oracle
   (:require [crux.jdbc :as j]
-            [juxt.clojars-mirrors.nextjdbc.v1v2v674.next.jdbc :as jdbc]
-            [juxt.clojars-mirrors.nippy.v3v1v1.taoensso.nippy :as nippy])
+            [juxt.clojars-mirrors.nextjdbc.v1v2v674.next.jdbc :as jdbc])
   (:import [oracle.sql BLOB TIMESTAMP]))
 
 (defn- table-exists? [pool tbl-name]
@@ -38,5 +37,5 @@ CREATE TABLE tx_events (
   (.dateValue d))
 
 ;; TODO readAllBytes doesn't exists in JDK8
-(defmethod j/<-blob :oracle [^BLOB v _]
-  (-> v .getBinaryStream .readAllBytes nippy/thaw))
+(defmethod j/blob->bytes :oracle [^BLOB v _]
+  (-> v .getBinaryStream .readAllBytes))
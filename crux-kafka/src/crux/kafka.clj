@@ -1,26 +1,32 @@
 (ns crux.kafka
   (:require [clojure.java.io :as io]
             [clojure.set :as set]
+            [clojure.spec.alpha :as s]
             [clojure.tools.logging :as log]
+            [crux.bus :as bus]
             [crux.codec :as c]
             [crux.db :as db]
             [crux.io :as cio]
             [crux.status :as status]
             [crux.system :as sys]
             [crux.tx :as tx]
-            [crux.tx.subscribe :as tx-sub])
+            [crux.tx.subscribe :as tx-sub]
+            [juxt.clojars-mirrors.nippy.v3v1v1.taoensso.nippy :as nippy])
   (:import clojure.lang.MapEntry
            [crux.kafka.nippy NippyDeserializer NippySerializer]
            java.io.Closeable
            java.nio.file.Path
            java.time.Duration
            [java.util Collection Date Map UUID]
-           [java.util.concurrent CompletableFuture ExecutionException]
+           [java.util.concurrent ArrayBlockingQueue BlockingQueue CompletableFuture ExecutionException ExecutorService Executors Future]
            [org.apache.kafka.clients.admin AdminClient NewTopic TopicDescription]
            [org.apache.kafka.clients.consumer ConsumerRebalanceListener ConsumerRecord KafkaConsumer]
            [org.apache.kafka.clients.producer KafkaProducer ProducerRecord RecordMetadata]
            [org.apache.kafka.common PartitionInfo TopicPartition]
-           [org.apache.kafka.common.errors InterruptException TopicExistsException]))
+           [org.apache.kafka.common.errors InterruptException TopicExistsException WakeupException]
+           org.apache.kafka.common.header.Headers
+           org.apache.kafka.common.record.TimestampType
+           org.apache.kafka.common.serialization.ByteArrayDeserializer))
 
 (defn ->kafka-config {::sys/args {:bootstrap-servers {:spec ::sys/string
                                                       :doc "URL for connecting to Kafka, eg \"kafka-cluster-kafka-brokers.crux.svc.cluster.local:9092\""
@@ -126,6 +132,112 @@
      (log/tracef "got %d records" (count records))
      (cons records (consumer-seqs consumer poll-duration)))))
 
+;;;; Decoding
+
+;; The tx-log and document-store consumers poll on their own thread and
+;; thaw the records on a pool of decoder threads, keeping a few polls
+;; ahead of whoever's consuming them - rather than thawing each record
+;; on the polling (usually indexing) thread.
+
+(def ^:private decoding-args
+  {:decode-threads {:doc "Number of threads thawing consumed records"
+                    :required? true
+                    :default (max 1 (quot (.availableProcessors (Runtime/getRuntime)) 2))
+                    :spec ::sys/pos-int}
+   :polls-in-flight {:doc "Number of polls consumed and decoded ahead of the indexer"
+                     :required? true
+                     :default 4
+                     :spec ::sys/pos-int}})
+
+(defn- ->decode-executor ^java.util.concurrent.ExecutorService [{:keys [^long decode-threads]}]
+  (Executors/newFixedThreadPool decode-threads (cio/thread-factory "crux-kafka-decoder")))
+
+(defn- ->raw-consumer ^org.apache.kafka.clients.consumer.KafkaConsumer [{:keys [kafka-config]}]
+  (->consumer {:kafka-config (merge kafka-config
+                                    {"key.deserializer" (.getName ByteArrayDeserializer)
+                                     "value.deserializer" (.getName ByteArrayDeserializer)})}))
+
+(defn- thaw-record ^org.apache.kafka.clients.consumer.ConsumerRecord [^ConsumerRecord record]
+  (ConsumerRecord. (.topic record) (.partition record) (.offset record)
+                   (.timestamp record) ^TimestampType (.timestampType record) nil
+                   (.serializedKeySize record) (.serializedValueSize record)
+                   (some-> ^bytes (.key record) nippy/fast-thaw)
+                   (some-> ^bytes (.value record) nippy/fast-thaw)
+                   ^Headers (.headers record)))
+
+(defn- decode-poll [^ExecutorService decode-executor ^long decode-threads records]
+  (let [records (vec records)
+        chunk-size (max 1 (long (Math/ceil (/ (count records) (double decode-threads)))))]
+    {:record-count (count records)
+     :!chunks (vec (for [chunk (partition-all chunk-size records)]
+                     (.submit decode-executor
+                              ^Callable (fn []
+                                          (cio/with-nippy-thaw-all
+                                            (let [start-ns (System/nanoTime)
+                                                  records (mapv thaw-record chunk)]
+                                              {:records records
+                                               :decode-ns (- (System/nanoTime) start-ns)}))))))}))
+
+(s/def ::topic string?)
+(s/def ::record-count nat-int?)
+(s/def ::decode-ns nat-int?)
+(s/def ::queue-depth nat-int?)
+(defmethod bus/event-spec ::decoded-poll [_] (s/keys :req-un [::topic ::record-count ::decode-ns ::queue-depth]))
+
+(defrecord DecodingPoller [^BlockingQueue polls ^Thread poll-thread ^KafkaConsumer consumer bus topic]
+  Closeable
+  (close [_]
+    (.interrupt poll-thread)
+    (.wakeup consumer)
+    (.join poll-thread)))
+
+(defn- start-decoding-poller
+  "Takes ownership of the consumer - polls it on a new thread, keeping up to `polls-in-flight` polls ahead of `take-poll!`"
+  ^crux.kafka.DecodingPoller [^KafkaConsumer consumer ^Duration poll-duration topic
+                              {:keys [decode-executor decode-threads ^long polls-in-flight bus]}]
+  (let [polls (ArrayBlockingQueue. (int polls-in-flight))
+        poll-thread (doto (Thread. (fn []
+                                     (try
+                                       (loop []
+                                         (.put polls (decode-poll decode-executor decode-threads (.poll consumer poll-duration)))
+                                         (recur))
+                                       (catch WakeupException _)
+                                       (catch InterruptException _
+                                         (Thread/interrupted))
+                                       (catch InterruptedException _)
+                                       (catch Throwable t
+                                         (try
+                                           (.put polls {:error t})
+                                           (catch InterruptedException _)))
+                                       (finally
+                                         (.close consumer)))))
+                      (.setName (str "crux-kafka-poller-" topic))
+                      (.start))]
+    (->DecodingPoller polls poll-thread consumer bus topic)))
+
+(defn- take-poll!
+  "the thawed records of the next poll - blocks until it's been decoded"
+  [^DecodingPoller poller]
+  (let [^BlockingQueue polls (.polls poller)
+        {:keys [error record-count !chunks]} (.take polls)]
+    (when error
+      (throw (IllegalStateException. "error polling Kafka" error)))
+
+    (let [chunks (mapv (fn [^Future !chunk]
+                         (try
+                           (.get !chunk)
+                           (catch ExecutionException e
+                             (throw (.getCause e)))))
+                       !chunks)]
+      (when (pos? (long record-count))
+        (some-> (.bus poller) (bus/send {:crux/event-type ::decoded-poll
+                                         :topic (.topic poller)
+                                         :record-count record-count
+                                         :decode-ns (reduce + (map :decode-ns chunks))
+                                         :queue-depth (.size polls)})))
+      (into [] (mapcat :records) chunks))))
+
+
 ;;;; TxLog
 
 (defn- ensure-tx-topic-has-single-partition [^AdminClient admin-client tx-topic]
@@ -137,18 +249,19 @@
    :crux.tx/tx-id (.offset record)
    :crux.tx/tx-time (Date. (.timestamp record))})
 
-(defn- open-consumer ^org.apache.kafka.clients.consumer.KafkaConsumer [{:keys [kafka-config tx-topic]} after-tx-id]
+(defn- open-poller ^crux.kafka.DecodingPoller [{:keys [kafka-config tx-topic poll-wait-duration] :as tx-log} after-tx-id]
   (let [tp-offsets {(TopicPartition. tx-topic 0) (some-> after-tx-id inc)}]
-    (doto (->consumer {:kafka-config kafka-config})
-      (.assign (keys tp-offsets))
-      (seek-consumer tp-offsets))))
+    (-> (doto (->raw-consumer {:kafka-config kafka-config})
+          (.assign (keys tp-offsets))
+          (seek-consumer tp-offsets))
+        (start-decoding-poller poll-wait-duration tx-topic tx-log))))
 
-(defn- handle-subscriber [{:keys [^Duration poll-wait-duration] :as tx-log} after-tx-id f]
+(defn- handle-subscriber [tx-log after-tx-id f]
   (tx-sub/completable-thread
    (fn [^CompletableFuture fut]
-     (with-open [consumer (open-consumer tx-log after-tx-id)]
+     (with-open [poller (open-poller tx-log after-tx-id)]
        (loop []
-         (->> (poll-consumer consumer poll-wait-duration)
+         (->> (take-poll! poller)
               (map tx-record->tx-log-entry)
               (reduce (fn [_ tx]
                         (when (Thread/interrupted)
@@ -170,6 +283,7 @@
 (defrecord KafkaTxLog [^KafkaProducer producer, ^KafkaConsumer latest-submitted-tx-consumer,
                        tx-topic, kafka-config,
                        ^Duration poll-wait-duration
+                       ^ExecutorService decode-executor
                        ^Closeable consumer]
   db/TxLog
   (submit-tx [_ tx-events]
@@ -180,9 +294,10 @@
            ::tx/tx-time (Date. (.timestamp record-meta))}))))
 
   (open-tx-log [this after-tx-id]
-    (let [consumer (open-consumer this after-tx-id)]
-      (cio/->cursor #(.close consumer)
-                    (->> (consumer-seqs consumer poll-wait-duration)
+    (let [poller (open-poller this after-tx-id)]
+      (cio/->cursor #(.close poller)
+                    (->> (repeatedly #(take-poll! poller))
+                         (take-while seq)
                          (mapcat identity)
                          (map tx-record->tx-log-entry)))))
 
@@ -206,16 +321,19 @@
 
   Closeable
   (close [_]
-    (cio/try-close consumer)))
+    (cio/try-close consumer)
+    (.shutdownNow decode-executor)))
 
 (defn ->tx-log {::sys/deps {:kafka-config `->kafka-config
-                            :tx-topic-opts {:crux/module `->topic-opts, :topic-name "crux-transaction-log"}}
-                ::sys/args {:poll-wait-duration {:spec ::sys/duration
-                                                 :required? true
-                                                 :doc "How long to wait when polling Kafka"
-                                                 :default (Duration/ofSeconds 1)}}}
-
-  [{:keys [tx-topic-opts kafka-config poll-wait-duration]}]
+                            :tx-topic-opts {:crux/module `->topic-opts, :topic-name "crux-transaction-log"}
+                            :bus :crux/bus}
+                ::sys/args (merge {:poll-wait-duration {:spec ::sys/duration
+                                                        :required? true
+                                                        :doc "How long to wait when polling Kafka"
+                                                        :default (Duration/ofSeconds 1)}}
+                                  decoding-args)}
+
+  [{:keys [tx-topic-opts kafka-config poll-wait-duration bus decode-threads polls-in-flight] :as opts}]
   (let [latest-submitted-tx-consumer (->consumer {:kafka-config kafka-config})
         producer (->producer {:kafka-config kafka-config})
         tx-topic-opts (-> tx-topic-opts
@@ -232,7 +350,11 @@
                       :latest-submitted-tx-consumer latest-submitted-tx-consumer
                       :tx-topic tx-topic
                       :kafka-config kafka-config
-                      :poll-wait-duration poll-wait-duration})))
+                      :poll-wait-duration poll-wait-duration
+                      :bus bus
+                      :decode-threads decode-threads
+                      :polls-in-flight polls-in-flight
+                      :decode-executor (->decode-executor opts)})))
 
 ;;;; DocumentStore
 (defn- submit-docs [id-and-docs {:keys [^KafkaProducer producer, doc-topic]}]
@@ -266,13 +388,15 @@
 (defrecord KafkaDocumentStore [^KafkaProducer producer doc-topic
                                ^KafkaConsumer end-offset-consumer
                                local-document-store index-store
-                               ^Thread indexing-thread !indexing-error]
+                               ^Thread indexing-thread !indexing-error
+                               ^ExecutorService decode-executor]
   Closeable
   (close [_]
     (cio/try-close end-offset-consumer)
     (cio/try-close producer)
     (.interrupt indexing-thread)
-    (.join indexing-thread))
+    (.join indexing-thread)
+    (.shutdownNow decode-executor))
 
   db/DocumentStore
   (submit-docs [this id-and-docs]
@@ -318,20 +442,22 @@
   (MapEntry/create (c/new-id (.key doc-record))
                    (.value doc-record)))
 
-(defn- index-doc-log [{:keys [local-document-store index-store !indexing-error doc-topic-opts kafka-config group-id poll-wait-duration]}]
+(defn- index-doc-log [{:keys [local-document-store index-store !indexing-error doc-topic-opts kafka-config group-id poll-wait-duration] :as opts}]
   (let [doc-topic (:topic-name doc-topic-opts)
         tp-offsets (read-doc-offsets index-store)]
     (try
-      (with-open [consumer (doto (->consumer {:kafka-config (assoc kafka-config
-                                                                   "group.id" (or group-id (str (UUID/randomUUID))))})
-                             (subscribe-consumer #{doc-topic} tp-offsets))]
+      (with-open [poller (-> (doto (->raw-consumer {:kafka-config (assoc kafka-config
+                                                                         "group.id" (or group-id (str (UUID/randomUUID))))})
+                               (subscribe-consumer #{doc-topic} tp-offsets))
+                             (start-decoding-poller poll-wait-duration doc-topic opts))]
         (loop [tp-offsets tp-offsets]
-          (let [tp-offsets (->> (consumer-seqs consumer poll-wait-duration)
-                                (reduce (fn [tp-offsets doc-records]
-                                          (db/submit-docs local-document-store (->> doc-records (into {} (map doc-record->id+doc))))
-                                          (doto (update-doc-offsets tp-offsets doc-records)
-                                            (->> (store-doc-offsets index-store))))
-                                        tp-offsets))]
+          (let [doc-records (take-poll! poller)
+                tp-offsets (if (seq doc-records)
+                             (do
+                               (db/submit-docs local-document-store (->> doc-records (into {} (map doc-record->id+doc))))
+                               (doto (update-doc-offsets tp-offsets doc-records)
+                                 (->> (store-doc-offsets index-store))))
+                             tp-offsets)]
             (when (Thread/interrupted)
               (throw (InterruptedException.)))
             (recur tp-offsets))))
@@ -356,25 +482,31 @@
                                                      :topic-name "crux-docs",
                                                      :num-partitions 1}
                                     :local-document-store 'crux.kv.document-store/->document-store
-                                    :index-store :crux/index-store}
-                        ::sys/args {:group-id {:doc "Kafka client group.id"
-                                               :required? false
-                                               :spec ::sys/string}
-                                    :poll-wait-duration {:spec ::sys/duration
-                                                         :required? true
-                                                         :doc "How long to wait when polling Kafka"
-                                                         :default (Duration/ofSeconds 1)}} }
+                                    :index-store :crux/index-store
+                                    :bus :crux/bus}
+                        ::sys/args (merge {:group-id {:doc "Kafka client group.id"
+                                                      :required? false
+                                                      :spec ::sys/string}
+                                           :poll-wait-duration {:spec ::sys/duration
+                                                                :required? true
+                                                                :doc "How long to wait when polling Kafka"
+                                                                :default (Duration/ofSeconds 1)}}
+                                          decoding-args)}
   [{:keys [index-store local-document-store kafka-config doc-topic-opts] :as opts}]
   (ensure-doc-topic-exists opts)
 
-  (let [!indexing-error (atom nil)]
+  (let [!indexing-error (atom nil)
+        decode-executor (->decode-executor opts)]
     (map->KafkaDocumentStore {:producer (->producer {:kafka-config kafka-config})
                               :end-offset-consumer (->consumer {:kafka-config kafka-config})
                               :doc-topic (:topic-name doc-topic-opts)
                               :index-store index-store
                               :local-document-store local-document-store
                               :!indexing-error !indexing-error
-                              :indexing-thread (doto (Thread. #(index-doc-log (assoc opts :!indexing-error !indexing-error)))
+                              :decode-executor decode-executor
+                              :indexing-thread (doto (Thread. #(index-doc-log (assoc opts
+                                                                                     :!indexing-error !indexing-error
+                                                                                     :decode-executor decode-executor)))
                                                  (.setName "crux-doc-consumer")
                                                  (.start))})))
 
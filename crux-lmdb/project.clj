@@ -14,6 +14,7 @@
   :dependencies [[org.clojure/clojure "1.10.3"]
                  [org.clojure/tools.logging "1.1.0"]
                  [pro.juxt.crux/crux-core]
+                 [pro.juxt.crux/crux-metrics :scope "provided"]
                  [com.github.jnr/jnr-ffi "2.1.9"]
                  [org.lmdbjava/lmdbjava "0.7.0" :exclusions [com.github.jnr/jffi]]
                  [org.lwjgl/lwjgl "3.2.3" :classifier "natives-linux" :native-prefix ""]
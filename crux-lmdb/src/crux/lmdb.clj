@@ -13,10 +13,11 @@
            java.io.Closeable
            [java.nio.file Files Path]
            java.nio.file.attribute.FileAttribute
+           [java.util.concurrent ArrayBlockingQueue TimeUnit]
+           java.util.concurrent.atomic.AtomicLong
            java.util.concurrent.locks.StampedLock
-           java.util.concurrent.TimeUnit
            org.agrona.concurrent.UnsafeBuffer
-           org.agrona.ExpandableDirectByteBuffer
+           [org.agrona DirectBuffer ExpandableDirectByteBuffer]
            [org.lwjgl.system MemoryStack MemoryUtil]
            [org.lwjgl.util.lmdb LMDB MDBEnvInfo MDBStat MDBVal]))
 
@@ -32,6 +33,45 @@
 (defn- env-set-mapsize [^long env ^long size]
   (success? (LMDB/mdb_env_set_mapsize env size)))
 
+(defn- env-info ^org.lwjgl.util.lmdb.MDBEnvInfo [env ^MemoryStack stack]
+  (let [info (MDBEnvInfo/mallocStack stack)]
+    (success? (LMDB/mdb_env_info env info))
+    info))
+
+(defn- env-mapsize ^long [env]
+  (with-open [stack (MemoryStack/stackPush)]
+    (.me_mapsize (env-info env stack))))
+
+(defn- env-used ^long [env ^long page-size]
+  (with-open [stack (MemoryStack/stackPush)]
+    (* page-size (inc (.me_last_pgno (env-info env stack))))))
+
+(defn- env-page-size ^long [env]
+  (with-open [stack (MemoryStack/stackPush)]
+    (let [stat (MDBStat/mallocStack stack)]
+      (success? (LMDB/mdb_env_stat env stat))
+      (.ms_psize stat))))
+
+(defn- ->stats []
+  {:resizes (AtomicLong.)
+   :resize-wait-nanos (AtomicLong.)
+   :txn-wait-nanos (AtomicLong.)
+   :renewed-txns (AtomicLong.)})
+
+;; Transactions hold the mapsize read lock and resizes take the write lock,
+;; as the map can only be resized while no transactions are open. Resizes
+;; stall every reader, so we grow the map ahead of time (see
+;; `grow-mapsize-ahead!`) to keep them rare.
+
+(defn- acquire-read-lock ^long [^StampedLock mapsize-lock {:keys [^AtomicLong txn-wait-nanos]}]
+  (let [stamp (.tryReadLock mapsize-lock)]
+    (if (zero? stamp)
+      (let [start (System/nanoTime)
+            stamp (.readLock mapsize-lock)]
+        (.addAndGet txn-wait-nanos (- (System/nanoTime) start))
+        stamp)
+      stamp)))
+
 (defn- acquire-write-lock ^long [^StampedLock mapsize-lock]
   (let [stamp (.tryWriteLock mapsize-lock 120 TimeUnit/SECONDS)]
     (assert (pos? stamp) "LMDB write lock timeout")
@@ -41,38 +81,96 @@
 ;; transactions. Also, when file reached 4Gb it crashed. MDB_WRITEMAP
 ;; and MDB_MAPASYNC might solve this, but doesn't allow nested
 ;; transactions. See: https://github.com/dw/py-lmdb/issues/113
-(defn- increase-mapsize [^StampedLock mapsize-lock env ^long factor]
-  (let [stamp (acquire-write-lock mapsize-lock)]
+(defn- set-mapsize [{:keys [env ^long page-size ^StampedLock mapsize-lock stats]} ^long new-mapsize]
+  (let [{:keys [^AtomicLong resizes ^AtomicLong resize-wait-nanos]} stats
+        start (System/nanoTime)
+        stamp (acquire-write-lock mapsize-lock)]
+    (.addAndGet resize-wait-nanos (- (System/nanoTime) start))
     (try
-      (with-open [stack (MemoryStack/stackPush)]
-        (let [info (MDBEnvInfo/mallocStack stack)]
-          (success? (LMDB/mdb_env_info env info))
-          (let [new-mapsize (* factor (.me_mapsize info))]
-            (log/debug "Increasing mapsize to:" new-mapsize)
-            (env-set-mapsize env new-mapsize))))
+      ;; another thread may have grown it while we were waiting
+      (when (> new-mapsize (env-mapsize env))
+        (let [new-mapsize (* page-size (quot (+ new-mapsize page-size -1) page-size))]
+          (log/debug "Increasing mapsize to:" new-mapsize)
+          (env-set-mapsize env new-mapsize)
+          (.incrementAndGet resizes)))
       (finally
         (.unlock mapsize-lock stamp)))))
 
+(defn- increase-mapsize [{:keys [env] :as kv-store} ^long factor]
+  (set-mapsize kv-store (* factor (env-mapsize env))))
+
+(def ^:private ^:const growth-headroom-stores 256)
+
+(defn- grow-mapsize-ahead!
+  "grows the map once fewer than `growth-headroom-stores` more stores (at the recent rate) would fit - at most doubling it"
+  [{:keys [env ^long page-size !growth] :as kv-store}]
+  (let [used (env-used env page-size)
+        mapsize (env-mapsize env)
+        {:keys [^long avg-growth]} (swap! !growth
+                                          (fn [{:keys [^long last-used ^long avg-growth]}]
+                                            ;; moving average of how much each store grows the map by
+                                            {:last-used used
+                                             :avg-growth (quot (+ (* 7 avg-growth) (max 0 (- used last-used))) 8)}))
+        headroom (max (quot mapsize 8) (* growth-headroom-stores avg-growth))]
+    (when (< (- mapsize used) headroom)
+      (set-mapsize kv-store (min (* 2 mapsize) (+ used (* 2 headroom)))))))
+
 (defrecord LMDBTransaction [^long txn close-fn]
   Closeable
   (close [_]
+    (close-fn)))
+
+(defn- begin-txn ^long [env flags]
+  (with-open [stack (MemoryStack/stackPush)]
+    (let [pp (.mallocPointer stack 1)
+          rc (LMDB/mdb_txn_begin env MemoryUtil/NULL flags pp)]
+      (if (= LMDB/MDB_MAP_RESIZED rc)
+        ;; another process has grown the map
+        (do (env-set-mapsize env 0)
+            (begin-txn env flags))
+        (do (success? rc)
+            (.get pp))))))
+
+(defn- new-transaction ^crux.lmdb.LMDBTransaction [^StampedLock mapsize-lock env flags stats]
+  (let [txn-stamp (acquire-read-lock mapsize-lock stats)]
     (try
-      (let [rc (LMDB/mdb_txn_commit txn)]
-        (when-not (= LMDB/MDB_BAD_TXN rc)
-          (success? rc)))
-      (finally
-        (close-fn)))))
+      (let [txn (begin-txn env flags)]
+        (->LMDBTransaction txn (fn []
+                                 (try
+                                   (let [rc (LMDB/mdb_txn_commit txn)]
+                                     (when-not (= LMDB/MDB_BAD_TXN rc)
+                                       (success? rc)))
+                                   (finally
+                                     (.unlock mapsize-lock txn-stamp))))))
+      (catch Throwable t
+        (.unlock mapsize-lock txn-stamp)
+        (throw t)))))
 
-(defn- new-transaction ^crux.lmdb.LMDBTransaction [^StampedLock mapsize-lock env flags]
-  (let [txn-stamp (.readLock mapsize-lock)]
+;; Read txns are reset and pooled when they're closed, rather than
+;; aborted - renewing one skips allocating the txn and its reader slot.
+;; With MDB_NOTLS, they aren't tied to the thread that began them.
+
+(defn- renew-txn ^long [env ^ArrayBlockingQueue txn-pool {:keys [^AtomicLong renewed-txns]}]
+  (if-let [txn (.poll txn-pool)]
+    (let [txn (long txn)]
+      (if (= LMDB/MDB_SUCCESS (LMDB/mdb_txn_renew txn))
+        (do (.incrementAndGet renewed-txns)
+            txn)
+        (do (LMDB/mdb_txn_abort txn)
+            (begin-txn env LMDB/MDB_RDONLY))))
+    (begin-txn env LMDB/MDB_RDONLY)))
+
+(defn- new-read-transaction ^crux.lmdb.LMDBTransaction [{:keys [env ^StampedLock mapsize-lock ^ArrayBlockingQueue txn-pool stats]}]
+  (let [txn-stamp (acquire-read-lock mapsize-lock stats)]
     (try
-      (with-open [stack (MemoryStack/stackPush)]
-        (let [pp (.mallocPointer stack 1)
-              rc (LMDB/mdb_txn_begin env MemoryUtil/NULL flags pp)]
-          (if (= LMDB/MDB_MAP_RESIZED rc)
-            (env-set-mapsize env 0)
-            (success? rc))
-          (->LMDBTransaction (.get pp) #(.unlock mapsize-lock txn-stamp))))
+      (let [txn (renew-txn env txn-pool stats)]
+        (->LMDBTransaction txn (fn []
+                                 (try
+                                   (LMDB/mdb_txn_reset txn)
+                                   (when-not (.offer txn-pool txn)
+                                     (LMDB/mdb_txn_abort txn))
+                                   (finally
+                                     (.unlock mapsize-lock txn-stamp))))))
       (catch Throwable t
         (.unlock mapsize-lock txn-stamp)
         (throw t)))))
@@ -105,9 +203,9 @@
     (.mkdirs file)
     (success? (LMDB/mdb_env_copy env (.getAbsolutePath file)))))
 
-(defn- dbi-open [mapsize-lock env]
+(defn- dbi-open [mapsize-lock env stats]
   (with-open [stack (MemoryStack/stackPush)
-              tx (new-transaction mapsize-lock env LMDB/MDB_RDONLY)]
+              tx (new-transaction mapsize-lock env LMDB/MDB_RDONLY stats)]
     (let [{:keys [^long txn]} tx
           ip (.mallocInt stack 1)
           ^CharSequence name nil]
@@ -131,9 +229,9 @@
       (success? rc)
       (UnsafeBuffer. (.mv_data kv) 0 (.mv_size kv)))))
 
-(defn- cursor-put [mapsize-lock env dbi kvs]
+(defn- cursor-put [{:keys [mapsize-lock env dbi stats]} kvs]
   (with-open [stack (MemoryStack/stackPush)
-              tx (new-transaction mapsize-lock env 0)
+              tx (new-transaction mapsize-lock env 0 stats)
               cursor (new-cursor dbi (:txn tx))]
     (let [{:keys [cursor]} cursor
           kv (MDBVal/mallocStack stack)
@@ -166,6 +264,25 @@
         (success? rc)
         (UnsafeBuffer. (.mv_data dv) 0 (.mv_size dv))))))
 
+(defn- tx-multi-get [dbi ^LMDBTransaction tx ks]
+  ;; one cursor, in key order - LMDB can then often find the next key on the leaf page it's already on
+  (let [ks (mapv mem/->off-heap ks)
+        results (object-array (count ks))]
+    (with-open [stack (MemoryStack/stackPush)
+                cursor (new-cursor dbi (.txn tx))]
+      (let [kv (MDBVal/mallocStack stack)
+            dv (MDBVal/mallocStack stack)]
+        (doseq [idx (sort-by #(nth ks %) mem/buffer-comparator (range (count ks)))
+                :let [^DirectBuffer k (nth ks idx)]]
+          (-> kv
+              (.mv_data (MemoryUtil/memByteBuffer (.addressOffset k) (.capacity k)))
+              (.mv_size (.capacity k)))
+          (let [rc (LMDB/mdb_cursor_get (.cursor cursor) kv dv LMDB/MDB_SET_KEY)]
+            (when-not (= LMDB/MDB_NOTFOUND rc)
+              (success? rc)
+              (aset results idx (UnsafeBuffer. (.mv_data dv) 0 (.mv_size dv))))))))
+    (vec results)))
+
 (def ^:const default-env-flags (bit-or LMDB/MDB_NOTLS
                                        LMDB/MDB_NORDAHEAD))
 
@@ -207,6 +324,10 @@
   (get-value [_ k]
     (tx-get dbi tx k))
 
+  kv/KvMultiGet
+  (multi-get [_ ks]
+    (tx-multi-get dbi tx ks))
+
   Closeable
   (close [_]
     (.close tx)))
@@ -214,21 +335,22 @@
 (def ^:dynamic ^{:tag 'long} *mapsize-increase-factor* 1)
 (def ^:const max-mapsize-increase-factor 32)
 
-(defrecord LMDBKv [db-dir env env-flags dbi ^StampedLock mapsize-lock sync?]
+(defrecord LMDBKv [db-dir env env-flags dbi ^StampedLock mapsize-lock sync?
+                   ^ArrayBlockingQueue txn-pool ^long page-size !growth stats ^Closeable metrics]
   kv/KvStore
-  (new-snapshot [_]
-    (let [tx (new-transaction mapsize-lock env LMDB/MDB_RDONLY)]
-      (->LMDBKvSnapshot env dbi tx)))
+  (new-snapshot [this]
+    (->LMDBKvSnapshot env dbi (new-read-transaction this)))
 
   (store [this kvs]
     (try
-      (cursor-put mapsize-lock env dbi kvs)
+      (cursor-put this kvs)
+      (grow-mapsize-ahead! this)
       (catch ExceptionInfo e
         (if (= LMDB/MDB_MAP_FULL (:error (ex-data e)))
           (binding [*mapsize-increase-factor* (* 2 *mapsize-increase-factor*)]
             (when (> *mapsize-increase-factor* max-mapsize-increase-factor)
               (throw (IllegalStateException. "Too large size of key values to store at once.")))
-            (increase-mapsize mapsize-lock env *mapsize-increase-factor*)
+            (increase-mapsize this *mapsize-increase-factor*)
             (kv/store this kvs))
           (throw e)))))
 
@@ -238,9 +360,9 @@
     (when-not sync?
       (success? (LMDB/mdb_env_sync env true))))
 
-  (count-keys [_]
+  (count-keys [this]
     (with-open [stack (MemoryStack/stackPush)
-                tx (new-transaction mapsize-lock env LMDB/MDB_RDONLY)]
+                tx (new-read-transaction this)]
       (let [stat (MDBStat/mallocStack stack)]
         (LMDB/mdb_stat (.txn tx) dbi stat)
         (.ms_entries stat))))
@@ -259,8 +381,13 @@
 
   Closeable
   (close [_]
+    (some-> metrics .close)
     (let [stamp (acquire-write-lock mapsize-lock)]
       (try
+        (loop []
+          (when-let [txn (.poll txn-pool)]
+            (LMDB/mdb_txn_abort (long txn))
+            (recur)))
         (env-close env)
         (finally
           (.unlock mapsize-lock stamp))))))
@@ -269,7 +396,8 @@
   {:index-version c/index-version
    ::version "3"})
 
-(defn ->kv-store {::sys/deps {:checkpointer (fn [_])}
+(defn ->kv-store {::sys/deps {:checkpointer (fn [_])
+                              :metrics (fn [_])}
                   ::sys/args (-> {:db-dir {:doc "Directory to store K/V files"
                                            :required? true
                                            :spec ::sys/path}
@@ -282,8 +410,12 @@
                                                 :spec ::sys/nat-int}
                                   :env-maxreaders {:doc "LMDB Max readers"
                                                    :default 1024
-                                                   :spec ::sys/nat-int}})}
-  [{:keys [^Path db-dir checkpointer sync? env-flags env-mapsize env-maxreaders]}]
+                                                   :spec ::sys/nat-int}
+                                  :txn-pool-size {:doc "Maximum number of read transactions kept for reuse - each holds one of the `env-maxreaders` reader slots"
+                                                  :default 64
+                                                  :spec ::sys/pos-int}})}
+  [{:keys [^Path db-dir checkpointer metrics sync? env-flags env-mapsize env-maxreaders txn-pool-size]
+    :or {txn-pool-size 64}}]
 
   (some-> checkpointer (cp/try-restore (.toFile db-dir) cp-format))
 
@@ -293,19 +425,28 @@
                                 0
                                 no-sync-env-flags)))
         env (env-create)
-        mapsize-lock (StampedLock.)]
+        mapsize-lock (StampedLock.)
+        stats (->stats)]
     (try
       (when env-set-maxreaders
         (env-set-maxreaders env env-maxreaders))
       (env-open env db-dir env-flags)
       (when env-mapsize
         (env-set-mapsize env env-mapsize))
-      (let [kv-store (map->LMDBKv {:db-dir db-dir
+      (let [page-size (env-page-size env)
+            kv-store (map->LMDBKv {:db-dir db-dir
                                    :env env
                                    :env-flags env-flags
-                                   :dbi (dbi-open mapsize-lock env)
+                                   :dbi (dbi-open mapsize-lock env stats)
                                    :mapsize-lock mapsize-lock
-                                   :sync? sync?})]
+                                   :sync? sync?
+                                   :txn-pool (ArrayBlockingQueue. (int txn-pool-size))
+                                   :page-size page-size
+                                   ;; an existing env's size isn't one store's growth
+                                   :!growth (atom {:last-used (env-used env page-size), :avg-growth 0})
+                                   :stats stats
+                                   :metrics (when metrics
+                                              (metrics #(env-mapsize env) stats))})]
         (cond-> kv-store
           checkpointer (assoc :cp-job (cp/start checkpointer kv-store {::cp/cp-format cp-format}))))
       (catch Throwable t
@@ -42,6 +42,11 @@
   (get-value [_ k]
     (.get dbi tx (mem/->off-heap k)))
 
+  kv/KvMultiGet
+  (multi-get [_ ks]
+    ;; lmdbjava reuses the buffer `.get` returns
+    (mapv #(some-> (.get dbi tx (mem/->off-heap %)) (mem/copy-buffer)) ks))
+
   Closeable
   (close [_]
     (try
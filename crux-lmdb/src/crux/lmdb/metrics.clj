@@ -0,0 +1,27 @@
+(ns ^:no-doc crux.lmdb.metrics
+  (:require [crux.metrics :as m]
+            [crux.metrics.dropwizard :as dw]
+            [crux.system :as sys])
+  (:import java.io.Closeable
+           java.util.concurrent.atomic.AtomicLong))
+
+(defn ->metrics {::sys/deps {:registry ::m/registry}
+                 ::sys/args {:instance-name {:doc "unique name for this instance of LMDB, used in metrics domains"
+                                             :default "lmdb"
+                                             :spec ::sys/string
+                                             :required? true}}}
+  [{:keys [registry instance-name]}]
+  (fn [mapsize-fn stats]
+    ;; the mapsize is read from the env, which mustn't happen once it's closed
+    (let [!closed? (volatile! false)]
+      (dw/gauge registry [instance-name "mapsize"]
+                #(when-not @!closed?
+                   (mapsize-fn)))
+
+      (doseq [[k ^AtomicLong stat] stats]
+        (dw/gauge registry [instance-name (name k)]
+                  #(.get stat)))
+
+      (reify Closeable
+        (close [_]
+          (vreset! !closed? true))))))
@@ -1,10 +1,12 @@
 (ns crux.metrics
   (:require [crux.metrics.dropwizard :as dropwizard]
             [crux.metrics.index-store :as index-store-metrics]
+            [crux.metrics.kafka :as kafka-metrics]
             [crux.metrics.query :as query-metrics]
+            [crux.metrics.tx-log :as tx-log-metrics]
             [crux.status :as status]
             [crux.system :as sys])
-  (:import [com.codahale.metrics Gauge Meter MetricRegistry Snapshot Timer]))
+  (:import [com.codahale.metrics Gauge Histogram Meter MetricRegistry Snapshot Timer]))
 
 (defn ->registry [_]
   (dropwizard/new-registry))
@@ -17,13 +19,21 @@
                                                          :default true
                                                          :spec ::sys/boolean}
                              :with-query-metrics? {:doc "Include metrics on queries"
+                                                   :default true
+                                                   :spec ::sys/boolean}
+                             :with-tx-log-metrics? {:doc "Include metrics on submitting txs to the standalone tx-log"
+                                                    :default true
+                                                    :spec ::sys/boolean}
+                             :with-kafka-metrics? {:doc "Include metrics on decoding records consumed from Kafka"
                                                    :default true
                                                    :spec ::sys/boolean}}}
-  [{:keys [registry with-index-store-metrics? with-query-metrics?] :as opts}]
+  [{:keys [registry with-index-store-metrics? with-query-metrics? with-tx-log-metrics? with-kafka-metrics?] :as opts}]
   (let [deps (select-keys opts #{:crux/node :crux/index-store :crux/bus})]
     {:registry (cond-> registry
                  with-index-store-metrics? (doto (index-store-metrics/assign-listeners deps))
-                 with-query-metrics? (doto (query-metrics/assign-listeners deps)))}))
+                 with-query-metrics? (doto (query-metrics/assign-listeners deps))
+                 with-tx-log-metrics? (doto (tx-log-metrics/assign-listeners deps))
+                 with-kafka-metrics? (doto (kafka-metrics/assign-listeners deps)))}))
 
 (defn- ns->ms [time-ns]
   (/ time-ns 1e6))
@@ -44,6 +54,15 @@
                       "rate-5-min" (.getFiveMinuteRate meter)
                       "rate-15-min" (.getFifteenMinuteRate meter)}})
              (.getMeters registry))
+            (map
+             (fn [[^String name ^Histogram histogram]]
+               (let [^Snapshot snapshot (.getSnapshot histogram)]
+                 {name {"count" (.getCount histogram)
+                        "minimum" (.getMin snapshot)
+                        "maximum" (.getMax snapshot)
+                        "mean" (.getMean snapshot)
+                        "percentile-99" (.get99thPercentile snapshot)}}))
+             (.getHistograms registry))
             (map
              (fn [[^String name ^Timer timer]]
                (let [^Snapshot snapshot (.getSnapshot timer)]
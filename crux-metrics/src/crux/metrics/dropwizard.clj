@@ -2,8 +2,10 @@
   (:import (com.codahale.metrics MetricRegistry
                                  Timer Timer$Context
                                  Gauge
+                                 Histogram
                                  Metered Meter)
-           clojure.lang.IFn))
+           clojure.lang.IFn
+           java.util.concurrent.TimeUnit))
 
 ;;;; Registry
 
@@ -24,6 +26,9 @@
 (defn stop [^Timer$Context tc]
   (.stop tc))
 
+(defn update! [^Timer t ^long duration-ns]
+  (.update t duration-ns TimeUnit/NANOSECONDS))
+
 ;;;; Gauges
 
 (defn gauge [^MetricRegistry reg title ^IFn f]
@@ -48,3 +53,15 @@
 
 (defn meter-count [^Metered t]
   (.getCount t))
+
+;;;; Histograms
+
+(defn histogram [^MetricRegistry reg title]
+  (.histogram reg (metric-name title)))
+
+(defn update-histogram! [^Histogram h ^long n]
+  (doto h
+    (.update n)))
+
+(defn histogram-count [^Histogram h]
+  (.getCount h))
@@ -55,6 +55,14 @@
                       (swap! !timer-store dissoc submitted-tx)))))
     timer))
 
+(defn assign-prefetch-stall-timer [registry {:crux/keys [bus]}]
+  (let [timer (dropwizard/timer registry ["index-store" "prefetch-stalls"])]
+    (bus/listen bus
+                {:crux/event-types #{::tx/prefetch-stalled}}
+                (fn [{:keys [stall-ns]}]
+                  (dropwizard/update! timer stall-ns)))
+    timer))
+
 (defn assign-listeners
   "Assigns listeners to an event bus for a given node.
   Returns an atom containing updating metrics"
@@ -62,4 +70,5 @@
   (merge (assign-doc-meters registry deps)
          {:tx-id-lag (assign-tx-id-lag registry deps)
           :tx-latency-gauge (assign-tx-latency-gauge registry deps)
-          :tx-ingest-timer (assign-tx-timer registry deps)}))
+          :tx-ingest-timer (assign-tx-timer registry deps)
+          :prefetch-stall-timer (assign-prefetch-stall-timer registry deps)}))
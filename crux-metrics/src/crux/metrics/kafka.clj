@@ -0,0 +1,30 @@
+(ns ^:no-doc crux.metrics.kafka
+  (:require [crux.bus :as bus]
+            [crux.metrics.dropwizard :as dropwizard]))
+
+(defn assign-listeners
+  "Assigns listeners for the Kafka consumers' record decoding, per topic.
+  crux-kafka is optional, so its events are referred to by name."
+  [registry {:crux/keys [bus]}]
+  (let [!topic-metrics (atom {})
+        topic-metrics (fn [topic]
+                        (or (get @!topic-metrics topic)
+                            (get (swap! !topic-metrics
+                                        (fn [topic-metrics]
+                                          (cond-> topic-metrics
+                                            (not (contains? topic-metrics topic))
+                                            (assoc topic (let [!queue-depth (atom 0)]
+                                                           {:decode-timer (dropwizard/timer registry ["kafka" topic "decode"])
+                                                            :decoded-records-meter (dropwizard/meter registry ["kafka" topic "decoded-records"])
+                                                            :!queue-depth !queue-depth
+                                                            :queue-depth-gauge (dropwizard/gauge registry ["kafka" topic "decode-queue-depth"]
+                                                                                                 #(deref !queue-depth))})))))
+                                 topic)))]
+    (bus/listen bus
+                {:crux/event-types #{:crux.kafka/decoded-poll}}
+                (fn [{:keys [topic record-count decode-ns queue-depth]}]
+                  (let [{:keys [decode-timer decoded-records-meter !queue-depth]} (topic-metrics topic)]
+                    (dropwizard/update! decode-timer decode-ns)
+                    (dropwizard/mark! decoded-records-meter record-count)
+                    (reset! !queue-depth queue-depth))))
+    !topic-metrics))
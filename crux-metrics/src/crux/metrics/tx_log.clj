@@ -0,0 +1,18 @@
+(ns ^:no-doc crux.metrics.tx-log
+  (:require [crux.bus :as bus]
+            [crux.kv.tx-log :as kvtx]
+            [crux.metrics.dropwizard :as dropwizard]))
+
+(defn assign-listeners
+  "Assigns listeners for the standalone (KV) tx-log's group commits"
+  [registry {:crux/keys [bus]}]
+  (let [submit-timer (dropwizard/timer registry ["tx-log" "submit-latency"])
+        batch-size-histogram (dropwizard/histogram registry ["tx-log" "submit-batch-size"])]
+    (bus/listen bus
+                {:crux/event-types #{::kvtx/submitted-txs}}
+                (fn [{:keys [batch-size submit-latencies-ns]}]
+                  (dropwizard/update-histogram! batch-size-histogram batch-size)
+                  (doseq [latency-ns submit-latencies-ns]
+                    (dropwizard/update! submit-timer latency-ns))))
+    {:submit-timer submit-timer
+     :batch-size-histogram batch-size-histogram}))
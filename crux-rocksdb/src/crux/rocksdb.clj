@@ -14,46 +14,320 @@
            java.nio.ByteBuffer
            (java.nio.file Files Path)
            java.nio.file.attribute.FileAttribute
-           (org.rocksdb BlockBasedTableConfig Checkpoint CompressionType FlushOptions LRUCache
-                        Options ReadOptions RocksDB RocksIterator
+           java.util.ArrayList
+           (org.agrona DirectBuffer ExpandableDirectByteBuffer)
+           (org.agrona.concurrent UnsafeBuffer)
+           (org.rocksdb BlockBasedTableConfig BloomFilter Checkpoint ColumnFamilyDescriptor ColumnFamilyHandle ColumnFamilyOptions
+                        CompressionType DBOptions EnvOptions FlushOptions IngestExternalFileOptions LRUCache
+                        Options ReadOptions RocksDB RocksIterator Slice SstFileWriter
                         WriteBatch WriteOptions Statistics StatsLevel)))
 
 (set! *unchecked-math* :warn-on-boxed)
 
-(defn- iterator->key [^RocksIterator i]
+;; Keys and values are read into direct buffers owned by the iterator,
+;; rather than into new byte arrays - so, as crux.kv.index-store notes,
+;; they're only valid until the iterator's next call.
+
+(defn- read-into-buffer ^org.agrona.DirectBuffer [^RocksIterator i key? ^ExpandableDirectByteBuffer eb ^UnsafeBuffer view]
+  (let [bb (doto (.byteBuffer eb) (.clear))
+        len (if key? (.key i bb) (.value i bb))]
+    ;; RocksDB returns the full length when the buffer's too small
+    (if (> len (.capacity eb))
+      (do (.checkLimit eb len)
+          (recur i key? eb view))
+      (doto view (.wrap eb 0 len)))))
+
+(defn- iterator->key [^RocksIterator i ^ExpandableDirectByteBuffer kb ^UnsafeBuffer k-view]
   (when (.isValid i)
-    (mem/as-buffer (.key i))))
+    (read-into-buffer i true kb k-view)))
 
-(defrecord RocksKvIterator [^RocksIterator i]
+(defrecord RocksKvIterator [^RocksIterator i
+                            ^ExpandableDirectByteBuffer kb ^UnsafeBuffer k-view
+                            ^ExpandableDirectByteBuffer vb ^UnsafeBuffer v-view
+                            resources]
   kv/KvIterator
   (seek [this k]
     (.seek i (mem/direct-byte-buffer k))
-    (iterator->key i))
+    (iterator->key i kb k-view))
 
   (next [this]
     (.next i)
-    (iterator->key i))
+    (iterator->key i kb k-view))
 
   (prev [this]
     (.prev i)
-    (iterator->key i))
+    (iterator->key i kb k-view))
 
   (value [this]
-    (mem/as-buffer (.value i)))
+    (read-into-buffer i false vb v-view))
 
   Closeable
   (close [this]
-    (.close i)))
+    (.close i)
+    (doseq [resource resources]
+      (cio/try-close resource))))
+
+(defn- ->rocks-kv-iterator
+  ([i] (->rocks-kv-iterator i nil))
+  ([^RocksIterator i resources]
+   (->RocksKvIterator i
+                      (ExpandableDirectByteBuffer. 128) (UnsafeBuffer. (byte-array 0))
+                      (ExpandableDirectByteBuffer. 1024) (UnsafeBuffer. (byte-array 0))
+                      resources)))
+
+;; Each Crux index gets its own column family, so that it can be tuned
+;; for how it's read - keys are routed by their first byte (the index id),
+;; everything else goes to the default column family.
+;; Iterators stitch the column families back together into one keyspace,
+;; so callers see the same ordering as a single column family.
+
+(def ^:private ^:const prefix-size (+ c/index-id-size c/id-size))
+
+(def ^:private column-families
+  {c/content-hash->doc-index-id {:cf-name "docs"
+                                 :compression CompressionType/ZSTD_COMPRESSION
+                                 :whole-key-filter? true}
+   c/ave-index-id {:cf-name "ave", :prefix-size prefix-size}
+   c/ecav-index-id {:cf-name "ecav", :prefix-size prefix-size}
+   c/hash-cache-index-id {:cf-name "hash-cache", :whole-key-filter? true}
+   c/entity+vt+tt+tx-id->content-hash-index-id {:cf-name "bitemporal"
+                                                :compression CompressionType/NO_COMPRESSION
+                                                :block-size (* 4 1024)
+                                                :prefix-size prefix-size}
+   c/tx-events-index-id {:cf-name "tx-events"}
+   c/entity+z+tx-id->content-hash-index-id {:cf-name "bitemporal-z"
+                                            :compression CompressionType/NO_COMPRESSION
+                                            :block-size (* 4 1024)
+                                            :prefix-size prefix-size}
+   c/av-index-id {:cf-name "av", :prefix-size prefix-size}
+   c/ae-index-id {:cf-name "ae", :prefix-size prefix-size}})
+
+(defn- key-byte
+  "the key's index id, -1 for the empty key"
+  ^long [^DirectBuffer k]
+  (if (zero? (.capacity k))
+    -1
+    (bit-and (.getByte k 0) 0xff)))
+
+(defn- byte-key ^org.agrona.DirectBuffer [^long b]
+  (if (neg? b)
+    mem/empty-buffer
+    (mem/as-buffer (byte-array [(unchecked-byte b)]))))
+
+(defn- cf-id ^long [^ints cf-ids ^long b]
+  (if (neg? b) 0 (aget cf-ids b)))
+
+(defn- dedicated? [^ints cf-ids ^long b]
+  (pos? (cf-id cf-ids b)))
+
+(defn- first-dedicated-byte
+  "the first byte in (lo, hi) with its own column family, hi if none"
+  ^long [^ints cf-ids ^long lo ^long hi]
+  (loop [b (inc lo)]
+    (cond
+      (>= b hi) hi
+      (dedicated? cf-ids b) b
+      :else (recur (inc b)))))
+
+(defn- last-dedicated-byte
+  "the last byte in (lo, hi) with its own column family, lo if none"
+  ^long [^ints cf-ids ^long lo ^long hi]
+  (loop [b (dec hi)]
+    (cond
+      (<= b lo) lo
+      (dedicated? cf-ids b) b
+      :else (recur (dec b)))))
+
+(defn- key->cf-handle ^org.rocksdb.ColumnFamilyHandle [handles ^ints cf-ids ^DirectBuffer k]
+  (nth handles (cf-id cf-ids (key-byte k))))
+
+(defn- seek-last
+  "the last key whose first byte is at most `b`"
+  [^RocksKvIterator i ^long b]
+  (let [^RocksIterator ri (.i i)]
+    (if (= 255 b)
+      (.seekToLast ri)
+      (.seekForPrev ri (mem/direct-byte-buffer (byte-key (inc b)))))
+    (let [k (iterator->key ri (.kb i) (.k-view i))]
+      (if (and k (> (key-byte k) b))
+        (kv/prev i)
+        k))))
+
+(defn- prefix-bounded?
+  "true if every key in [lower-bound, upper-bound) has the same `prefix-size` prefix"
+  [^DirectBuffer lower-bound ^DirectBuffer upper-bound prefix-size]
+  (boolean
+   (when (and prefix-size lower-bound upper-bound
+              (>= (.capacity lower-bound) (long prefix-size)))
+     (when-let [prefix-end (-> (mem/copy-buffer lower-bound prefix-size)
+                               (mem/inc-unsigned-buffer!))]
+       (not (pos? (mem/compare-buffers upper-bound prefix-end)))))))
+
+(definterface ColumnFamilySeeks
+  (cfIterator [^long b])
+  (seekFrom [^long b k])
+  (seekBackFrom [^long b]))
+
+(deftype ColumnFamiliesKvIterator [^RocksDB db ^ReadOptions read-options handles ^ints cf-ids ^objects iterators
+                                   ^long min-byte ^long max-byte resources
+                                   ^:unsynchronized-mutable current
+                                   ^:unsynchronized-mutable ^long current-byte]
+  ColumnFamilySeeks
+  (cfIterator [this b]
+    (let [cf-id (cf-id cf-ids b)]
+      (or (aget iterators cf-id)
+          (aset iterators cf-id (->rocks-kv-iterator (.newIterator db ^ColumnFamilyHandle (nth handles cf-id) read-options))))))
+
+  (seekFrom [this b k]
+    ;; the first key at or after `k`, which has first byte `b`
+    (when (<= b max-byte)
+      (let [i (.cfIterator this b)
+            found (kv/seek i k)]
+        (if (dedicated? cf-ids b)
+          (if found
+            (do (set! current i)
+                (set! current-byte b)
+                found)
+            (.seekFrom this (inc b) (byte-key (inc b))))
+          (let [d (if found (key-byte found) 256)
+                x (first-dedicated-byte cf-ids b d)]
+            (cond
+              (< x d) (.seekFrom this x (byte-key x))
+              found (do (set! current i)
+                        (set! current-byte d)
+                        found)))))))
+
+  (seekBackFrom [this b]
+    ;; the last key whose first byte is at most `b`
+    (when (>= b min-byte)
+      (let [i (.cfIterator this b)
+            found (seek-last i b)]
+        (if (dedicated? cf-ids b)
+          (if found
+            (do (set! current i)
+                (set! current-byte b)
+                found)
+            (.seekBackFrom this (dec b)))
+          (let [d (if found (key-byte found) -2)
+                x (last-dedicated-byte cf-ids d b)]
+            (cond
+              (> x d) (.seekBackFrom this x)
+              found (do (set! current i)
+                        (set! current-byte d)
+                        found)))))))
+
+  kv/KvIterator
+  (seek [this k]
+    (let [k (mem/->off-heap k)]
+      ;; RocksDB moves seeks below the lower bound up to it
+      (.seekFrom this (max (key-byte k) min-byte) k)))
 
-(defrecord RocksKvSnapshot [^RocksDB db ^ReadOptions read-options snapshot]
+  (next [this]
+    (let [found (kv/next current)]
+      (if (dedicated? cf-ids current-byte)
+        (or found (.seekFrom this (inc current-byte) (byte-key (inc current-byte))))
+        (let [d (if found (key-byte found) 256)
+              x (first-dedicated-byte cf-ids current-byte d)]
+          (cond
+            (< x d) (.seekFrom this x (byte-key x))
+            found (do (set! current-byte d)
+                      found))))))
+
+  (prev [this]
+    (let [found (kv/prev current)]
+      (if (dedicated? cf-ids current-byte)
+        (or found (.seekBackFrom this (dec current-byte)))
+        (let [d (if found (key-byte found) -2)
+              x (last-dedicated-byte cf-ids d current-byte)]
+          (cond
+            (> x d) (.seekBackFrom this x)
+            found (do (set! current-byte d)
+                      found))))))
+
+  (value [this]
+    (kv/value current))
+
+  Closeable
+  (close [this]
+    (doseq [i iterators]
+      (cio/try-close i))
+    (doseq [resource resources]
+      (cio/try-close resource))))
+
+(defrecord RocksKvSnapshot [^RocksDB db ^ReadOptions read-options snapshot handles ^ints cf-ids]
   kv/KvSnapshot
   (new-iterator [this]
-    (->RocksKvIterator (.newIterator db read-options)))
+    (if handles
+      (->ColumnFamiliesKvIterator db read-options handles cf-ids (object-array (count handles)) -1 255 nil nil -1)
+      (->rocks-kv-iterator (.newIterator db read-options))))
 
   (get-value [this k]
-    (some-> (.get db read-options (mem/->on-heap k))
+    (some-> (if handles
+              (.get db (key->cf-handle handles cf-ids (mem/->off-heap k)) read-options (mem/->on-heap k))
+              (.get db read-options (mem/->on-heap k)))
             (mem/as-buffer)))
 
+  kv/KvMultiGet
+  (multi-get [this ks]
+    (let [ks (mapv mem/->off-heap ks)
+          ;; RocksDB batches lookups in the same SST block, fewer block reads in key order
+          idxs (sort-by #(nth ks %) mem/buffer-comparator (range (count ks)))
+          sorted-ks (ArrayList. ^java.util.Collection (map #(mem/->on-heap (nth ks %)) idxs))
+          vs (if handles
+               (.multiGetAsList db read-options
+                                (ArrayList. ^java.util.Collection (map #(key->cf-handle handles cf-ids (nth ks %)) idxs))
+                                sorted-ks)
+               (.multiGetAsList db read-options sorted-ks))
+          results (object-array (count ks))]
+      (doseq [[idx v] (map vector idxs vs)]
+        (aset results idx (some-> v mem/as-buffer)))
+      (vec results)))
+
+  kv/KvBoundedSnapshot
+  (new-bounded-iterator [this lower-bound upper-bound]
+    (let [lower-bound (some-> lower-bound mem/->off-heap)
+          upper-bound (some-> upper-bound mem/->off-heap)
+          min-byte (if lower-bound (key-byte lower-bound) -1)
+          max-byte (cond
+                     (nil? upper-bound) 255
+                     ;; nothing starting with [b] is below [b]
+                     (= 1 (.capacity ^DirectBuffer upper-bound)) (dec (key-byte upper-bound))
+                     :else (key-byte upper-bound))
+          lower-slice (some-> lower-bound mem/->on-heap (Slice.))
+          upper-slice (some-> upper-bound mem/->on-heap (Slice.))
+          single-cf? (and handles (= min-byte max-byte) (dedicated? cf-ids min-byte))
+          read-options (doto (ReadOptions.)
+                         (.setSnapshot snapshot)
+                         (cond-> lower-slice (.setIterateLowerBound lower-slice))
+                         (cond-> upper-slice (.setIterateUpperBound upper-slice)))
+          resources [read-options lower-slice upper-slice]]
+      (cond
+        single-cf?
+        ;; when every key in the range shares a prefix, seeks can skip the SSTs the prefix blooms rule out
+        (do (if (prefix-bounded? lower-bound upper-bound (get-in column-families [min-byte :prefix-size]))
+              (.setPrefixSameAsStart read-options true)
+              (.setTotalOrderSeek read-options true))
+            (->rocks-kv-iterator (.newIterator db ^ColumnFamilyHandle (nth handles (cf-id cf-ids min-byte)) read-options)
+                                 resources))
+
+        handles
+        (do (.setTotalOrderSeek read-options true)
+            (->ColumnFamiliesKvIterator db read-options handles cf-ids (object-array (count handles)) min-byte max-byte resources nil -1))
+
+        :else
+        (->rocks-kv-iterator (.newIterator db read-options) resources))))
+
+  (new-prefix-seek-iterator [this index-id]
+    (let [b (long index-id)]
+      (if (and handles (dedicated? cf-ids b) (get-in column-families [b :prefix-size]))
+        ;; no bounds to set up per seek, so the iterator can be reused across prefixes
+        (let [read-options (doto (ReadOptions.)
+                             (.setSnapshot snapshot)
+                             (.setPrefixSameAsStart true))]
+          (->rocks-kv-iterator (.newIterator db ^ColumnFamilyHandle (nth handles (cf-id cf-ids b)) read-options)
+                               [read-options]))
+        (kv/new-iterator this))))
+
   Closeable
   (close [_]
     (.close read-options)
@@ -62,36 +336,57 @@
 (def ^:private default-block-cache-size (* 128 1024 1024))
 (def ^:private default-block-size (* 16 1024))
 
-(defrecord RocksKv [^RocksDB db, ^WriteOptions write-options, ^Options options, ^Closeable metrics, ^Closeable cp-job, db-dir]
+(defrecord RocksKv [^RocksDB db, ^WriteOptions write-options, ^Options options, ^Closeable metrics, ^Closeable cp-job, db-dir
+                    handles ^ints cf-ids cf-options]
   kv/KvStore
   (new-snapshot [_]
     (let [snapshot (.getSnapshot db)]
       (->RocksKvSnapshot db
                          (doto (ReadOptions.)
-                           (.setSnapshot snapshot))
-                         snapshot)))
+                           (.setSnapshot snapshot)
+                           ;; the prefix extractors are for bloom filters, iterators still cross prefixes
+                           (cond-> handles (.setTotalOrderSeek true)))
+                         snapshot
+                         handles
+                         cf-ids)))
 
   (store [_ kvs]
     (with-open [wb (WriteBatch.)]
-      (doseq [[k v] kvs]
-        (if v
-          (.put wb (mem/direct-byte-buffer k) (mem/direct-byte-buffer v))
-          (.remove wb (mem/direct-byte-buffer k))))
+      (doseq [[k v] kvs
+              :let [k (mem/->off-heap k)]]
+        (if handles
+          (let [cf-handle (key->cf-handle handles cf-ids k)]
+            (if v
+              (.put wb cf-handle (mem/direct-byte-buffer k) (mem/direct-byte-buffer v))
+              (.remove wb cf-handle (mem/direct-byte-buffer k))))
+          (if v
+            (.put wb (mem/direct-byte-buffer k) (mem/direct-byte-buffer v))
+            (.remove wb (mem/direct-byte-buffer k)))))
       (.write db write-options wb)))
 
   (compact [_]
-    (.compactRange db))
+    (if handles
+      (doseq [^ColumnFamilyHandle cf-handle handles]
+        (.compactRange db cf-handle))
+      (.compactRange db)))
 
   (fsync [_]
     (when (and (not (.sync write-options))
                (.disableWAL write-options))
       (with-open [flush-options (doto (FlushOptions.)
                                   (.setWaitForFlush true))]
-        (.flush db flush-options))))
+        (if handles
+          (.flush db flush-options ^java.util.List handles)
+          (.flush db flush-options)))))
 
   (count-keys [_]
-    (-> (.getProperty db "rocksdb.estimate-num-keys")
-        (Long/parseLong)))
+    (if handles
+      (->> handles
+           (map (fn [^ColumnFamilyHandle cf-handle]
+                  (Long/parseLong (.getProperty db cf-handle "rocksdb.estimate-num-keys"))))
+           (reduce +))
+      (-> (.getProperty db "rocksdb.estimate-num-keys")
+          (Long/parseLong))))
 
   (db-dir [_]
     (str db-dir))
@@ -109,13 +404,92 @@
 
   Closeable
   (close [_]
+    (doseq [cf-handle handles]
+      (cio/try-close cf-handle))
     (cio/try-close db)
+    (doseq [cf-opts cf-options]
+      (cio/try-close cf-opts))
     (cio/try-close options)
     (cio/try-close write-options)
     (cio/try-close metrics)
     (cio/try-close cp-job)))
 
-(def ^:private cp-format {:index-version c/index-version, ::version "6"})
+(def ^:private ^:const max-sst-file-size (* 256 1024 1024))
+
+(defn- sst-file-options ^org.rocksdb.Options [{:keys [^Options options handles cf-options]} ^long cf-id]
+  ;; the SSTs are built with their column family's options, so they get its compression and filters
+  (if handles
+    (with-open [db-opts (DBOptions.)]
+      (Options. db-opts ^ColumnFamilyOptions (nth cf-options cf-id)))
+    (Options. options)))
+
+(defn ingest-sorted-kvs
+  "Writes `sorted-kvs` - [k v] byte arrays, in key order, with distinct keys -
+  into SST files in `sst-dir`, then moves them into the store, bypassing the
+  memtables and the WAL. For offline bulk loads, see crux.rocksdb.bulk-load."
+  [{:keys [^RocksDB db handles cf-ids] :as kv-store} sorted-kvs ^File sst-dir]
+  (.mkdirs sst-dir)
+  (with-open [env-options (EnvOptions.)
+              ingest-options (doto (IngestExternalFileOptions.)
+                               (.setMoveFiles true))]
+    (let [cf-files (ArrayList.)
+          file-options (ArrayList.)
+          new-writer (fn [^long cf-id]
+                       (let [path (str (io/file sst-dir (format "%06d.sst" (.size cf-files))))
+                             opts (sst-file-options kv-store cf-id)]
+                         (.add cf-files [cf-id path])
+                         (.add file-options opts)
+                         (doto (SstFileWriter. env-options opts)
+                           (.open path))))]
+      (try
+        (loop [[[^bytes k v] & more-kvs] sorted-kvs
+               ^SstFileWriter writer nil
+               writer-cf-id -1]
+          (if k
+            (let [k-cf-id (if handles (cf-id cf-ids (bit-and (aget k 0) 0xff)) 0)
+                  ^SstFileWriter writer (if (and writer
+                                                 (= k-cf-id writer-cf-id)
+                                                 (< (.fileSize writer) max-sst-file-size))
+                                          writer
+                                          (do (some-> writer (doto (.finish) (.close)))
+                                              (new-writer k-cf-id)))]
+              (.put writer k ^bytes v)
+              (recur more-kvs writer k-cf-id))
+            (some-> writer (doto (.finish) (.close)))))
+        (finally
+          (doseq [opts file-options]
+            (cio/try-close opts))))
+
+      (doseq [[cf-id cf-files] (group-by first cf-files)
+              :let [paths (map second cf-files)]]
+        (if handles
+          (.ingestExternalFile db ^ColumnFamilyHandle (nth handles cf-id) ^java.util.List (vec paths) ingest-options)
+          (.ingestExternalFile db ^java.util.List (vec paths) ingest-options))))))
+
+(defn- cp-format [column-families?]
+  {:index-version c/index-version, ::version (if column-families? "7" "6")})
+
+(defn- ->column-family-options ^org.rocksdb.ColumnFamilyOptions [^Options opts block-cache {:keys [^CompressionType compression block-size prefix-size whole-key-filter?]}]
+  (let [cf-opts (ColumnFamilyOptions. opts)]
+    (when compression
+      (doto cf-opts
+        (.setCompressionType compression)
+        (.setBottommostCompressionType compression)))
+    (when prefix-size
+      (doto cf-opts
+        (.useFixedLengthPrefixExtractor (int prefix-size))
+        (.setMemtablePrefixBloomSizeRatio 0.1)))
+    (when block-cache
+      (.setTableFormatConfig cf-opts (cond-> (doto (BlockBasedTableConfig.)
+                                               (.setBlockCache block-cache)
+                                               (.setBlockSize (long (or block-size default-block-size))))
+                                       (or prefix-size whole-key-filter?) (doto (.setFilterPolicy (BloomFilter. 10 false))
+                                                                            (.setWholeKeyFiltering (boolean whole-key-filter?))))))
+    cf-opts))
+
+(defn- existing-column-families? [^Path db-dir]
+  (with-open [opts (Options.)]
+    (> (count (RocksDB/listColumnFamilies opts (str (.toAbsolutePath db-dir)))) 1)))
 
 (defn ->lru-block-cache {::sys/args {:cache-size {:doc "Cache size"
                                                   :default (* 8 1024 1024)
@@ -136,29 +510,56 @@
                                            :spec #(instance? Options %)}
                               :disable-wal? {:doc "Disable Write Ahead Log"
                                              :default false
-                                             :spec ::sys/boolean}}}
-  [{:keys [^Path db-dir sync? disable-wal? metrics checkpointer ^Options db-options block-cache] :as options}]
+                                             :spec ::sys/boolean}
+                              :column-families? {:doc "Store each Crux index in its own column family - only applies to new stores, existing stores keep their layout"
+                                                 :default true
+                                                 :spec ::sys/boolean}}}
+  [{:keys [^Path db-dir sync? disable-wal? column-families? metrics checkpointer ^Options db-options block-cache] :as options}]
 
   (RocksDB/loadLibrary)
 
   (when checkpointer
-    (cp/try-restore checkpointer (.toFile db-dir) cp-format))
+    (cp/try-restore checkpointer (.toFile db-dir) (cp-format column-families?)))
 
-  (let [stats (when metrics (doto (Statistics.) (.setStatsLevel (StatsLevel/EXCEPT_DETAILED_TIMERS))))
+  (let [column-families? (if (.exists (io/file (.toFile db-dir) "CURRENT"))
+                           (existing-column-families? db-dir)
+                           column-families?)
+        stats (when metrics (doto (Statistics.) (.setStatsLevel (StatsLevel/EXCEPT_DETAILED_TIMERS))))
         opts (doto (or ^Options db-options (Options.))
                (cond-> metrics (.setStatistics stats))
                (.setCompressionType CompressionType/LZ4_COMPRESSION)
                (.setBottommostCompressionType CompressionType/ZSTD_COMPRESSION)
                (.setCreateIfMissing true))
+        ;; we leave the table format alone if it's been given in `db-options`
+        block-cache (when (nil? (.tableFormatConfig opts)) block-cache)
         opts (cond-> opts
-               (and block-cache (nil? (.tableFormatConfig opts))) (.setTableFormatConfig (doto (BlockBasedTableConfig.)
-                                                                                           (.setBlockCache block-cache))))
-
+               block-cache (.setTableFormatConfig (doto (BlockBasedTableConfig.)
+                                                    (.setBlockCache block-cache))))
+        db-path (-> (Files/createDirectories db-dir (make-array FileAttribute 0))
+                    (.toAbsolutePath)
+                    (str))
+        index-ids (sort (keys column-families))
+        cf-options (when column-families?
+                     (into [(ColumnFamilyOptions. opts)]
+                           (for [index-id index-ids]
+                             (->column-family-options opts block-cache (get column-families index-id)))))
+        db-opts (when column-families?
+                  (doto (DBOptions. opts)
+                    (.setCreateMissingColumnFamilies true)))
+        handles (ArrayList.)
         db (try
-             (RocksDB/open opts (-> (Files/createDirectories db-dir (make-array FileAttribute 0))
-                                    (.toAbsolutePath)
-                                    (str)))
+             (if column-families?
+               (RocksDB/open db-opts db-path
+                             (vec (for [[cf-name ^ColumnFamilyOptions cf-opts] (map vector
+                                                                                    (cons "default" (map (comp :cf-name column-families) index-ids))
+                                                                                    cf-options)]
+                                    (ColumnFamilyDescriptor. (.getBytes ^String cf-name) cf-opts)))
+                             handles)
+               (RocksDB/open opts db-path))
              (catch Throwable t
+               (doseq [cf-opts cf-options]
+                 (cio/try-close cf-opts))
+               (cio/try-close db-opts)
                (.close opts)
                (throw t)))
         metrics (when metrics (metrics db stats))
@@ -168,6 +569,13 @@
                                 :metrics metrics
                                 :write-options (doto (WriteOptions.)
                                                  (.setSync (boolean sync?))
-                                                 (.setDisableWAL (boolean disable-wal?)))})]
+                                                 (.setDisableWAL (boolean disable-wal?)))
+                                :handles (when column-families? (vec handles))
+                                :cf-ids (when column-families?
+                                          (let [cf-ids (int-array 256)]
+                                            (doseq [[n index-id] (map-indexed vector index-ids)]
+                                              (aset cf-ids (int index-id) (int (inc n))))
+                                            cf-ids))
+                                :cf-options (cond-> cf-options db-opts (conj db-opts))})]
     (cond-> kv-store
-      checkpointer (assoc :cp-job (cp/start checkpointer kv-store {::cp/cp-format cp-format})))))
+      checkpointer (assoc :cp-job (cp/start checkpointer kv-store {::cp/cp-format (cp-format column-families?)})))))
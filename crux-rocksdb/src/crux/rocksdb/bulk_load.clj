@@ -0,0 +1,154 @@
+(ns crux.rocksdb.bulk-load
+  "Offline bulk loads into new RocksDB-backed nodes.
+
+  Rather than indexing each tx through write batches - paying for the
+  memtables, the WAL and compactions on data that's only written once -
+  we compute the KVs of batches of puts in parallel, sort them externally
+  and write them straight into SST files, which RocksDB moves into place.
+  The loaded node then carries on from its (standalone) tx-log as usual."
+  (:require [clojure.java.io :as io]
+            [clojure.tools.logging :as log]
+            [crux.codec :as c]
+            [crux.error :as err]
+            [crux.io :as cio]
+            [crux.kv :as kv]
+            [crux.kv.document-store :as kvds]
+            [crux.kv.index-store :as kvi]
+            [crux.kv.mutable-kv :as mut-kv]
+            [crux.kv.tx-log :as kvtx]
+            [crux.memory :as mem]
+            [crux.rocksdb :as rocks]
+            [crux.tx :as tx]
+            [crux.tx.conform :as txc])
+  (:import clojure.lang.MapEntry
+           crux.codec.EntityTx
+           java.nio.file.attribute.FileAttribute
+           java.nio.file.Files
+           java.util.Date
+           java.util.concurrent.ExecutionException))
+
+(defn- max-date [x y]
+  (if (and x (pos? (compare x y))) x y))
+
+(defn- conform-put [tx-op]
+  (let [{:keys [op end-valid-time] :as conformed-tx-op} (txc/conform-tx-op tx-op)]
+    (when-not (and (= :crux.tx/put op) (nil? end-valid-time))
+      (throw (err/illegal-arg :invalid-bulk-load-op
+                              {::err/message "Bulk loads only support puts, without an end valid-time"
+                               :op tx-op})))
+    conformed-tx-op))
+
+(defn- index-batch
+  "everything a tx of puts writes - the KVs as [k v] byte arrays, so they can be spilled to disk"
+  [{::tx/keys [tx-id tx-time] :as tx} tx-ops]
+  (let [conformed-tx-ops (mapv conform-put tx-ops)
+        docs (into {} (mapcat :docs) conformed-tx-ops)
+        etxs (->> (for [{:keys [eid doc-id start-valid-time]} conformed-tx-ops]
+                    (c/->EntityTx (c/new-id eid) (or start-valid-time tx-time) tx-time tx-id doc-id))
+                  ;; the later put of an entity at the same valid-time wins, as it would when indexed normally -
+                  ;; otherwise both would have the same keys, and `distinct-keys` would keep either
+                  (into {} (map (juxt (fn [^EntityTx etx] [(.eid etx) (.vt etx)]) identity)))
+                  vals
+                  vec)]
+    {:tx tx
+     :tx-events (mapv txc/->tx-event conformed-tx-ops)
+     :docs docs
+     :max-valid-time (reduce max-date nil (map #(.vt ^EntityTx %) etxs))
+     :kvs (->> (concat (for [[content-hash doc] docs]
+                         (MapEntry/create (kvds/encode-doc-key-to nil (c/->id-buffer content-hash))
+                                          (mem/->nippy-buffer doc)))
+                       (kvi/bulk-load-tx-kvs tx docs etxs))
+               (mapv (fn [[k v]]
+                       [(mem/->on-heap k) (mem/->on-heap v)])))}))
+
+(defn- compare-kvs ^long [[k1] [k2]]
+  (mem/compare-buffers (mem/on-heap-buffer k1) (mem/on-heap-buffer k2)))
+
+(defn- distinct-keys
+  "SSTs need distinct keys - the duplicates (AV and hash-cache KVs shared between docs, say) have the same values"
+  [sorted-kvs]
+  (lazy-seq
+   (when-let [[kv & more-kvs] (seq sorted-kvs)]
+     (cons kv (distinct-keys (drop-while #(zero? (compare-kvs kv %)) more-kvs))))))
+
+(defn- doc-kv? [[^bytes k]]
+  (= c/content-hash->doc-index-id (aget k 0)))
+
+(defn- ingest-sorted-kvs [{:keys [index-kv-store document-kv-store]} sorted-kvs sst-dir]
+  (if (identical? index-kv-store document-kv-store)
+    (rocks/ingest-sorted-kvs index-kv-store sorted-kvs sst-dir)
+
+    ;; the docs sort first - we hand the rest over without holding on to the head of the seq
+    (let [!index-kvs (atom nil)
+          doc-kvs ((fn step [kvs]
+                     (lazy-seq
+                      (when-let [[kv & more-kvs :as kvs] (seq kvs)]
+                        (if (doc-kv? kv)
+                          (cons kv (step more-kvs))
+                          (do (reset! !index-kvs kvs)
+                              nil)))))
+                   sorted-kvs)]
+      (rocks/ingest-sorted-kvs document-kv-store doc-kvs (io/file sst-dir "docs"))
+      (rocks/ingest-sorted-kvs index-kv-store @!index-kvs (io/file sst-dir "indexes")))))
+
+(defn bulk-load
+  "Loads `tx-ops` - `[:crux.tx/put doc]` or `[:crux.tx/put doc valid-time]` -
+  into the empty RocksDB KV stores of a new node: `index-kv-store`,
+  `document-kv-store` and `tx-log-kv-store`, for the standalone tx-log (the
+  latter two may be the same store). Every `batch-size` puts are one tx in
+  the tx-log, so the node can carry on from there. Returns the last tx.
+
+  The puts are indexed as if into an empty database, so an entity's puts
+  should be in valid-time order."
+  [{:keys [index-kv-store tx-log-kv-store batch-size]
+    :or {batch-size 10000}
+    :as stores}
+   tx-ops]
+  (when (or (kvi/latest-completed-tx index-kv-store)
+            (kvi/read-meta tx-log-kv-store :crux.kv-tx-log/latest-submitted-tx-id))
+    (throw (IllegalStateException. "Bulk loads need empty stores")))
+
+  (let [tx-time (Date.)
+        stats-kv-store (mut-kv/->mutable-kv-store)
+        !last-tx (atom nil)
+        !max-valid-time (atom nil)
+        sst-dir (.toFile (Files/createTempDirectory "crux-bulk-load" (make-array FileAttribute 0)))]
+    (try
+      (ingest-sorted-kvs stores
+                         (->> (partition-all batch-size tx-ops)
+                              (map-indexed (fn [tx-id tx-ops]
+                                             [{::tx/tx-id tx-id, ::tx/tx-time tx-time} tx-ops]))
+                              (pmap (fn [[tx tx-ops]]
+                                      (index-batch tx tx-ops)))
+                              (mapcat (fn [{:keys [tx tx-events docs max-valid-time kvs]}]
+                                        ;; the stats accumulate over every doc, so they're kept up as the batches come in
+                                        (with-open [snapshot (kv/new-snapshot stats-kv-store)]
+                                          (kv/store stats-kv-store (kvi/stats-kvs snapshot snapshot (vals docs))))
+                                        (kv/store tx-log-kv-store [[(kvtx/encode-tx-event-key-to nil tx)
+                                                                    (mem/->nippy-buffer tx-events)]])
+                                        (swap! !max-valid-time max-date max-valid-time)
+                                        (reset! !last-tx tx)
+                                        (log/debug "Bulk load indexed tx" (::tx/tx-id tx))
+                                        kvs))
+                              (cio/external-sort compare-kvs)
+                              (distinct-keys))
+                         sst-dir)
+
+      (when-let [{::tx/keys [tx-id] :as last-tx} @!last-tx]
+        (with-open [snapshot (kv/new-snapshot stats-kv-store)]
+          (kv/store index-kv-store (concat (seq snapshot)
+                                           [(kvi/meta-kv :crux.index/max-valid-time @!max-valid-time)])))
+        (kv/store tx-log-kv-store [(kvi/meta-kv :crux.kv-tx-log/latest-submitted-tx-id tx-id)])
+
+        (doseq [kv-store (distinct (vals (select-keys stores [:index-kv-store :document-kv-store :tx-log-kv-store])))]
+          (kv/fsync kv-store))
+
+        (log/info "Bulk loaded" (inc (long tx-id)) "txs")
+        last-tx)
+
+      (catch ExecutionException e
+        ;; from the batches indexed in `pmap`
+        (throw (.getCause e)))
+
+      (finally
+        (cio/delete-dir sst-dir)))))
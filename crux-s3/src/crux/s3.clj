@@ -117,7 +117,8 @@
                                              :spec ::prefix
                                              :doc "S3 prefix"}}
                         ::sys/deps {:configurator `->configurator
-                                    :document-cache 'crux.cache/->cache}}
+                                    :document-cache 'crux.cache/->cache
+                                    :local-document-cache 'crux.document-store.disk-cache/->disk-cache}}
 
   [{:keys [bucket prefix ^S3Configurator configurator document-cache] :as opts}]
   (ds/->cached-document-store
@@ -0,0 +1,94 @@
+(ns crux.document-store-test
+  (:require [clojure.test :as t]
+            [crux.codec :as c]
+            [crux.db :as db]
+            [crux.document-store :as ds]
+            [crux.document-store.disk-cache :as disk-cache]
+            [crux.fixtures :as fix]
+            [crux.status :as status])
+  (:import java.io.File
+           java.util.concurrent.Executors))
+
+(defn- ->docs [version]
+  (->> (for [n (range 100)]
+         {:crux.db/id (keyword (str "doc-" n)), :n n, :version version})
+       (into {} (map (juxt c/new-id identity)))))
+
+(defn- ->disk-cache [^File cache-dir opts]
+  (disk-cache/->disk-cache (merge {:root-path (.toPath cache-dir)
+                                   :segment-size (* 64 1024)
+                                   :max-segments 4}
+                                  opts)))
+
+(defn- ->nio-document-store [^File doc-dir]
+  (ds/->NIODocumentStore (.toPath doc-dir) (Executors/newFixedThreadPool 2)))
+
+(t/deftest test-disk-cache
+  (fix/with-tmp-dirs #{doc-dir cache-dir}
+    (let [docs (->docs 0)]
+      (with-open [nio-doc-store (->nio-document-store doc-dir)]
+        (db/submit-docs nio-doc-store docs)
+
+        (with-open [disk-cache (->disk-cache cache-dir {})]
+          (let [doc-store (ds/->LocalCachedDocumentStore disk-cache nio-doc-store)]
+            (t/is (= docs (db/fetch-docs doc-store (keys docs))))
+            (t/is (= docs (db/fetch-docs doc-store (keys docs))))
+
+            (t/is (= {::disk-cache/hits 100
+                      ::disk-cache/misses 100
+                      ::disk-cache/hit-rate 0.5
+                      ::disk-cache/doc-count 100}
+                     (status/status-map disk-cache)))))
+
+        (t/testing "survives restarts"
+          (with-open [disk-cache (->disk-cache cache-dir {})]
+            (t/is (= 100 (::disk-cache/doc-count (status/status-map disk-cache))))
+            (t/is (= docs (ds/fetch-cached-docs disk-cache (keys docs))))))
+
+        (t/testing "evictions are written through, and survive restarts"
+          (let [evicted-id (first (keys docs))
+                evicted-doc {:crux.db/id (:crux.db/id (get docs evicted-id)), :crux.db/evicted? true}]
+            (with-open [disk-cache (->disk-cache cache-dir {})]
+              (let [doc-store (ds/->LocalCachedDocumentStore disk-cache nio-doc-store)]
+                (db/submit-docs doc-store {evicted-id evicted-doc})
+                (t/is (= {} (ds/fetch-cached-docs disk-cache [evicted-id])))
+                (t/is (= {evicted-id evicted-doc} (db/fetch-docs doc-store [evicted-id])))))
+
+            (with-open [disk-cache (->disk-cache cache-dir {})]
+              (t/is (= {evicted-id evicted-doc} (ds/fetch-cached-docs disk-cache [evicted-id]))))))))))
+
+(t/deftest test-disk-cache-recycles-segments
+  (fix/with-tmp-dirs #{doc-dir cache-dir}
+    (let [docs (->> (for [n (range 2000)]
+                      {:crux.db/id (keyword (str "doc-" n)), :n n, :padding (apply str (repeat 100 "x"))})
+                    (into {} (map (juxt c/new-id identity))))
+          hot-ids (take 10 (keys docs))]
+      (with-open [nio-doc-store (->nio-document-store doc-dir)
+                  disk-cache (->disk-cache cache-dir {:segment-size (* 16 1024), :max-segments 2})]
+        (db/submit-docs nio-doc-store docs)
+
+        (let [doc-store (ds/->LocalCachedDocumentStore disk-cache nio-doc-store)]
+          (doseq [id-batch (partition-all 50 (keys docs))]
+            ;; keep reading the hot docs - they should get their second chance
+            (t/is (= (select-keys docs hot-ids) (db/fetch-docs doc-store hot-ids)))
+            (t/is (= (select-keys docs id-batch) (db/fetch-docs doc-store id-batch))))
+
+          (t/is (< (::disk-cache/doc-count (status/status-map disk-cache)) (count docs)))
+          (t/is (= (select-keys docs hot-ids) (ds/fetch-cached-docs disk-cache hot-ids)))
+          (t/is (= 2 (count (.listFiles cache-dir)))))))))
+
+(t/deftest test-disk-cache-recycles-mostly-referenced-segments
+  (fix/with-tmp-dirs #{cache-dir}
+    (let [docs (->> (for [n (range 2000)]
+                      {:crux.db/id (keyword (str "doc-" n)), :n n, :padding (apply str (repeat 100 "x"))})
+                    (into {} (map (juxt c/new-id identity))))]
+      (with-open [disk-cache (->disk-cache cache-dir {:segment-size (* 16 1024), :max-segments 2})]
+        (doseq [id-batch (partition-all 20 (keys docs))]
+          ;; read everything that's cached, so every recycled doc wants its second chance
+          (ds/fetch-cached-docs disk-cache (keys docs))
+          (ds/cache-docs! disk-cache (select-keys docs id-batch))
+          (let [cached (ds/fetch-cached-docs disk-cache id-batch)]
+            (t/is (contains? cached (last id-batch)))
+            (t/is (= (select-keys docs (keys cached)) cached))))
+
+        (t/is (= 2 (count (.listFiles cache-dir))))))))
@@ -99,3 +99,51 @@
              (api/q db
                     '{:find [(pull ?e [*])]
                       :where [[?e :crux.db/id :foo]]})))))
+
+(t/deftest test-submit-many-docs
+  (let [doc-store (:document-store *api*)
+        ->docs (fn [version]
+                 (->> (for [n (range 2500)]
+                        {:crux.db/id (keyword (str "doc-" n)), :n n, :version version})
+                      (into {} (map (juxt c/new-id identity)))))
+        docs (->docs 0)]
+    ;; more than one chunk, both new and already-stored
+    (db/submit-docs doc-store (->docs 1))
+    (db/submit-docs doc-store (merge docs (->docs 1)))
+
+    (t/is (= (merge docs (->docs 1))
+             (db/fetch-docs doc-store (keys (merge docs (->docs 1))))))
+
+    (t/is (= 5000 (:num_docs (jdbc/execute-one! (:pool (:tx-log *api*))
+                                                ["SELECT count(EVENT_KEY) AS num_docs FROM tx_events WHERE TOPIC = 'docs'"]
+                                                {:builder-fn jdbcr/as-unqualified-lower-maps}))))))
+
+(t/deftest test-paged-tx-log
+  (let [txs (vec (for [n (range 20)]
+                   (api/submit-tx *api* [[:crux.tx/put {:crux.db/id (keyword (str "doc-" n)), :n n}]])))
+        ;; small pages, so that we cross plenty of page boundaries - some pages only hold docs
+        tx-log (assoc (:tx-log *api*) :page-size 3, :fetch-size 2)]
+    (api/await-tx *api* (last txs))
+
+    (with-open [log (db/open-tx-log tx-log nil)]
+      (t/is (= txs (->> (iterator-seq log)
+                        (map #(select-keys % [:crux.tx/tx-id :crux.tx/tx-time]))))))
+
+    (with-open [log (db/open-tx-log tx-log (:crux.tx/tx-id (nth txs 9)))]
+      (let [log (iterator-seq log)]
+        (t/is (= (subvec txs 10) (map #(select-keys % [:crux.tx/tx-id :crux.tx/tx-time]) log)))
+        (t/is (every? (comp seq :crux.tx.event/tx-events) log))))))
+
+(t/deftest test-group-committed-submits
+  (let [tx-log (:tx-log *api*)
+        submitted-txs (->> (for [n (range 200)]
+                             (future
+                               @(db/submit-tx tx-log [[:crux.tx/put (c/new-id (keyword (str "doc-" n))) (c/new-id {:n n})]])))
+                           (doall)
+                           (mapv deref))]
+    (t/is (apply distinct? (map :crux.tx/tx-id submitted-txs)))
+
+    (with-open [log (db/open-tx-log tx-log nil)]
+      (t/is (= (sort-by :crux.tx/tx-id submitted-txs)
+               (->> (iterator-seq log)
+                    (map #(select-keys % [:crux.tx/tx-id :crux.tx/tx-time]))))))))
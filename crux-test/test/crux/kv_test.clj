@@ -75,6 +75,18 @@
     (t/testing "non existing key"
       (t/is (nil? (value kv-store (long->bytes 2)))))))
 
+(t/deftest test-iterate-large-keys-and-values []
+  (fkv/with-kv-store [kv-store]
+    ;; larger than the buffers RocksDB iterators start with, but within LMDB's key size limit
+    (let [kvs (for [n [10 200 400]]
+                [(.getBytes (apply str n "-" (repeat n "k")))
+                 (.getBytes (apply str (repeat (* 100 n) "v")))])]
+      (kv/store kv-store kvs)
+      (t/is (= (for [[k v] kvs]
+                 [(String. ^bytes k) (String. ^bytes v)])
+               (for [[^bytes k ^bytes v] (seek-and-iterate kv-store (constantly true) (byte-array 0))]
+                 [(String. k) (String. v)]))))))
+
 (t/deftest test-can-store-and-delete-all-116 []
   (fkv/with-kv-store [kv-store]
     (let [number-of-entries 500]
@@ -218,6 +230,15 @@
         (doseq [r-f r-fs]
           (t/is (= "Crux" @r-f)))))))
 
+(t/deftest test-new-snapshots-see-later-stores
+  (fkv/with-kv-store [kv-store]
+    ;; LMDB reuses the read txns of closed snapshots
+    (doseq [n (range 100)]
+      (kv/store kv-store [[(long->bytes 1) (long->bytes n)]
+                          [(long->bytes (+ 2 n)) (byte-array 1024)]])
+      (with-open [snapshot (kv/new-snapshot kv-store)]
+        (t/is (= n (bytes->long (mem/->on-heap (kv/get-value snapshot (long->bytes 1))))))))))
+
 (t/deftest test-prev-and-next []
   (fkv/with-kv-store [kv-store]
     (doseq [[^String k v] {"a" 1 "c" 3}]
@@ -232,6 +253,113 @@
         (t/is (= "a" (String. (mem/->on-heap (kv/prev i)))))
         (t/is (nil? (kv/prev i)))))))
 
+(t/deftest test-multi-get []
+  (fkv/with-kv-store [kv-store]
+    (kv/store kv-store (for [n [3 1 2]]
+                         [(long->bytes n) (long->bytes (* 10 n))]))
+    (with-open [snapshot (kv/new-snapshot kv-store)]
+      (t/is (= [30 nil 10 20 nil]
+               (->> (kv/multi-get snapshot (map long->bytes [3 4 1 2 0]))
+                    (mapv #(some-> % mem/->on-heap bytes->long)))))
+      (t/is (= [] (kv/multi-get snapshot []))))))
+
+(t/deftest test-iterate-across-index-ids []
+  (fkv/with-kv-store [kv-store]
+    ;; RocksDB keeps each index id in its own column family
+    (let [index-ids [0 1 4 7 8 12 13 200 255]
+          ks (for [index-id index-ids
+                   n [1 2]]
+               (byte-array [(unchecked-byte index-id) n]))]
+      (kv/store kv-store (for [k ks]
+                           [k (long->bytes 1)]))
+      (kv/store kv-store [[(byte-array [8 1]) nil]])
+
+      (let [ks (map vec (remove #(= [8 1] (vec %)) ks))]
+        (with-open [snapshot (kv/new-snapshot kv-store)
+                    i (kv/new-iterator snapshot)]
+          (t/testing "next crosses index ids"
+            (t/is (= ks (->> (iterate (fn [_] (kv/next i)) (kv/seek i mem/empty-buffer))
+                             (take-while some?)
+                             (map (comp vec mem/->on-heap))))))
+
+          (t/testing "prev crosses index ids"
+            (t/is (= (reverse ks) (->> (iterate (fn [_] (kv/prev i)) (kv/seek i (mem/as-buffer (byte-array [(unchecked-byte 255) 2]))))
+                                       (take-while some?)
+                                       (map (comp vec mem/->on-heap)))))))
+
+        (t/testing "seek between index ids"
+          (t/is (= [7 1] (vec (first (seek kv-store (byte-array [5 0]))))))
+          (t/is (= [8 2] (vec (first (seek kv-store (byte-array [7 3]))))))
+          (t/is (nil? (seek kv-store (byte-array [(unchecked-byte 255) 3])))))))))
+
+(defn- iterate-bounded [kv-store lower-bound upper-bound seek-k]
+  (with-open [snapshot (kv/new-snapshot kv-store)
+              i (kv/new-bounded-iterator snapshot lower-bound upper-bound)]
+    (->> (iterate (fn [_] (kv/next i)) (kv/seek i seek-k))
+         (take-while some?)
+         (mapv (comp vec mem/->on-heap)))))
+
+(t/deftest test-bounded-iterators []
+  (fkv/with-kv-store [kv-store]
+    (kv/store kv-store (for [^String k ["a" "b" "ba" "bb" "c"]]
+                         [(.getBytes k) (long->bytes 1)]))
+
+    (t/testing "keys are within [lower-bound, upper-bound)"
+      (t/is (= (map (comp vec #(.getBytes ^String %)) ["b" "ba" "bb"])
+               (iterate-bounded kv-store (mem/as-buffer (.getBytes "b")) (mem/as-buffer (.getBytes "c")) mem/empty-buffer)))
+      (t/is (= (map (comp vec #(.getBytes ^String %)) ["ba"])
+               (iterate-bounded kv-store (mem/as-buffer (.getBytes "b")) (mem/as-buffer (.getBytes "bb")) (mem/as-buffer (.getBytes "b0")))))
+      (t/is (= (map (comp vec #(.getBytes ^String %)) ["a" "b"])
+               (iterate-bounded kv-store nil (mem/as-buffer (.getBytes "b0")) mem/empty-buffer))))
+
+    (t/testing "prev stops at the lower bound"
+      (with-open [snapshot (kv/new-snapshot kv-store)
+                  i (kv/new-prefix-iterator snapshot (.getBytes "b"))]
+        (t/is (= "bb" (String. (mem/->on-heap (kv/seek i (mem/as-buffer (.getBytes "bb")))))))
+        (t/is (= "ba" (String. (mem/->on-heap (kv/prev i)))))
+        (t/is (= "b" (String. (mem/->on-heap (kv/prev i)))))
+        (t/is (nil? (kv/prev i))))))
+
+  (fkv/with-kv-store [kv-store]
+    ;; long enough for RocksDB's prefix blooms, [index-id][id]
+    (let [prefix (fn [^long n]
+                   (byte-array (cons c/ecav-index-id (repeat c/id-size n))))
+          ks (for [n [1 2 3]
+                   suffix [1 2]]
+               (byte-array (concat (prefix n) [suffix])))]
+      (kv/store kv-store (for [k ks]
+                           [k (long->bytes 1)]))
+      (kv/compact kv-store)
+      (with-open [snapshot (kv/new-snapshot kv-store)
+                  i (kv/new-prefix-iterator snapshot (prefix 2))]
+        (t/is (= [(vec (concat (prefix 2) [1])) (vec (concat (prefix 2) [2]))]
+                 (->> (iterate (fn [_] (kv/next i)) (kv/seek i (mem/as-buffer (prefix 2))))
+                      (take-while some?)
+                      (mapv (comp vec mem/->on-heap))))))
+      (with-open [snapshot (kv/new-snapshot kv-store)
+                  i (kv/new-prefix-iterator snapshot (prefix 4))]
+        (t/is (nil? (kv/seek i (mem/as-buffer (prefix 4)))))))))
+
+(t/deftest test-prefix-seek-iterator-is-reusable []
+  (fkv/with-kv-store [kv-store]
+    (let [prefix (fn [^long n]
+                   (byte-array (cons c/ecav-index-id (repeat c/id-size n))))
+          ks (for [n [1 2 3]
+                   suffix [1 2]]
+               (byte-array (concat (prefix n) [suffix])))]
+      (kv/store kv-store (for [k ks]
+                           [k (long->bytes 1)]))
+      (kv/compact kv-store)
+      (with-open [snapshot (kv/new-snapshot kv-store)
+                  i (kv/new-prefix-seek-iterator snapshot c/ecav-index-id)]
+        (doseq [n [2 1 3 4]]
+          (let [prefix (mem/as-buffer (prefix n))]
+            (t/is (= (for [suffix (if (= 4 n) [] [1 2])]
+                       (vec (concat (mem/->on-heap prefix) [suffix])))
+                     (->> (iterate (fn [_] (kv/next i)) (kv/seek i prefix))
+                          (take-while #(and % (mem/buffers=? prefix % (.capacity prefix))))
+                          (mapv (comp vec mem/->on-heap)))))))))))
+
 (tcct/defspec test-basic-generative-store-and-get-value 20
   (prop/for-all [kvs (gen/not-empty (gen/map
                                      gen/simple-type-printable
@@ -4,6 +4,7 @@
             [crux.fixtures :as fix :refer [*api*]]
             [crux.metrics.index-store :as index-store-metrics]
             [crux.metrics.query :as query-metrics]
+            [crux.metrics.tx-log :as tx-log-metrics]
             [crux.metrics.dropwizard :as dropwizard])
   (:import (java.io Closeable)))
 
@@ -46,3 +47,14 @@
     (t/testing "post query timer values"
       (t/is (not (zero? (dropwizard/meter-count (:query-timer mets)))))
       (t/is (zero? (dropwizard/value (:current-query-count mets)))))))
+
+(t/deftest test-tx-log-metrics
+  (let [{:crux/keys [bus] :as sys} @(:!system *api*)
+        registry (dropwizard/new-registry)
+        mets (tx-log-metrics/assign-listeners registry sys)]
+    (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :test}]])
+    (.close ^Closeable bus)
+
+    (t/testing "post submit values"
+      (t/is (= 1 (dropwizard/meter-count (:submit-timer mets))))
+      (t/is (= 1 (dropwizard/histogram-count (:batch-size-histogram mets)))))))
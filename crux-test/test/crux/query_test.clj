@@ -2835,6 +2835,14 @@
                                           :where [(identity [:a :b :c :a :d]) [?x ...]]])))
                7)))
 
+    (t/testing "approximate aggregates"
+      (let [[[n median p90]] (vec (api/q db '[:find (approx-count-distinct ?x) (approx-median ?x) (approx-percentile 0.9 ?x)
+                                              :in [$ [?x ...]]]
+                                         (range 10000)))]
+        (t/is (< 9500 n 10500))
+        (t/is (< 4900 median 5100))
+        (t/is (< 8900 p90 9100))))
+
     (t/testing "Custom aggregates"
       (t/is (= (set (api/q db '[:find ?color (sort-reverse ?x)
                                 :where [(identity [[:red 1]  [:red 2] [:red 3] [:red 4] [:red 5]
@@ -3381,6 +3389,70 @@
                                                           [x :val v]]
                                                   :order-by [[v :desc]]}))))
 
+(t/deftest test-order-by-range-constrained-var-uses-index-order
+  (fix/transact! *api* (concat (for [n (range 50)]
+                                 {:crux.db/id (keyword (str "e" n)), :val (mod (* n 7) 25), :name (str "e" n)})
+                               [{:crux.db/id :string-val, :val "10", :name "string-val"}]))
+  (let [db (api/db *api*)
+        expected (->> (for [n (range 50)
+                            :let [v (mod (* n 7) 25)]
+                            :when (>= v 10)]
+                        [v (str "e" n)])
+                      (sort (fn [[v1 name1] [v2 name2]]
+                              (if (= v1 v2)
+                                (compare name2 name1)
+                                (compare v1 v2)))))]
+    (t/is (= (take 7 expected)
+             (api/q db '{:find [v name]
+                         :where [[e :val v]
+                                 [(>= v 10)]
+                                 [e :name name]]
+                         :order-by [[v :asc] [name :desc]]
+                         :limit 7})))
+
+    (t/is (= (->> expected (drop 3) (take 5) (map first))
+             (map first (api/q db '{:find [v e]
+                                    :where [[e :val v]
+                                            [(>= v 10)]]
+                                    :order-by [[v]]
+                                    :offset 3
+                                    :limit 5}))))
+
+    (t/is (= (map first expected)
+             (map first (api/q db '{:find [v e]
+                                    :where [[e :val v]
+                                            [(>= v 10)]]
+                                    :order-by [[v :asc]]}))))))
+
+(t/deftest test-order-by-with-limit-and-offset
+  (let [vs (shuffle (concat (range 100) (range 100)))]
+    (fix/transact! *api* (for [[n v] (map-indexed vector vs)]
+                           {:crux.db/id (keyword (str "e" n)), :val v}))
+    (let [db (api/db *api*)]
+      (t/is (= [99 99 98 98 97]
+               (mapv second (api/q db '{:find [e v]
+                                        :where [[e :val v]]
+                                        :order-by [[v :desc]]
+                                        :limit 5}))))
+
+      (t/is (= [5 6 6 7]
+               (mapv first (api/q db '{:find [v e]
+                                       :where [[e :val v]]
+                                       :order-by [[v :asc] [e :asc]]
+                                       :offset 11
+                                       :limit 4}))))
+
+      (t/is (= (->> (api/q db '{:find [v e]
+                                :where [[e :val v]]
+                                :order-by [[v :asc]]})
+                    (drop 190))
+               (api/q db '{:find [v e]
+                           :where [[e :val v]]
+                           :order-by [[v :asc]]
+                           :offset 190
+                           :limit 20}))
+            "ties keep the order they'd have when fully sorted"))))
+
 (t/deftest test-query-with-timeout-419
   (fix/transact! *api* [{:crux.db/id :ivan :name "Ivan" :last-name "Ivanov"}
                         {:crux.db/id :petr :name "Petr" :last-name "Petrov"}])
@@ -3763,6 +3835,118 @@
              (-> (q/query-plan-for (api/db *api*) query)
                  :vars-in-join-order)))))
 
+(t/deftest picks-rarer-literal-from-value-histogram
+  (fix/submit+await-tx (for [idx (range 1000)]
+                         [:crux.tx/put {:crux.db/id (keyword (str "thing-" idx))
+                                        :colour (if (zero? idx) :blue :red)
+                                        :size (if (zero? idx) :tiny :big)
+                                        :n idx}]))
+
+  (let [db (api/db *api*)
+        query '{:find [p q]
+                :where [[p :colour :red]
+                        [q :size :tiny]
+                        [p :n n]
+                        [q :n n]]}]
+    (t/testing "the baseline estimate is the same for both literals, the histogram knows :tiny is rare"
+      (t/is (= '[q p]
+               (->> (q/query-plan-for db query)
+                    :vars-in-join-order
+                    (filter '#{p q})))))
+
+    (t/testing "actual cardinalities"
+      (let [{:keys [var->actual-cardinality]} (q/query-plan-for db query [])]
+        (t/is (= 1 (get var->actual-cardinality 'q)))
+        (t/is (= 1 (get var->actual-cardinality 'n)))
+        (t/is (= 0 (get var->actual-cardinality 'p)))))))
+
+(t/deftest orders-range-constrained-vars-by-histogram-selectivity
+  (fix/submit+await-tx (for [idx (range 1000)]
+                         [:crux.tx/put {:crux.db/id (keyword (str "item-" idx))
+                                        :price idx
+                                        :stock idx}]))
+
+  (let [db (api/db *api*)]
+    (letfn [(join-order [where]
+              (->> (q/query-plan-for db {:find '[e], :where where})
+                   :vars-in-join-order
+                   (filter '#{p s})))]
+      (t/is (= '[p s] (join-order '[[e :price p] [e :stock s] [(< p 10)] [(< s 900)]])))
+      (t/is (= '[s p] (join-order '[[e :price p] [e :stock s] [(> p 100)] [(< s 10)]])))
+      (t/is (= '[s p] (join-order '[[e :price p] [e :stock s] [(>= p 10)] [(< p 990)] [(<= 400 s)] [(< s 450)]]))))))
+
+(t/deftest test-shared-entity-cache-respects-valid-time
+  (let [now (Date.)
+        later (Date. (+ (.getTime now) 3600000))
+        much-later (Date. (+ (.getTime now) 7200000))
+        query '{:find [n], :where [[e :name n]]}]
+    (let [{first-tx-time :crux.tx/tx-time} (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan, :name "Ivan"} now]])]
+      (t/is (= #{["Ivan"]} (api/q (api/db *api* now) query)))
+      (t/is (= #{["Ivan"]} (api/q (api/db *api* much-later) query)))
+
+      (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan, :name "Ivan2"} later]])
+
+      (t/testing "queries after every valid-time see the latest version"
+        (t/is (= #{["Ivan2"]} (api/q (api/db *api* much-later) query)))
+        (t/is (= #{["Ivan2"]} (api/q (api/db *api* later) query))))
+
+      (t/testing "queries before the max valid-time don't share the cache"
+        (t/is (= #{["Ivan"]} (api/q (api/db *api* now) query))))
+
+      (t/testing "older txs still see their own versions"
+        (t/is (= #{["Ivan"]} (api/q (api/db *api* much-later first-tx-time) query))))
+
+      (t/testing "generations' tables are recycled empty"
+        (doseq [n (range 5)]
+          (fix/submit+await-tx [[:crux.tx/put {:crux.db/id :ivan, :name (str "Ivan" n)} later]])
+          (t/is (= #{[(str "Ivan" n)]} (api/q (api/db *api* much-later) query))))))))
+
+(t/deftest test-aggregate-spills-groups-to-disk
+  (fix/with-opts {:crux/query-engine {:aggregate-spill-threshold 2}}
+    (fn []
+      (fix/with-node
+        (fn []
+          (t/is (= #{[:red 3 6] [:blue 2 15] [:green 1 9] [:yellow 2 21]}
+                   (set (api/q (api/db *api*)
+                               '[:find ?color (count ?x) (sum ?x)
+                                 :in [$ [[?color ?x]]]]
+                               [[:red 1] [:blue 7] [:green 9] [:red 2] [:yellow 10]
+                                [:blue 8] [:red 3] [:yellow 11]])))))))))
+
+(t/deftest test-primitive-aggregates-match-built-in-fns
+  (let [xs [3 1 2.5 1/2 7 (bigint 4) -2.0 10]
+        aggregate-fn (fn [sym xs]
+                       (let [f (q/aggregate sym)]
+                         (f (reduce f (f) xs))))
+        query '[:find ?g (count ?x) (sum ?x) (avg ?x) (min ?x) (max ?x)
+                :in [$ [[?g ?x]]]]
+        expected (fn [g xs]
+                   (into [g] (for [sym '[count sum avg min max]]
+                               (aggregate-fn sym xs))))]
+    (t/testing "longs and doubles stay unboxed, anything else falls back to boxed maths"
+      (doseq [[g xs] {:longs [3 1 7 10]
+                      :doubles [2.5 -2.0 0.5]
+                      :longs-then-doubles [3 1 2.5 -2.0]
+                      :mixed xs}]
+        (t/is (= #{(expected g xs)}
+                 (api/q (api/db *api*) query (mapv (fn [x] [g x]) xs))))))))
+
+(t/deftest test-aggregate-spills-parts-by-size
+  (fix/with-opts {:crux/query-engine {:aggregate-spill-threshold 2
+                                      :aggregate-spill-part-bytes 64}}
+    (fn []
+      (fix/with-node
+        (fn []
+          (let [tuples (for [n (range 200)]
+                         [(mod n 17) n])]
+            (t/is (= (set (for [[g ns] (group-by first tuples)
+                                :let [ns (map second ns)]]
+                            [g (count ns) (reduce + ns) (apply min ns) (apply max ns)]))
+                     (set (api/q (api/db *api*)
+                                 '[:find ?g (count ?n) (sum ?n) (min ?n) (max ?n)
+                                   :in [$ [[?g ?n]]]]
+                                 (vec tuples)))))))))))
+
 (defn- date->inverted-long [^Date d]
   (* -1 (.getTime d)))
 
@@ -0,0 +1,89 @@
+(ns crux.rocksdb.bulk-load-test
+  (:require [clojure.java.io :as io]
+            [clojure.test :as t]
+            [crux.api :as crux]
+            [crux.fixtures :as fix]
+            [crux.rocksdb :as rocks]
+            [crux.rocksdb.bulk-load :as bulk-load]))
+
+(defn- ->person [n]
+  {:crux.db/id (keyword (str "person-" n))
+   :name (str "Person " n)
+   :age (mod n 50)
+   :tags #{:a (keyword (str "tag-" (mod n 3)))}})
+
+(defn- start-node [data-dir index-dir]
+  (crux/start-node {:crux/tx-log {:kv-store {:crux/module `rocks/->kv-store, :db-dir (io/file data-dir "tx-log")}}
+                    :crux/document-store {:kv-store {:crux/module `rocks/->kv-store, :db-dir (io/file data-dir "doc-store")}}
+                    :crux/index-store {:kv-store {:crux/module `rocks/->kv-store, :db-dir index-dir}}}))
+
+(defn- query-node [node]
+  (let [db (crux/db node)]
+    {:aged-42 (crux/q db '{:find [e] :where [[e :age 42]]})
+     :tag-1-count (count (crux/q db '{:find [e] :where [[e :tags :tag-1]]}))
+     :person-7 (crux/entity db :person-7)
+     :new-person (crux/entity db :new-person)}))
+
+(t/deftest test-bulk-load-then-carry-on-from-tx-log
+  (fix/with-tmp-dirs #{data-dir index-dir replay-index-dir}
+    (with-open [index-kv-store (rocks/->kv-store {:db-dir (.toPath index-dir), :column-families? true})
+                document-kv-store (rocks/->kv-store {:db-dir (.toPath (io/file data-dir "doc-store")), :column-families? true})
+                tx-log-kv-store (rocks/->kv-store {:db-dir (.toPath (io/file data-dir "tx-log")), :column-families? true})]
+      (t/is (= 9 (:crux.tx/tx-id (bulk-load/bulk-load {:index-kv-store index-kv-store
+                                                        :document-kv-store document-kv-store
+                                                        :tx-log-kv-store tx-log-kv-store
+                                                        :batch-size 100}
+                                                       (for [n (range 1000)]
+                                                         [:crux.tx/put (->person n)]))))))
+
+    (let [expected {:aged-42 (set (for [n (range 1000) :when (= 42 (mod n 50))]
+                                    [(keyword (str "person-" n))]))
+                    :tag-1-count 333
+                    :person-7 (->person 7)
+                    :new-person {:crux.db/id :new-person, :age 42}}]
+      (with-open [node (start-node data-dir index-dir)]
+        (t/is (= {:crux.tx/tx-id 9} (select-keys (crux/latest-completed-tx node) [:crux.tx/tx-id])))
+        (t/is (= (assoc expected :new-person nil) (query-node node)))
+
+        (let [tx (crux/submit-tx node [[:crux.tx/put {:crux.db/id :new-person, :age 42}]])]
+          (t/is (= 10 (:crux.tx/tx-id tx)))
+          (crux/await-tx node tx))
+
+        (t/is (= (update expected :aged-42 conj [:new-person]) (query-node node))))
+
+      (t/testing "replaying the tx-log gives the same indexes"
+        (with-open [node (start-node data-dir replay-index-dir)]
+          (crux/sync node)
+          (t/is (= (update expected :aged-42 conj [:new-person]) (query-node node))))))))
+
+(t/deftest test-later-put-in-a-batch-wins
+  (fix/with-tmp-dirs #{data-dir index-dir}
+    (with-open [index-kv-store (rocks/->kv-store {:db-dir (.toPath index-dir), :column-families? true})
+                document-kv-store (rocks/->kv-store {:db-dir (.toPath (io/file data-dir "doc-store")), :column-families? true})
+                tx-log-kv-store (rocks/->kv-store {:db-dir (.toPath (io/file data-dir "tx-log")), :column-families? true})]
+      (bulk-load/bulk-load {:index-kv-store index-kv-store
+                            :document-kv-store document-kv-store
+                            :tx-log-kv-store tx-log-kv-store
+                            :batch-size 100}
+                           (concat (for [n (range 50)]
+                                     [:crux.tx/put (->person n)])
+                                   ;; same batch, same (implicit) valid-time
+                                   [[:crux.tx/put (assoc (->person 7) :age 99)]]
+                                   (for [n (range 50 100)]
+                                     [:crux.tx/put (->person n)]))))
+
+    (with-open [node (start-node data-dir index-dir)]
+      (let [db (crux/db node)]
+        (t/is (= (assoc (->person 7) :age 99) (crux/entity db :person-7)))
+        (t/is (= #{[:person-7]} (crux/q db '{:find [e] :where [[e :age 99]]})))
+        (t/is (= #{[:person-57]} (crux/q db '{:find [e] :where [[e :age 7]]})))))))
+
+(t/deftest test-bulk-load-only-takes-puts
+  (fix/with-tmp-dirs #{data-dir}
+    (with-open [kv-store (rocks/->kv-store {:db-dir (.toPath data-dir), :column-families? true})]
+      (t/is (thrown-with-msg? IllegalArgumentException #"only support puts"
+                              (bulk-load/bulk-load {:index-kv-store kv-store
+                                                    :document-kv-store kv-store
+                                                    :tx-log-kv-store kv-store}
+                                                   [[:crux.tx/put {:crux.db/id :foo}]
+                                                    [:crux.tx/delete :foo]]))))))
@@ -1428,3 +1428,122 @@
                                                              (throw (ex-info "boom!" {}))))))
                                     (catch Exception e
                                       (throw (.getCause e)))))))))))
+
+(t/deftest prefetching-tx-ingester
+  (letfn [(submit-txs [node]
+            (crux/submit-tx node [[:crux.tx/put {:crux.db/id :put-fn
+                                                 :crux.db/fn '(fn [ctx doc]
+                                                                [[:crux.tx/put doc]])}]])
+            (dotimes [n 20]
+              (crux/submit-tx node [[:crux.tx/put {:crux.db/id :foo, :n n}]
+                                    [:crux.tx/put {:crux.db/id (keyword (str "bar-" n)), :n n}]]))
+            (crux/submit-tx node [[:crux.tx/fn :put-fn {:crux.db/id :baz}]])
+            (crux/submit-tx node [[:crux.tx/evict :bar-0]])
+            (crux/await-tx node (crux/submit-tx node [[:crux.tx/put {:crux.db/id :bar-0, :n 0}]]))
+
+            (let [db (crux/db node)]
+              (->> [:foo :bar-0 :bar-10 :baz]
+                   (into {} (map (juxt identity #(crux/entity db %)))))))]
+
+    (let [expected (with-open [node (crux/start-node {})]
+                     (submit-txs node))]
+      (t/is (= {:crux.db/id :foo, :n 19} (:foo expected)))
+      (t/is (= {:crux.db/id :baz} (:baz expected)))
+
+      (with-open [node (crux/start-node {:crux/tx-ingester {:prefetch-depth 4
+                                                            :prefetch-max-docs 2}})]
+        (t/is (= expected (submit-txs node)))))))
+
+(t/deftest group-committing-index-store
+  (letfn [(submit-txs [node]
+            (dotimes [n 25]
+              (crux/submit-tx node [[:crux.tx/put {:crux.db/id :foo, :n n}]
+                                    [:crux.tx/put {:crux.db/id (keyword (str "bar-" n)), :n n}]]))
+            (let [failed-tx (crux/submit-tx node [[:crux.tx/match :foo {:crux.db/id :foo, :n 0}]
+                                                  [:crux.tx/put {:crux.db/id :baz}]])]
+              (crux/submit-tx node [[:crux.tx/evict :bar-0]])
+              (crux/await-tx node (crux/submit-tx node [[:crux.tx/put {:crux.db/id :bar-1, :n 100}]]))
+
+              (let [db (crux/db node)]
+                {:committed? (crux/tx-committed? node failed-tx)
+                 :entities (->> [:foo :bar-0 :bar-1 :bar-10 :baz]
+                                (into {} (map (juxt identity #(crux/entity db %)))))
+                 :bar-1-history (->> (crux/entity-history db :bar-1 :asc)
+                                     (mapv ::tx/tx-id))})))]
+
+    (let [expected (with-open [node (crux/start-node {})]
+                     (submit-txs node))]
+      (t/is (false? (:committed? expected)))
+      (t/is (= {:crux.db/id :foo, :n 24} (get-in expected [:entities :foo])))
+
+      (with-open [node (crux/start-node {:crux/index-store {:group-commit-max-txs 10
+                                                            :group-commit-max-delay 50}})]
+        (t/is (= expected (submit-txs node)))))))
+
+(t/deftest aborted-tx-in-a-group-commit-leaves-stats-alone
+  (letfn [(submit-txs [node]
+            (crux/submit-tx node [[:crux.tx/put {:crux.db/id :foo, :colour :red}]])
+            (let [failed-tx (crux/submit-tx node [[:crux.tx/match :foo {:crux.db/id :foo, :colour :blue}]
+                                                  [:crux.tx/put {:crux.db/id :bar, :colour :green}]])]
+              (crux/await-tx node failed-tx)
+              {:committed? (crux/tx-committed? node failed-tx)
+               :stats (crux/attribute-stats node)}))]
+    (let [expected (with-open [node (crux/start-node {})]
+                     (submit-txs node))]
+      (t/is (false? (:committed? expected)))
+      (t/is (= 1 (get-in expected [:stats :colour])))
+
+      (with-open [node (crux/start-node {:crux/index-store {:group-commit-max-txs 10
+                                                            :group-commit-max-delay 50}})]
+        (t/is (= expected (submit-txs node)))))))
+
+(t/deftest group-committing-tx-log
+  (with-open [node (crux/start-node {})]
+    (let [txs (->> (for [n (range 100)]
+                     (future
+                       (crux/submit-tx node [[:crux.tx/put {:crux.db/id (keyword (str "foo-" n)), :n n}]])))
+                   (mapv deref))]
+      (t/is (= (range 100) (sort (map ::tx/tx-id txs))))
+
+      (crux/await-tx node (apply max-key ::tx/tx-id txs))
+      (t/is (= (set (for [n (range 100)] [n]))
+               (crux/q (crux/db node) '{:find [n] :where [[_ :n n]]})))
+
+      (with-open [log (crux/open-tx-log node nil false)]
+        (t/is (= (sort-by ::tx/tx-id txs)
+                 (map #(select-keys % [::tx/tx-id ::tx/tx-time]) (iterator-seq log))))))))
+
+(t/deftest test-tailing-kv-tx-log
+  (with-open [node (crux/start-node {:crux/tx-log {:read-batch-size 3}})]
+    (letfn [(submit-txs [ns]
+              (->> (for [n ns]
+                     (crux/submit-tx node [[:crux.tx/put {:crux.db/id :foo, :n n}]]))
+                   (mapv ::tx/tx-id)))]
+      (let [tx-ids (submit-txs (range 10))]
+        (with-open [log (crux/open-tx-log node nil false)]
+          (t/is (= tx-ids (map ::tx/tx-id (iterator-seq log)))))
+
+        (with-open [log (crux/open-tx-log node (nth tx-ids 1) false)]
+          (let [log (iterator-seq log)]
+            (t/is (= (subvec tx-ids 2 7) (map ::tx/tx-id (take 5 log))))
+
+            (t/testing "sees txs submitted after it reached the end of its snapshot"
+              (let [more-tx-ids (submit-txs (range 10 12))]
+                (t/is (= (concat (subvec tx-ids 2) more-tx-ids)
+                         (map ::tx/tx-id log)))))))))))
+
+(t/deftest test-tailing-kv-tx-log-refreshes-snapshots
+  (with-open [node (crux/start-node {:crux/tx-log {:read-batch-size 3}})]
+    (let [tx-ids (->> (for [n (range 10)]
+                        (crux/submit-tx node [[:crux.tx/put {:crux.db/id :foo, :n n}]]))
+                      (mapv ::tx/tx-id))]
+      ;; a new snapshot for every batch - each picking up where the last left off
+      (with-open [log (crux/open-tx-log node nil false)]
+        (let [log (iterator-seq log)]
+          (t/is (= (subvec tx-ids 0 4) (map ::tx/tx-id (take 4 log))))
+
+          (let [more-tx-ids (->> (for [n (range 10 12)]
+                                   (crux/submit-tx node [[:crux.tx/put {:crux.db/id :foo, :n n}]]))
+                                 (mapv ::tx/tx-id))]
+            (t/is (= (concat tx-ids more-tx-ids)
+                     (map ::tx/tx-id log)))))))))